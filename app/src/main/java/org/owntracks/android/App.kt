@@ -3,6 +3,7 @@ package org.owntracks.android
 import android.content.Context
 import android.content.Intent
 import android.os.Build
+import android.os.Looper
 import android.os.StrictMode
 import android.os.StrictMode.VmPolicy
 import androidx.work.Configuration
@@ -21,7 +22,7 @@ import org.owntracks.android.services.MessageProcessor
 import org.owntracks.android.services.worker.Scheduler
 import org.owntracks.android.support.Events.RestartApp
 import org.owntracks.android.support.Preferences
-import org.owntracks.android.support.RunThingsOnOtherThreads
+import org.owntracks.android.support.StartupTimings
 import org.owntracks.android.support.TimberDebugLogTree
 import org.owntracks.android.ui.map.MapActivity
 import timber.log.Timber
@@ -34,9 +35,6 @@ class App : DaggerApplication() {
     @Inject
     lateinit var preferences: Preferences
 
-    @Inject
-    lateinit var runThingsOnOtherThreads: RunThingsOnOtherThreads
-
     @Inject
     lateinit var messageProcessor: MessageProcessor
 
@@ -50,17 +48,37 @@ class App : DaggerApplication() {
     lateinit var scheduler: Scheduler
 
     override fun onCreate() {
+        StartupTimings.mark(StartupTimings.APP_CREATE_STARTED)
         // Make sure we use Conscrypt for advanced TLS features on all devices.
         // X509ExtendedTrustManager not available pre-24, fall back to device. https://github.com/google/conscrypt/issues/603
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            Security.insertProviderAt(Conscrypt.newProviderBuilder().provideTrustManager(true).build(), 1)
-        } else {
-            Security.insertProviderAt(Conscrypt.newProviderBuilder().provideTrustManager(false).build(), 1)
+        StartupTimings.phase(StartupTimings.PHASE_SECURITY_PROVIDER) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                Security.insertProviderAt(Conscrypt.newProviderBuilder().provideTrustManager(true).build(), 1)
+            } else {
+                Security.insertProviderAt(Conscrypt.newProviderBuilder().provideTrustManager(false).build(), 1)
+            }
+        }
+
+        StartupTimings.phase(StartupTimings.PHASE_INJECTION) { super.onCreate() }
+        StartupTimings.phase(StartupTimings.PHASE_WORK_MANAGER) {
+            WorkManager.initialize(this, Configuration.Builder().setWorkerFactory(workerFactory).build())
+            scheduler.cancelAllTasks()
         }
+        StartupTimings.phase(StartupTimings.PHASE_LOGGING) { setupLogging() }
+        preferences.checkFirstStart()
 
-        super.onCreate()
-        WorkManager.initialize(this, Configuration.Builder().setWorkerFactory(workerFactory).build())
-        scheduler.cancelAllTasks()
+        // Running this on a background thread will deadlock FirebaseJobDispatcher.
+        // Initialize will call Scheduler to connect off the main thread anyway. Waiting for the main thread to go
+        // idle lets the first activity draw before the endpoint is set up, without guessing at a fixed delay.
+        Looper.myQueue().addIdleHandler {
+            StartupTimings.phase(StartupTimings.PHASE_ENDPOINT_INIT) { messageProcessor.initialize() }
+            false
+        }
+        eventBus.register(this)
+        StartupTimings.mark(StartupTimings.APP_CREATED)
+    }
+
+    private fun setupLogging() {
         if (BuildConfig.DEBUG) {
             Timber.plant(TimberDebugLogTree())
             Timber.e("StrictMode enabled in DEBUG build")
@@ -82,12 +100,6 @@ class App : DaggerApplication() {
         for (t in Timber.forest()) {
             Timber.v("Planted trees :%s", t)
         }
-        preferences.checkFirstStart()
-
-        // Running this on a background thread will deadlock FirebaseJobDispatcher.
-        // Initialize will call Scheduler to connect off the main thread anyway.
-        runThingsOnOtherThreads.postOnMainHandlerDelayed(Runnable { messageProcessor.initialize() }, 510)
-        eventBus.register(this)
     }
 
     @Subscribe
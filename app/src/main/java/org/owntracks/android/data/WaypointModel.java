@@ -150,7 +150,7 @@ public class WaypointModel extends BaseObservable {
         return lastTriggered; // unit is seconds
     }
 
-    private void setLastTriggered(long lastTriggered) {
+    public void setLastTriggered(long lastTriggered) {
         this.lastTriggered = lastTriggered;  // unit is seconds
     }
 
@@ -4,6 +4,7 @@ import androidx.lifecycle.MutableLiveData
 import org.owntracks.android.model.FusedContact
 import org.owntracks.android.model.messages.MessageCard
 import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.EventChannel
 
 interface ContactsRepo {
     val all: MutableLiveData<MutableMap<String, FusedContact>>
@@ -13,4 +14,9 @@ interface ContactsRepo {
     fun update(id: String, messageLocation: MessageLocation)
     fun update(id: String, messageCard: MessageCard)
     val revision: Long
+
+    /**
+     * Contacts whose location or card changed, or that were added
+     */
+    val contactUpdates: EventChannel<FusedContact>
 }
\ No newline at end of file
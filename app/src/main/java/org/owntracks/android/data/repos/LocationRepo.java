@@ -8,15 +8,26 @@ import androidx.annotation.Nullable;
 
 import org.greenrobot.eventbus.EventBus;
 import org.owntracks.android.model.messages.BLEObject;
+import org.owntracks.android.support.EventChannel;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 @Singleton
 public class LocationRepo {
+    /**
+     * How many of the most recent locations are kept for {@link #getRecentLocations()}
+     */
+    public static final int HISTORY_SIZE = 20;
+
     private final EventBus eventBus;
+
+    private final EventChannel<Location> locations = EventChannel.conflated();
+    private final ArrayDeque<Location> history = new ArrayDeque<>(HISTORY_SIZE);
     private Location currentLocation;
     private ArrayList<BLEObject> bleObjects=new ArrayList<>();
 
@@ -40,7 +51,31 @@ public class LocationRepo {
 
     public void setCurrentLocation(@NonNull Location l) {
         this.currentLocation = l;
-        eventBus.postSticky(l);
+        synchronized (history) {
+            if (history.size() == HISTORY_SIZE) {
+                history.removeFirst();
+            }
+            history.addLast(l);
+        }
+        locations.post(l);
+    }
+
+    /**
+     * @return the last few locations that were set, oldest first
+     */
+    @NonNull
+    public List<Location> getRecentLocations() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * @return the device's locations as they're set. New observers get the current location straight away.
+     */
+    @NonNull
+    public EventChannel<Location> getLocations() {
+        return locations;
     }
 
     public void setBleObject(@NonNull ArrayList<BLEObject> bleObjects) {
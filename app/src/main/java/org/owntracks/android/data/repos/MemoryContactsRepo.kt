@@ -2,6 +2,7 @@ package org.owntracks.android.data.repos
 
 import androidx.annotation.MainThread
 import androidx.lifecycle.MutableLiveData
+import dagger.Lazy
 import org.greenrobot.eventbus.EventBus
 import org.greenrobot.eventbus.Subscribe
 import org.greenrobot.eventbus.ThreadMode
@@ -10,17 +11,20 @@ import org.owntracks.android.model.FusedContact
 import org.owntracks.android.model.messages.MessageCard
 import org.owntracks.android.model.messages.MessageLocation
 import org.owntracks.android.support.ContactImageProvider
+import org.owntracks.android.support.EventChannel
 import org.owntracks.android.support.Events.*
 import timber.log.Timber
 import javax.inject.Inject
 
 @Singleton
-class MemoryContactsRepo @Inject constructor(private val eventBus: EventBus, private val contactImageProvider: ContactImageProvider) : ContactsRepo {
+class MemoryContactsRepo @Inject constructor(private val eventBus: EventBus, private val contactImageProvider: Lazy<ContactImageProvider>) : ContactsRepo {
     override val all = MutableLiveData<MutableMap<String, FusedContact>>(mutableMapOf())
+    override val contactUpdates = EventChannel.conflatedPerValue<FusedContact>()
     private var majorRevision: Long = 0
     override var revision: Long = 0
         get() = majorRevision + field
 
+    @Synchronized
     override fun getById(id: String): FusedContact? {
         return all.value!![id]
     }
@@ -39,7 +43,7 @@ class MemoryContactsRepo @Inject constructor(private val eventBus: EventBus, pri
         all.value!!.clear()
         majorRevision -= MAJOR_STEP
         revision = 0
-        contactImageProvider.invalidateCache()
+        contactImageProvider.get().invalidateCache()
     }
 
     @Synchronized
@@ -54,21 +58,21 @@ class MemoryContactsRepo @Inject constructor(private val eventBus: EventBus, pri
         }
     }
 
+    @Synchronized
     override fun update(id: String, messageCard: MessageCard) {
         var c = getById(id)
         if (c != null) {
             c.messageCard = messageCard
-            contactImageProvider.invalidateCacheLevelCard(c.id)
+            contactImageProvider.get().invalidateCacheLevelCard(c.id)
             revision++
-            eventBus.post(c)
         } else {
             c = FusedContact(id)
             c.messageCard = messageCard
-            contactImageProvider.invalidateCacheLevelCard(c.id)
+            contactImageProvider.get().invalidateCacheLevelCard(c.id)
             put(id, c)
             revision++
-            eventBus.post(FusedContactAdded(c))
         }
+        contactUpdates.post(c)
     }
 
     @Synchronized
@@ -78,14 +82,14 @@ class MemoryContactsRepo @Inject constructor(private val eventBus: EventBus, pri
             // If timestamp of last location message is <= the new location message, skip update. We either received an old or already known message.
             if (fusedContact.setMessageLocation(messageLocation)) {
                 revision++
-                eventBus.post(fusedContact)
+                contactUpdates.post(fusedContact)
             }
         } else {
             fusedContact = FusedContact(id)
             fusedContact.setMessageLocation(messageLocation)
             put(id, fusedContact)
             revision++
-            eventBus.post(FusedContactAdded(fusedContact))
+            contactUpdates.post(fusedContact)
         }
     }
 
@@ -4,6 +4,10 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MediatorLiveData;
 
 import org.greenrobot.eventbus.EventBus;
 import org.owntracks.android.data.MyObjectBox;
@@ -11,9 +15,19 @@ import org.owntracks.android.data.WaypointModel;
 import org.owntracks.android.data.WaypointModel_;
 import org.owntracks.android.injection.qualifier.AppContext;
 import org.owntracks.android.support.Preferences;
+import org.owntracks.android.support.RunThingsOnOtherThreads;
+import org.owntracks.android.support.StartupTimings;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -22,23 +36,73 @@ import io.objectbox.Box;
 import io.objectbox.BoxStore;
 import io.objectbox.android.ObjectBoxLiveData;
 import io.objectbox.exception.UniqueViolationException;
+import io.objectbox.reactive.DataSubscription;
 import io.objectbox.query.Query;
 import timber.log.Timber;
 
 @Singleton
 public class ObjectboxWaypointsRepo extends WaypointsRepo  {
+    private static final long TRANSITION_FLUSH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
     private final Preferences preferences;
+    private final RunThingsOnOtherThreads runThingsOnOtherThreads;
+
+    // Opening the store and migrating legacy data happen off the injection path. Everything below is only
+    // assigned by openStore and must not be touched before awaitStore() returns.
+    private final FutureTask<Void> storeReady;
+    private BoxStore boxStore;
     private Box<org.owntracks.android.data.WaypointModel> box;
 
+    // Built once and re-used with different parameters. Query parameters are per instance, so access is
+    // synchronized on the query.
+    private Query<WaypointModel> byTstQuery;
+    private Query<WaypointModel> withGeofencesQuery;
+
+    // Read-mostly copy of all waypoints. Dropped whenever the box changes, and rebuilt on the next read. Its
+    // models are handed out as they are, and only their transition state is ever changed, by WaypointsRepo.
+    private final AtomicInteger cacheGeneration = new AtomicInteger();
+    private volatile WaypointCache cache;
+    private DataSubscription cacheInvalidationSubscription;
+
     @Inject
-    public ObjectboxWaypointsRepo(@AppContext Context context, EventBus eventBus, Preferences preferences) {
+    public ObjectboxWaypointsRepo(@AppContext Context context, EventBus eventBus, Preferences preferences, RunThingsOnOtherThreads runThingsOnOtherThreads) {
         super(eventBus);
-        BoxStore boxStore = MyObjectBox.builder().androidContext(context).build();
-        this.box = boxStore.boxFor(org.owntracks.android.data.WaypointModel.class);
+        this.runThingsOnOtherThreads = runThingsOnOtherThreads;
         this.preferences = preferences;
+        this.storeReady = new FutureTask<>(() -> openStore(context), null);
+        runThingsOnOtherThreads.getBackgroundExecutor().execute(storeReady);
+    }
+
+    private void openStore(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        this.boxStore = MyObjectBox.builder().androidContext(context).build();
+        this.box = boxStore.boxFor(org.owntracks.android.data.WaypointModel.class);
+        this.byTstQuery = box.query().equal(WaypointModel_.tst, 0).build();
+        this.withGeofencesQuery = box.query().greater(WaypointModel_.geofenceRadius,0L).and().between(WaypointModel_.geofenceLatitude,-90, 90).and().between(WaypointModel_.geofenceLongitude,-180, 180).build();
+        this.cacheInvalidationSubscription = boxStore.subscribe(WaypointModel.class).onlyChanges().observer(data -> invalidateCache());
         if(!preferences.isObjectboxMigrated()) {
             migrateLegacyData(context);
         }
+        Timber.d("waypoint store opened in %sms", SystemClock.elapsedRealtime() - start);
+        StartupTimings.mark(StartupTimings.WAYPOINTS_READY);
+    }
+
+    /**
+     * Blocks callers that arrive before the store has been opened. Once it has, this is a single volatile read.
+     * A caller that gets here before the background handler has got round to opening the store opens it
+     * itself, so that nothing queued on the background handler ahead of the store can wait on it forever.
+     */
+    private void awaitStore() {
+        try {
+            // Does nothing if the store is already open or being opened on another thread
+            storeReady.run();
+            storeReady.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the waypoint store", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to open the waypoint store", e.getCause());
+        }
     }
 
     private static class LegacyOpenHelper extends SQLiteOpenHelper {
@@ -82,7 +146,7 @@ public class ObjectboxWaypointsRepo extends WaypointsRepo  {
                                     cursor.getInt(columnList.indexOf("GEOFENCE_RADIUS")), 0, 0);
 
                             Timber.v("Migration for model %s", w.toString());
-                            insert_impl(w);
+                            box.put(w);
                         } catch (UniqueViolationException exception) {
                             Timber.v("UniqueViolationException during insert");
                         }
@@ -101,44 +165,145 @@ public class ObjectboxWaypointsRepo extends WaypointsRepo  {
         }
     }
 
-    @Override
-    public org.owntracks.android.data.WaypointModel get(long tst) {
-        return this.box.query().equal(WaypointModel_.tst,tst).build().findUnique();
+    private static final class WaypointCache {
+        final int generation;
+        final List<WaypointModel> all;
+        final Map<Long, WaypointModel> byTst;
+        final List<WaypointModel> withGeofences;
+
+        WaypointCache(int generation, List<WaypointModel> all, Map<Long, WaypointModel> byTst, List<WaypointModel> withGeofences) {
+            this.generation = generation;
+            this.all = all;
+            this.byTst = byTst;
+            this.withGeofences = withGeofences;
+        }
+    }
+
+    private WaypointCache getCache() {
+        awaitStore();
+        int generation = cacheGeneration.get();
+        WaypointCache current = cache;
+        if (current != null && current.generation == generation) {
+            return current;
+        }
+        WaypointCache rebuilt = boxStore.callInReadTx(() -> {
+            List<WaypointModel> all = box.getAll();
+            Map<Long, WaypointModel> byId = new HashMap<>(all.size());
+            Map<Long, WaypointModel> byTst = new HashMap<>(all.size());
+            for (WaypointModel w : all) {
+                byId.put(w.getId(), w);
+                byTst.put(w.getTst(), w);
+            }
+            long[] ids;
+            synchronized (withGeofencesQuery) {
+                ids = withGeofencesQuery.findIds();
+            }
+            List<WaypointModel> withGeofences = new ArrayList<>(ids.length);
+            for (long id : ids) {
+                WaypointModel w = byId.get(id);
+                if (w != null) {
+                    withGeofences.add(w);
+                }
+            }
+            return new WaypointCache(generation, Collections.unmodifiableList(all), byTst, Collections.unmodifiableList(withGeofences));
+        });
+        cache = rebuilt;
+        return rebuilt;
+    }
+
+    private void invalidateCache() {
+        cacheGeneration.incrementAndGet();
     }
 
     @Override
-    public List<org.owntracks.android.data.WaypointModel> getAll() {
-        return this.box.getAll();
+    protected org.owntracks.android.data.WaypointModel get_impl(long tst) {
+        return getCache().byTst.get(tst);
     }
 
     @Override
-    public List<WaypointModel> getAllWithGeofences() {
-        return this.box.query().greater(WaypointModel_.geofenceRadius,0L).and().between(WaypointModel_.geofenceLatitude,-90, 90).and().between(WaypointModel_.geofenceLongitude,-180, 180).build().find();
+    protected List<org.owntracks.android.data.WaypointModel> getAll_impl() {
+        return getCache().all;
     }
 
     @Override
-    public ObjectBoxLiveData<WaypointModel> getAllLive() {
-        return new ObjectBoxLiveData<>(getAllQuery());
+    protected List<WaypointModel> getAllWithGeofences_impl() {
+        return getCache().withGeofences;
     }
 
+    /**
+     * Returns straight away. The query is attached once the store is open, so that the first screen to show
+     * waypoints doesn't wait for it on the main thread.
+     */
     @Override
-    public Query<WaypointModel> getAllQuery() {
-        return this.box.query().order(WaypointModel_.description).build();
+    public LiveData<List<WaypointModel>> getAllLive() {
+        MediatorLiveData<List<WaypointModel>> waypoints = new MediatorLiveData<>();
+        runThingsOnOtherThreads.getBackgroundExecutor().execute(() -> {
+            awaitStore();
+            Query<WaypointModel> query = box.query().order(WaypointModel_.description).build();
+            runThingsOnOtherThreads.getMainExecutor().execute(() -> waypoints.addSource(new ObjectBoxLiveData<>(query), waypoints::setValue));
+        });
+        return waypoints;
     }
 
     @Override
     public void insert_impl(org.owntracks.android.data.WaypointModel w) {
+        awaitStore();
         box.put(w);
+        invalidateCache();
     }
 
     @Override
     public void update_impl(org.owntracks.android.data.WaypointModel w) {
+        awaitStore();
         box.put(w);
+        invalidateCache();
     }
 
     @Override
     public void delete_impl(org.owntracks.android.data.WaypointModel w) {
+        awaitStore();
         box.remove(w);
+        invalidateCache();
+    }
+
+    @Override
+    protected void upsert_impl(List<WaypointModel> waypoints) {
+        awaitStore();
+        boxStore.runInTx(() -> {
+            synchronized (byTstQuery) {
+                for (WaypointModel w : waypoints) {
+                    WaypointModel existing = byTstQuery.setParameter(WaypointModel_.tst, w.getTst()).findUnique();
+                    // Reusing the id turns the put into a replace and keeps the unique tst index satisfied
+                    w.setId(existing != null ? existing.getId() : 0);
+                }
+            }
+            box.put(waypoints);
+        });
+        invalidateCache();
+    }
+
+    @Override
+    protected void updateTransitions_impl(Map<Long, TransitionState> transitions) {
+        awaitStore();
+        boxStore.runInTx(() -> {
+            List<WaypointModel> changed = new ArrayList<>(transitions.size());
+            for (Map.Entry<Long, TransitionState> entry : transitions.entrySet()) {
+                WaypointModel w = box.get(entry.getKey());
+                // Waypoint may have been deleted in the meantime
+                if (w != null) {
+                    entry.getValue().applyTo(w);
+                    changed.add(w);
+                }
+            }
+            box.put(changed);
+        });
+        invalidateCache();
+        Timber.v("flushed transition state for %s waypoints", transitions.size());
+    }
+
+    @Override
+    protected void scheduleTransitionFlush() {
+        runThingsOnOtherThreads.postOnBackgroundHandlerDelayed(this::flushTransitions, TRANSITION_FLUSH_DELAY_MILLIS);
     }
 
 
@@ -2,6 +2,7 @@ package org.owntracks.android.data.repos;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.lifecycle.LiveData;
 
 import org.greenrobot.eventbus.EventBus;
 import org.owntracks.android.data.WaypointModel;
@@ -9,24 +10,74 @@ import org.owntracks.android.model.messages.MessageWaypoint;
 import org.owntracks.android.support.Events;
 import org.owntracks.android.support.MessageWaypointCollection;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-import io.objectbox.android.ObjectBoxLiveData;
-import io.objectbox.query.Query;
 
 public abstract class WaypointsRepo {
     private EventBus eventBus;
+
+    // Transition state changes on every fix when fused region detection is on. Changes are kept here, keyed
+    // on waypoint id, until they're written back in one batch by flushTransitions.
+    private final Map<Long, TransitionState> pendingTransitions = new HashMap<>();
+    // Held while transition state is written back, and while waypoints are added, replaced or deleted, so
+    // that a flush that's already running can't write one waypoint's state onto another that reuses its id
+    private final Object transitionWriteLock = new Object();
+
     protected WaypointsRepo(EventBus eventBus) {
         this.eventBus = eventBus;
     }
-    public abstract WaypointModel get(long tst);
-    protected abstract List<WaypointModel> getAll();
-    public abstract List<WaypointModel> getAllWithGeofences();
-    public abstract ObjectBoxLiveData<WaypointModel> getAllLive();
-    public abstract Query<WaypointModel> getAllQuery();
+
+    /**
+     * @return the waypoint, which may be shared with other callers and must not be changed other than through
+     * {@link #updateTransition}. Use {@link #getForEditing} for one that can be changed.
+     */
+    @Nullable
+    public WaypointModel get(long tst) {
+        WaypointModel w = get_impl(tst);
+        if (w != null) {
+            synchronized (pendingTransitions) {
+                applyPendingTransition(w);
+            }
+        }
+        return w;
+    }
+
+    /**
+     * @return a copy of the waypoint, which the caller is free to change and save with {@link #insert}
+     */
+    @Nullable
+    public WaypointModel getForEditing(long tst) {
+        WaypointModel w = get(tst);
+        return w != null ? copyOf(w) : null;
+    }
+
+    protected List<WaypointModel> getAll() {
+        return applyPendingTransitions(getAll_impl());
+    }
+
+    /**
+     * @return an unmodifiable list of waypoints, which may be shared with other callers and must not be
+     * changed other than through {@link #updateTransition}
+     */
+    public List<WaypointModel> getAllWithGeofences() {
+        return applyPendingTransitions(getAllWithGeofences_impl());
+    }
+
+    /**
+     * @return all waypoints, ordered by description, and again whenever they change
+     */
+    public abstract LiveData<List<WaypointModel>> getAllLive();
 
     public void insert(WaypointModel w) {
-        insert_impl(w);
+        synchronized (transitionWriteLock) {
+            insert_impl(w);
+            clearPendingTransitions(Collections.singletonList(w));
+        }
         eventBus.post(new Events.WaypointAdded(w));
 
     }
@@ -39,22 +90,124 @@ public abstract class WaypointsRepo {
     }
 
     public void delete(WaypointModel w) {
-        delete_impl(w);
+        synchronized (transitionWriteLock) {
+            clearPendingTransitions(Collections.singletonList(w));
+            delete_impl(w);
+        }
         eventBus.post(new Events.WaypointRemoved(w));
     }
 
+    /**
+     * Records the transition state of a waypoint. Nothing is written if it is unchanged, otherwise the
+     * state is written back to the store later, batched with other changed waypoints.
+     */
+    public void updateTransition(@NonNull WaypointModel w, int transition, boolean triggered) {
+        if (w.getLastTransition() == transition && !triggered) {
+            return;
+        }
+        synchronized (pendingTransitions) {
+            w.setLastTransition(transition);
+            if (triggered) {
+                w.setLastTriggeredNow();
+            }
+            boolean flushScheduled = !pendingTransitions.isEmpty();
+            pendingTransitions.put(w.getId(), new TransitionState(w.getLastTransition(), w.getLastTriggered()));
+            if (!flushScheduled) {
+                scheduleTransitionFlush();
+            }
+        }
+    }
+
+    /**
+     * Writes pending transition state to the store. Entries that changed again while the write was running
+     * stay pending for the next flush.
+     */
+    protected void flushTransitions() {
+        synchronized (transitionWriteLock) {
+            Map<Long, TransitionState> flushing;
+            synchronized (pendingTransitions) {
+                if (pendingTransitions.isEmpty()) {
+                    return;
+                }
+                flushing = new HashMap<>(pendingTransitions);
+            }
+            updateTransitions_impl(flushing);
+            synchronized (pendingTransitions) {
+                for (Map.Entry<Long, TransitionState> entry : flushing.entrySet()) {
+                    if (pendingTransitions.get(entry.getKey()) == entry.getValue()) {
+                        pendingTransitions.remove(entry.getKey());
+                    }
+                }
+                if (!pendingTransitions.isEmpty()) {
+                    scheduleTransitionFlush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops transition state that hasn't been written yet for the given waypoints' ids, because the ids now
+     * belong to new waypoints or to none at all
+     */
+    private void clearPendingTransitions(@NonNull List<WaypointModel> waypoints) {
+        synchronized (pendingTransitions) {
+            for (WaypointModel w : waypoints) {
+                pendingTransitions.remove(w.getId());
+            }
+        }
+    }
+
+    /**
+     * Brings waypoints loaded from the store up to date with transition state that hasn't been written back
+     * yet. The store's cache may have been rebuilt since the state changed, so this is done on every read,
+     * but it's nothing more than a check of an empty map unless there are transitions waiting for a flush.
+     */
+    @NonNull
+    private List<WaypointModel> applyPendingTransitions(@NonNull List<WaypointModel> waypoints) {
+        synchronized (pendingTransitions) {
+            if (pendingTransitions.isEmpty()) {
+                return waypoints;
+            }
+            for (WaypointModel w : waypoints) {
+                applyPendingTransition(w);
+            }
+        }
+        return waypoints;
+    }
+
+    private void applyPendingTransition(@NonNull WaypointModel w) {
+        TransitionState state = pendingTransitions.get(w.getId());
+        if (state != null) {
+            state.applyTo(w);
+        }
+    }
+
+    @NonNull
+    private static WaypointModel copyOf(@NonNull WaypointModel w) {
+        return new WaypointModel(w.getId(), w.getTst(), w.getDescription(), w.getGeofenceLatitude(), w.getGeofenceLongitude(), w.getGeofenceRadius(), w.getLastTransition(), w.getLastTriggered());
+    }
+
     public void importFromMessage(@Nullable MessageWaypointCollection waypoints) {
         if(waypoints == null)
             return;
 
+        // Waypoints are keyed on tst. An imported waypoint replaces an existing one with the same tst,
+        // and later duplicates within the same import win.
+        Map<Long, WaypointModel> imported = new LinkedHashMap<>();
         for (MessageWaypoint m: waypoints) {
-            // Delete existing waypoint if one with the same tst already exists
-            WaypointModel exisiting = get(m.getTimestamp());
-            if(exisiting != null) {
-                delete(exisiting);
-            }
-            insert(toDaoObject(m));
+            imported.remove(m.getTimestamp());
+            imported.put(m.getTimestamp(), toDaoObject(m));
+        }
+        if(imported.isEmpty())
+            return;
+
+        List<WaypointModel> models = new ArrayList<>(imported.values());
+        synchronized (transitionWriteLock) {
+            upsert_impl(models);
+            // A replaced waypoint keeps its id, but not its transition state
+            clearPendingTransitions(models);
         }
+        eventBus.post(new Events.WaypointsImported(models));
     }
 
     @NonNull
@@ -80,8 +233,46 @@ public abstract class WaypointsRepo {
         return message;
     }
 
+    /**
+     * The waypoints returned by these may be shared with the store's own cache. Apart from their transition
+     * state, which is kept up to date here, they must not be changed. The lists must be unmodifiable.
+     */
+    protected abstract WaypointModel get_impl(long tst);
+    protected abstract List<WaypointModel> getAll_impl();
+    protected abstract List<WaypointModel> getAllWithGeofences_impl();
+
     protected abstract void insert_impl(WaypointModel w);
     protected abstract void update_impl(WaypointModel w);
     protected abstract void delete_impl(WaypointModel w);
 
+    /**
+     * Inserts or replaces all given waypoints, matched on tst, as a single unit of work
+     */
+    protected abstract void upsert_impl(List<WaypointModel> waypoints);
+
+    /**
+     * Writes the given transition states, keyed on waypoint id, as a single unit of work
+     */
+    protected abstract void updateTransitions_impl(Map<Long, TransitionState> transitions);
+
+    /**
+     * Arranges for {@link #flushTransitions()} to be called at some point soon
+     */
+    protected abstract void scheduleTransitionFlush();
+
+    protected static final class TransitionState {
+        private final int lastTransition;
+        private final long lastTriggered;
+
+        TransitionState(int lastTransition, long lastTriggered) {
+            this.lastTransition = lastTransition;
+            this.lastTriggered = lastTriggered;
+        }
+
+        public void applyTo(@NonNull WaypointModel w) {
+            w.setLastTransition(lastTransition);
+            w.setLastTriggered(lastTriggered);
+        }
+    }
+
 }
\ No newline at end of file
@@ -18,6 +18,7 @@ import org.owntracks.android.R
 import org.owntracks.android.injection.qualifier.AppContext
 import org.owntracks.android.model.messages.MessageLocation
 import org.owntracks.android.services.BackgroundService
+import org.owntracks.android.support.HttpStack
 import org.owntracks.android.support.Preferences
 import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener
 import org.owntracks.android.ui.map.MapActivity
@@ -29,7 +30,7 @@ import javax.inject.Inject
 import javax.inject.Singleton
 
 @Singleton
-class GeocoderProvider @Inject constructor(@AppContext val context: Context, val preferences: Preferences) {
+class GeocoderProvider @Inject constructor(@AppContext val context: Context, val preferences: Preferences, private val httpStack: HttpStack) {
     private var lastRateLimitedNotificationTime: Instant? = null
     private var notificationManager: NotificationManagerCompat
     private lateinit var geocoder: Geocoder
@@ -37,7 +38,7 @@ class GeocoderProvider @Inject constructor(@AppContext val context: Context, val
     private fun setGeocoderProvider(@AppContext context: Context, preferences: Preferences) {
         Timber.i("Setting geocoding provider to ${preferences.reverseGeocodeProvider}")
         geocoder = when (preferences.reverseGeocodeProvider) {
-            Preferences.REVERSE_GEOCODE_PROVIDER_OPENCAGE -> OpenCageGeocoder(preferences.openCageGeocoderApiKey)
+            Preferences.REVERSE_GEOCODE_PROVIDER_OPENCAGE -> OpenCageGeocoder(preferences.openCageGeocoderApiKey, httpStack.geocoderClient)
             Preferences.REVERSE_GEOCODE_PROVIDER_GOOGLE -> GoogleGeocoder(context)
             else -> GeocoderNone()
         }
@@ -14,7 +14,7 @@ import org.threeten.bp.temporal.ChronoUnit
 import timber.log.Timber
 import java.math.BigDecimal
 
-class OpenCageGeocoder @JvmOverloads internal constructor(private val apiKey: String, private val httpClient: OkHttpClient = OkHttpClient()) : CachingGeocoder() {
+class OpenCageGeocoder internal constructor(private val apiKey: String, private val httpClient: OkHttpClient) : CachingGeocoder() {
     private val jsonMapper: ObjectMapper = ObjectMapper().registerKotlinModule().registerModule(ThreeTenModule())
     private var tripResetTimestamp: Instant = Instant.now()
     private var something = true
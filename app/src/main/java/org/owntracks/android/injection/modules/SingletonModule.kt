@@ -1,6 +1,7 @@
 package org.owntracks.android.injection.modules
 
 import androidx.test.espresso.idling.CountingIdlingResource
+import dagger.Lazy
 import dagger.Module
 import dagger.Provides
 import org.greenrobot.eventbus.EventBus
@@ -20,8 +21,8 @@ class SingletonModule {
 
     @Provides
     @Singleton
-    fun provideContactsRepo(eventBus: EventBus?, contactImageProvider: ContactImageProvider?): ContactsRepo {
-        return MemoryContactsRepo(eventBus!!, contactImageProvider!!)
+    fun provideContactsRepo(eventBus: EventBus?, contactImageProvider: Lazy<ContactImageProvider>): ContactsRepo {
+        return MemoryContactsRepo(eventBus!!, contactImageProvider)
     }
 
     @Provides
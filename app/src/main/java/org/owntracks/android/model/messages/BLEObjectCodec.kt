@@ -0,0 +1,97 @@
+package org.owntracks.android.model.messages
+
+import org.apache.commons.codec.binary.Base64
+import java.io.ByteArrayOutputStream
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Packs a list of [BLEObject] sightings into a compact, base64 encoded string and back.
+ *
+ * Layout (after base64 decoding): a single version byte, followed by one record per sighting,
+ * ordered by age (youngest first):
+ *  - 6 bytes hardware address
+ *  - 1 byte signed rssi
+ *  - unsigned varint age delta in seconds, relative to the previous record (the first record is
+ *    relative to the reference timestamp of the enclosing location message)
+ *
+ * Name and uuid are not carried by the compact encoding.
+ */
+object BLEObjectCodec {
+    private const val VERSION: Int = 1
+    private const val ADDRESS_LENGTH = 6
+
+    @JvmStatic
+    fun encode(bleObjects: List<BLEObject>, referenceTimestamp: Long): String {
+        val output = ByteArrayOutputStream(1 + bleObjects.size * (ADDRESS_LENGTH + 2))
+        output.write(VERSION)
+        var previousAge = 0L
+        bleObjects
+                .map { Pair(it, (referenceTimestamp - TimeUnit.MILLISECONDS.toSeconds(it.date.time)).coerceAtLeast(0)) }
+                .sortedBy { it.second }
+                .forEach { (bleObject, age) ->
+                    output.write(addressToBytes(bleObject.address))
+                    output.write(bleObject.rssi.coerceIn(Byte.MIN_VALUE.toInt(), Byte.MAX_VALUE.toInt()))
+                    writeVarint(output, age - previousAge)
+                    previousAge = age
+                }
+        return String(Base64.encodeBase64(output.toByteArray()), Charsets.US_ASCII)
+    }
+
+    @JvmStatic
+    @Throws(IllegalArgumentException::class)
+    fun decode(packed: String, referenceTimestamp: Long): ArrayList<BLEObject> {
+        val bytes = Base64.decodeBase64(packed.toByteArray(Charsets.US_ASCII))
+        require(bytes.isNotEmpty() && bytes[0].toInt() == VERSION) { "Unsupported compact BLE encoding" }
+        val result = ArrayList<BLEObject>()
+        var position = 1
+        var age = 0L
+        while (position < bytes.size) {
+            require(position + ADDRESS_LENGTH < bytes.size) { "Truncated compact BLE record" }
+            val address = bytesToAddress(bytes, position)
+            position += ADDRESS_LENGTH
+            val rssi = bytes[position++].toInt()
+            var delta = 0L
+            var shift = 0
+            do {
+                require(position < bytes.size) { "Truncated compact BLE record" }
+                val b = bytes[position++].toInt()
+                delta = delta or ((b and 0x7f).toLong() shl shift)
+                shift += 7
+            } while (b and 0x80 != 0)
+            age += delta
+            result.add(BLEObject(rssi = rssi, date = Date(TimeUnit.SECONDS.toMillis(referenceTimestamp - age)), address = address))
+        }
+        return result
+    }
+
+    private fun writeVarint(output: ByteArrayOutputStream, value: Long) {
+        var v = value
+        while (v and 0x7fL.inv() != 0L) {
+            output.write(((v and 0x7f) or 0x80).toInt())
+            v = v ushr 7
+        }
+        output.write(v.toInt())
+    }
+
+    /**
+     * Addresses are expected in the usual colon separated hex form (AA:BB:CC:DD:EE:FF). Anything else
+     * is folded into 6 bytes of its hash, which is stable but not reversible.
+     */
+    private fun addressToBytes(address: String): ByteArray {
+        val parts = address.split(":")
+        if (parts.size == ADDRESS_LENGTH) {
+            try {
+                return parts.map { it.toInt(16).toByte() }.toByteArray()
+            } catch (e: NumberFormatException) {
+                // fall through to hashing
+            }
+        }
+        val hash = address.hashCode().toLong() and 0xffffffffL
+        return ByteArray(ADDRESS_LENGTH) { i -> if (i < 2) 0.toByte() else (hash shr (8 * (ADDRESS_LENGTH - 1 - i))).toByte() }
+    }
+
+    private fun bytesToAddress(bytes: ByteArray, offset: Int): String {
+        return (offset until offset + ADDRESS_LENGTH).joinToString(":") { String.format(Locale.ROOT, "%02X", bytes[it]) }
+    }
+}
@@ -42,6 +42,12 @@ abstract class MessageBase : BaseObservable() {
     @JsonIgnore
     var qos = 0
 
+    // When this was put on the outgoing queue, as System.nanoTime()
+    @get:JsonIgnore
+    @set:JsonIgnore
+    @JsonIgnore
+    var queuedAt = 0L
+
     @get:JsonIgnore
     @set:JsonIgnore
     @JsonIgnore
@@ -19,7 +19,7 @@ class MessageCmd : MessageBase() {
     }
 
     override fun addMqttPreferences(preferences: Preferences) {
-        topic = preferences.pubTopicCommands
+        topic = preferences.snapshot.pubTopicCommands
     }
 
     override val baseTopicSuffix: String?
@@ -52,6 +52,10 @@ open class MessageLocation(private val dep: MessageWithCreatedAt = MessageCreate
     @JsonProperty("bleName")
     var bleName: String = ""
 
+    // Compact alternative to bleObjects, see BLEObjectCodec
+    @JsonProperty("blec")
+    var bleCompact: String? = null
+
     private var _contact: WeakReference<FusedContact?>? = null
     var conn: String? = null
 
@@ -106,10 +110,30 @@ open class MessageLocation(private val dep: MessageWithCreatedAt = MessageCreate
         return String.format("Location id=%s: (%s,%s)", this.messageId, latitude, longitude)
     }
 
+    /**
+     * Replaces the verbose bleObjects list with its compact encoding
+     */
+    fun packBleObjects() {
+        if (bleObjects.isEmpty()) return
+        bleCompact = BLEObjectCodec.encode(bleObjects, timestamp)
+        bleObjects = ArrayList()
+    }
+
+    /**
+     * Restores bleObjects from a received compact encoding
+     */
+    @Throws(IllegalArgumentException::class)
+    fun unpackBleObjects() {
+        val packed = bleCompact ?: return
+        bleObjects = BLEObjectCodec.decode(packed, timestamp)
+        bleCompact = null
+    }
+
     override fun addMqttPreferences(preferences: Preferences) {
-        topic = preferences.pubTopicLocations
-        qos = preferences.pubQosLocations
-        retained = preferences.pubRetainLocations
+        val settings = preferences.snapshot
+        topic = settings.pubTopicLocations
+        qos = settings.pubQosLocations
+        retained = settings.pubRetainLocations
     }
 
     companion object {
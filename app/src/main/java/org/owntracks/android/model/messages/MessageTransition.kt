@@ -53,9 +53,10 @@ class MessageTransition : MessageBase() {
     var latitude = 0.0
 
     override fun addMqttPreferences(preferences: Preferences) {
-        topic = preferences.pubTopicEvents
-        qos = preferences.pubQosEvents
-        retained = preferences.pubRetainEvents
+        val settings = preferences.snapshot
+        topic = settings.pubTopicEvents
+        qos = settings.pubQosEvents
+        retained = settings.pubRetainEvents
     }
 
     override val baseTopicSuffix: String?
@@ -31,9 +31,10 @@ class MessageWaypoint : MessageBase() {
     }
 
     override fun addMqttPreferences(preferences: Preferences) {
-        topic = preferences.pubTopicWaypoints
-        qos = preferences.pubQosWaypoints
-        retained = preferences.pubRetainWaypoints
+        val settings = preferences.snapshot
+        topic = settings.pubTopicWaypoints
+        qos = settings.pubQosWaypoints
+        retained = settings.pubRetainWaypoints
     }
 
     override val baseTopicSuffix: String?
@@ -12,9 +12,10 @@ import org.owntracks.android.support.Preferences
 class MessageWaypoints : MessageBase() {
     var waypoints: MessageWaypointCollection? = null
     override fun addMqttPreferences(preferences: Preferences) {
-        topic = preferences.pubTopicWaypoints
-        qos = preferences.pubQosWaypoints
-        retained = preferences.pubRetainWaypoints
+        val settings = preferences.snapshot
+        topic = settings.pubTopicWaypoints
+        qos = settings.pubQosWaypoints
+        retained = settings.pubRetainWaypoints
     }
 
     companion object {
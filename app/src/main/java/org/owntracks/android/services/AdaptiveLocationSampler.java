@@ -0,0 +1,217 @@
+package org.owntracks.android.services;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the location request for significant changes mode from how fast the device has been moving over its
+ * last few locations. While stationary it samples every {@link Bounds#maxIntervalMillis} and ignores
+ * anything closer than the configured displacement; while moving it aims for one location every
+ * displacement's worth of travel, which is often while driving and less often while walking, but never more
+ * often than {@link Bounds#minIntervalMillis}.
+ * <p>
+ * Priorities are the same 0-3 scale as the locatorPriority preference, and the configured priority is the
+ * highest this will ask for.
+ */
+final class AdaptiveLocationSampler {
+    static final int PRIORITY_NO_POWER = 0;
+    static final int PRIORITY_LOW_POWER = 1;
+    static final int PRIORITY_BALANCED_POWER_ACCURACY = 2;
+    static final int PRIORITY_HIGH_ACCURACY = 3;
+
+    // Metres per second. Below this we're stationary (allowing for drift), above DRIVING_SPEED we're in a vehicle
+    static final float STATIONARY_SPEED = 0.5f;
+    static final float DRIVING_SPEED = 5f;
+
+    // Only this many of the most recent locations, from this far back, say how fast we're going now
+    static final int HISTORY_SIZE = 3;
+    static final long HISTORY_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    static final class Fix {
+        final long timeMillis;
+        final double latitude;
+        final double longitude;
+        // NaN if not known
+        final float accuracy;
+        final float speed;
+
+        Fix(long timeMillis, double latitude, double longitude, float accuracy, float speed) {
+            this.timeMillis = timeMillis;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+            this.speed = speed;
+        }
+    }
+
+    static final class Bounds {
+        final long minIntervalMillis;
+        final long maxIntervalMillis;
+        final int displacementMeters;
+        final int maxPriority;
+
+        Bounds(long minIntervalMillis, long maxIntervalMillis, int displacementMeters, int maxPriority) {
+            this.minIntervalMillis = Math.max(1, Math.min(minIntervalMillis, maxIntervalMillis));
+            this.maxIntervalMillis = Math.max(this.minIntervalMillis, maxIntervalMillis);
+            this.displacementMeters = Math.max(0, displacementMeters);
+            this.maxPriority = maxPriority;
+        }
+    }
+
+    static final class Policy {
+        final long intervalMillis;
+        final int displacementMeters;
+        final int priority;
+
+        Policy(long intervalMillis, int displacementMeters, int priority) {
+            this.intervalMillis = intervalMillis;
+            this.displacementMeters = displacementMeters;
+            this.priority = priority;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Policy)) return false;
+            Policy policy = (Policy) o;
+            return intervalMillis == policy.intervalMillis && displacementMeters == policy.displacementMeters && priority == policy.priority;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Long.valueOf(intervalMillis).hashCode() + displacementMeters) + priority;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Policy{interval=" + TimeUnit.MILLISECONDS.toSeconds(intervalMillis) + "s, displacement=" + displacementMeters + "m, priority=" + priority + "}";
+        }
+    }
+
+    private AdaptiveLocationSampler() {
+    }
+
+    /**
+     * @param history the device's recent locations, oldest first
+     */
+    @NonNull
+    static Policy choose(@NonNull List<Fix> history, @NonNull Bounds bounds) {
+        List<Fix> recent = recent(history);
+        double speed = estimateSpeed(history, recent, bounds);
+        float accuracy = median(accuracies(recent));
+
+        if (Double.isNaN(speed) || speed < STATIONARY_SPEED) {
+            // Anything closer than the accuracy is as likely to be drift as movement
+            int displacement = Float.isNaN(accuracy) ? bounds.displacementMeters : Math.max(bounds.displacementMeters, Math.round(accuracy));
+            return new Policy(bounds.maxIntervalMillis, displacement, Math.min(PRIORITY_BALANCED_POWER_ACCURACY, bounds.maxPriority));
+        }
+
+        int priority = speed >= DRIVING_SPEED ? PRIORITY_HIGH_ACCURACY : PRIORITY_BALANCED_POWER_ACCURACY;
+        // Locations that are less accurate than the distance we want between them don't tell us much
+        if (!Float.isNaN(accuracy) && accuracy > bounds.displacementMeters) {
+            priority = PRIORITY_HIGH_ACCURACY;
+        }
+        long interval = quantize((long) (bounds.displacementMeters / speed * 1000), bounds);
+        // Deliver every location while moving, so that we notice stopping from the locations themselves
+        return new Policy(interval, 0, Math.min(priority, bounds.maxPriority));
+    }
+
+    /**
+     * @return metres per second, or NaN if there's nothing to go on
+     */
+    private static double estimateSpeed(List<Fix> history, List<Fix> recent, Bounds bounds) {
+        if (recent.isEmpty()) {
+            return Double.NaN;
+        }
+        if (!Float.isNaN(recent.get(recent.size() - 1).speed)) {
+            List<Float> speeds = new ArrayList<>(recent.size());
+            for (Fix fix : recent) {
+                if (!Float.isNaN(fix.speed)) {
+                    speeds.add(fix.speed);
+                }
+            }
+            return median(speeds);
+        }
+
+        Fix first = recent.get(0);
+        Fix last = recent.get(recent.size() - 1);
+        if (recent.size() == 1) {
+            if (history.size() < 2) {
+                return Double.NaN;
+            }
+            first = history.get(history.size() - 2);
+        }
+        // A location after a long quiet spell got through the displacement filter, so the move most likely
+        // happened in the last interval rather than evenly over the whole time.
+        long millis = Math.min(last.timeMillis - first.timeMillis, bounds.maxIntervalMillis);
+        if (millis <= 0) {
+            return Double.NaN;
+        }
+        double distance = distanceMeters(first.latitude, first.longitude, last.latitude, last.longitude);
+        // Less than this could just be the two locations' errors
+        float uncertainty = Math.max(Float.isNaN(first.accuracy) ? 0 : first.accuracy, Float.isNaN(last.accuracy) ? 0 : last.accuracy) / 2;
+        if (distance <= uncertainty) {
+            return 0;
+        }
+        return distance * 1000 / millis;
+    }
+
+    private static List<Fix> recent(List<Fix> history) {
+        if (history.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long newest = history.get(history.size() - 1).timeMillis;
+        int from = history.size();
+        while (from > 0 && history.size() - from < HISTORY_SIZE && newest - history.get(from - 1).timeMillis <= HISTORY_WINDOW_MILLIS) {
+            from--;
+        }
+        return history.subList(from, history.size());
+    }
+
+    /**
+     * Rounds to a power of two times the minimum interval, so that small changes in speed don't mean a new
+     * location request every time.
+     */
+    private static long quantize(long intervalMillis, Bounds bounds) {
+        long interval = bounds.minIntervalMillis;
+        while (interval < bounds.maxIntervalMillis && interval * 3 / 2 < intervalMillis) {
+            interval *= 2;
+        }
+        return Math.min(interval, bounds.maxIntervalMillis);
+    }
+
+    private static List<Float> accuracies(List<Fix> fixes) {
+        List<Float> accuracies = new ArrayList<>(fixes.size());
+        for (Fix fix : fixes) {
+            if (!Float.isNaN(fix.accuracy)) {
+                accuracies.add(fix.accuracy);
+            }
+        }
+        return accuracies;
+    }
+
+    private static float median(List<Float> values) {
+        if (values.isEmpty()) {
+            return Float.NaN;
+        }
+        List<Float> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int middle = sorted.size() / 2;
+        return sorted.size() % 2 == 1 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+    }
+
+    static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2) +
+                Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
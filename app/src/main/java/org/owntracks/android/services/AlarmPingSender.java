@@ -0,0 +1,204 @@
+package org.owntracks.android.services;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Sends MQTT keepalive pings from inexact AlarmManager alarms instead of paho's own Timer, which doesn't
+ * run while the device is asleep. Each alarm is allowed to go off up to a quarter of the keepalive late, so
+ * Android can batch it with other wakeups; the broker allows one and a half keepalives before it gives up
+ * on us.
+ * <p>
+ * When the alarm goes off, paho only sends a ping if nothing else has been sent for the keepalive interval.
+ * {@link #onPublished()} also pushes the alarm back after a publish (e.g. of a location fix the device woke
+ * up for anyway), so that it doesn't wake the device just to find nothing needs doing.
+ */
+class AlarmPingSender implements MqttPingSender {
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    interface Alarm {
+        void set(long triggerAtElapsedRealtime, long windowMillis);
+
+        void cancel();
+    }
+
+    interface ActivityChecker {
+        /**
+         * Pings the broker if the connection has been idle for the keepalive interval
+         *
+         * @param done called once the ping has completed, or straight away if no ping was needed
+         */
+        void checkForActivity(@NonNull Runnable done);
+    }
+
+    private final Clock clock;
+    private final Alarm alarm;
+
+    private ActivityChecker activityChecker;
+    private long keepAliveMillis;
+    private boolean started = false;
+    private long lastDeferredAt;
+
+    AlarmPingSender(@NonNull Context context) {
+        this.clock = SystemClock::elapsedRealtime;
+        this.alarm = new AndroidAlarm(context, this::onAlarm);
+    }
+
+    AlarmPingSender(@NonNull Clock clock, @NonNull Alarm alarm) {
+        this.clock = clock;
+        this.alarm = alarm;
+    }
+
+    @Override
+    public void init(ClientComms comms) {
+        init(comms.getKeepAlive(), done -> {
+            MqttToken token = comms.checkForActivity(new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    done.run();
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    Timber.tag("MQTT").w(exception, "Keepalive ping failed");
+                    done.run();
+                }
+            });
+            if (token == null) {
+                done.run();
+            }
+        });
+    }
+
+    synchronized void init(long keepAliveMillis, @NonNull ActivityChecker activityChecker) {
+        this.keepAliveMillis = keepAliveMillis;
+        this.activityChecker = activityChecker;
+    }
+
+    @Override
+    public synchronized void start() {
+        started = true;
+        lastDeferredAt = clock.elapsedRealtime();
+        schedule(keepAliveMillis);
+    }
+
+    @Override
+    public synchronized void stop() {
+        started = false;
+        alarm.cancel();
+    }
+
+    @Override
+    public synchronized void schedule(long delayInMilliseconds) {
+        if (!started) {
+            return;
+        }
+        alarm.set(clock.elapsedRealtime() + delayInMilliseconds, delayInMilliseconds / 4);
+    }
+
+    /**
+     * A publish counts as activity, so the next ping isn't due until a whole keepalive interval from now. The
+     * alarm is moved at most once every half interval, so publishing a lot doesn't mean a lot of AlarmManager
+     * calls; at worst it goes off half an interval early and paho schedules it again.
+     */
+    synchronized void onPublished() {
+        if (!started || keepAliveMillis <= 0) {
+            return;
+        }
+        long now = clock.elapsedRealtime();
+        if (now - lastDeferredAt < keepAliveMillis / 2) {
+            return;
+        }
+        lastDeferredAt = now;
+        schedule(keepAliveMillis);
+    }
+
+    void onAlarm(@NonNull Runnable done) {
+        ActivityChecker checker;
+        synchronized (this) {
+            if (!started || activityChecker == null) {
+                done.run();
+                return;
+            }
+            checker = activityChecker;
+        }
+        checker.checkForActivity(done);
+    }
+
+    private interface AlarmListener {
+        void onAlarm(@NonNull Runnable done);
+    }
+
+    private static final class AndroidAlarm extends BroadcastReceiver implements Alarm {
+        private static final AtomicInteger instances = new AtomicInteger();
+        // Long enough for a ping and its response on a slow network
+        private static final long WAKELOCK_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+        private final Context context;
+        private final AlarmListener listener;
+        private final String action;
+        private PendingIntent pendingIntent;
+
+        AndroidAlarm(Context context, AlarmListener listener) {
+            this.context = context.getApplicationContext();
+            this.listener = listener;
+            this.action = context.getPackageName() + ".MQTT_PING." + instances.incrementAndGet();
+        }
+
+        @Override
+        public synchronized void set(long triggerAtElapsedRealtime, long windowMillis) {
+            if (pendingIntent == null) {
+                context.registerReceiver(this, new IntentFilter(action));
+                pendingIntent = PendingIntent.getBroadcast(context, 0, new Intent(action).setPackage(context.getPackageName()), PendingIntent.FLAG_UPDATE_CURRENT);
+            }
+            alarmManager().setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAtElapsedRealtime, windowMillis, pendingIntent);
+        }
+
+        @Override
+        public synchronized void cancel() {
+            if (pendingIntent == null) {
+                return;
+            }
+            alarmManager().cancel(pendingIntent);
+            pendingIntent.cancel();
+            pendingIntent = null;
+            context.unregisterReceiver(this);
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            PowerManager.WakeLock wakeLock = ((PowerManager) context.getSystemService(Context.POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "OwnTracks:MqttPing");
+            wakeLock.acquire(WAKELOCK_TIMEOUT);
+            listener.onAlarm(() -> {
+                if (wakeLock.isHeld()) {
+                    wakeLock.release();
+                }
+            });
+        }
+
+        private AlarmManager alarmManager() {
+            return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        }
+    }
+}
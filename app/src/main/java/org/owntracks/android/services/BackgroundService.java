@@ -53,6 +53,7 @@ import org.owntracks.android.model.messages.MessageLocation;
 import org.owntracks.android.model.messages.MessageTransition;
 import org.owntracks.android.services.worker.Scheduler;
 import org.owntracks.android.support.DateFormatter;
+import org.owntracks.android.support.EventChannel;
 import org.owntracks.android.support.Events;
 import org.owntracks.android.support.Preferences;
 import org.owntracks.android.support.RunThingsOnOtherThreads;
@@ -61,12 +62,14 @@ import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedL
 import org.owntracks.android.ui.map.MapActivity;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
+import dagger.Lazy;
 import dagger.android.DaggerService;
 import timber.log.Timber;
 
@@ -100,6 +103,7 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
     private LocationCallback locationCallbackOnDemand;
     private MessageLocation lastLocationMessage;
     private MessageProcessor.EndpointState lastEndpointState = MessageProcessor.EndpointState.INITIAL;
+    private volatile AdaptiveLocationSampler.Policy adaptivePolicy;
 
 
     private NotificationCompat.Builder activeNotificationCompatBuilder;
@@ -109,8 +113,10 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
     private NotificationManagerCompat notificationManagerCompat;
 
     private final LinkedList<Spannable> activeNotifications = new LinkedList<>();
+    private final GeofenceRegistry geofenceRegistry = new GeofenceRegistry();
     private int lastQueueLength = 0;
     private Notification stackNotification;
+    private final List<EventChannel.Subscription> subscriptions = new ArrayList<>();
 
     @Inject
     Preferences preferences;
@@ -125,7 +131,7 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
     LocationProcessor locationProcessor;
 
     @Inject
-    GeocoderProvider geocoderProvider;
+    Lazy<GeocoderProvider> geocoderProvider;
 
     @Inject
     ContactsRepo contactsRepo;
@@ -158,9 +164,9 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
         locationCallback = new LocationCallback() {
             @Override
             public void onLocationResult(LocationResult locationResult) {
-                Timber.e("Background location result received: %s", locationResult.getLastLocation().getTime());
+                Timber.e("Background location result received: %s locations, last at %s", locationResult.getLocations().size(), locationResult.getLastLocation().getTime());
                 super.onLocationResult(locationResult);
-                onLocationChanged(locationResult.getLastLocation(),MessageLocation.REPORT_TYPE_DEFAULT);
+                onLocationsChanged(locationResult.getLocations(), MessageLocation.REPORT_TYPE_DEFAULT);
             }
         };
 
@@ -184,6 +190,9 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
 
         eventBus.register(this);
         eventBus.postSticky(new Events.ServiceStarted());
+        subscriptions.add(messageProcessor.getEndpointStates().observe(runThingsOnOtherThreads.getBackgroundExecutor(), this::onEndpointStateChanged));
+        subscriptions.add(messageProcessor.getQueueStates().observe(runThingsOnOtherThreads.getBackgroundExecutor(), this::onQueueChanged));
+        subscriptions.add(locationRepo.getLocations().observe(runThingsOnOtherThreads.getBackgroundExecutor(), this::onLocationUpdated));
 
         messageProcessor.initialize();
 
@@ -193,6 +202,10 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
 
     @Override
     public void onDestroy() {
+        for (EventChannel.Subscription subscription : subscriptions) {
+            subscription.cancel();
+        }
+        subscriptions.clear();
         stopForeground(true);
         preferences.unregisterOnPreferenceChangedListener(this);
         messageProcessor.stopSendingMessages();
@@ -467,12 +480,33 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
             Timber.e("no location provided");
             return;
         }
-//        Timber.v("location update received: tst:%s, acc:%s, lat:%s, lon:%s type:%s", location.getTime(), location.getAccuracy(), location.getLatitude(), location.getLongitude(), reportType);
+        onLocationsChanged(Collections.singletonList(location), reportType);
+    }
 
-        if (location.getTime() > locationRepo.getCurrentLocationTime()) {
-            locationProcessor.onLocationChanged(location,reportType);
-        } else {
-            Timber.v("Not re-sending message with same timestamp as last");
+    /**
+     * Processes a batch of locations from the fused provider oldest first, as if each had arrived on its own,
+     * but hands all the resulting messages to the sender in one go.
+     */
+    private void onLocationsChanged(@NonNull List<Location> locations, @Nullable String reportType) {
+        if (locations.isEmpty()) {
+            Timber.e("no location provided");
+            return;
+        }
+        messageProcessor.queueBatchForSending(() -> {
+            for (Location location : locations) {
+//                Timber.v("location update received: tst:%s, acc:%s, lat:%s, lon:%s type:%s", location.getTime(), location.getAccuracy(), location.getLatitude(), location.getLongitude(), reportType);
+                if (location.getTime() > locationRepo.getCurrentLocationTime()) {
+                    locationProcessor.onLocationChanged(location, reportType);
+                } else {
+                    Timber.v("Not re-sending message with same timestamp as last");
+                }
+            }
+        });
+
+        Location location = locations.get(locations.size() - 1);
+        if (geofenceRegistry.needsReselection(location.getLatitude(), location.getLongitude())) {
+            Timber.d("moved away from last geofence selection, updating nearest geofences");
+            setupGeofences();
         }
     }
 
@@ -517,16 +551,30 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
                 request.setPriority(LocationRequest.PRIORITY_LOW_POWER);
                 break;
             case LocationProcessor.MONITORING_SIGNIFICANT:
+                if (preferences.getLocatorAdaptive()) {
+                    AdaptiveLocationSampler.Policy policy = chooseAdaptivePolicy();
+                    adaptivePolicy = policy;
+                    request.setInterval(policy.intervalMillis);
+                    request.setSmallestDisplacement(policy.displacementMeters);
+                    request.setPriority(getLocationRequestPriority(policy.priority));
+                    break;
+                }
                 request.setInterval(TimeUnit.SECONDS.toMillis(preferences.getLocatorInterval()));
                 request.setSmallestDisplacement(preferences.getLocatorDisplacement());
-                request.setPriority(getLocationRequestPriority());
+                request.setPriority(getLocationRequestPriority(preferences.getLocatorPriority()));
                 break;
             case LocationProcessor.MONITORING_MOVE:
                 request.setInterval(TimeUnit.SECONDS.toMillis(1));
                 request.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
                 break;
         }
-        Timber.d("Location update request params: mode %s, interval (s):%s, fastestInterval (s):%s, priority:%s, displacement (m):%s", monitoring, TimeUnit.MILLISECONDS.toSeconds(request.getInterval()), TimeUnit.MILLISECONDS.toSeconds(request.getFastestInterval()), request.getPriority(), request.getSmallestDisplacement());
+        // Lets the fused provider hold on to locations and deliver them in batches, so that we only wake up
+        // once per batch. It only batches when this is at least twice the interval.
+        long maxWait = TimeUnit.SECONDS.toMillis(preferences.getLocatorMaxWait());
+        if (monitoring != LocationProcessor.MONITORING_QUIET && monitoring != LocationProcessor.MONITORING_MANUAL && maxWait >= 2 * request.getInterval()) {
+            request.setMaxWaitTime(maxWait);
+        }
+        Timber.d("Location update request params: mode %s, interval (s):%s, fastestInterval (s):%s, maxWait (s):%s, priority:%s, displacement (m):%s", monitoring, TimeUnit.MILLISECONDS.toSeconds(request.getInterval()), TimeUnit.MILLISECONDS.toSeconds(request.getFastestInterval()), TimeUnit.MILLISECONDS.toSeconds(request.getMaxWaitTime()), request.getPriority(), request.getSmallestDisplacement());
         fusedLocationClient.flushLocations();
         fusedLocationClient.requestLocationUpdates(request, locationCallback, runThingsOnOtherThreads.getBackgroundLooper())
                 .addOnSuccessListener(_void -> Timber.d("Location update request success"))
@@ -534,8 +582,8 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
                 .addOnCanceledListener(() -> Timber.w("Location update request cancelled"));
     }
 
-    private int getLocationRequestPriority() {
-        switch (preferences.getLocatorPriority()) {
+    private int getLocationRequestPriority(int locatorPriority) {
+        switch (locatorPriority) {
             case 0:
                 return LocationRequest.PRIORITY_NO_POWER;
             case 1:
@@ -548,14 +596,49 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
         }
     }
 
+    @NonNull
+    private AdaptiveLocationSampler.Policy chooseAdaptivePolicy() {
+        List<AdaptiveLocationSampler.Fix> history = new ArrayList<>();
+        for (Location location : locationRepo.getRecentLocations()) {
+            history.add(new AdaptiveLocationSampler.Fix(location.getTime(), location.getLatitude(), location.getLongitude(), location.hasAccuracy() ? location.getAccuracy() : Float.NaN, location.hasSpeed() ? location.getSpeed() : Float.NaN));
+        }
+        AdaptiveLocationSampler.Bounds bounds = new AdaptiveLocationSampler.Bounds(
+                TimeUnit.SECONDS.toMillis(preferences.getLocatorAdaptiveMinInterval()),
+                TimeUnit.SECONDS.toMillis(preferences.getLocatorInterval()),
+                preferences.getLocatorDisplacement(),
+                preferences.getLocatorPriority()
+        );
+        return AdaptiveLocationSampler.choose(history, bounds);
+    }
+
+    /**
+     * Asks for locations differently if how fast we're moving calls for it. Only re-requests location updates
+     * when the policy actually changes.
+     */
+    private void updateAdaptiveLocationRequest() {
+        if (preferences.getMonitoring() != LocationProcessor.MONITORING_SIGNIFICANT || !preferences.getLocatorAdaptive()) {
+            return;
+        }
+        AdaptiveLocationSampler.Policy policy = chooseAdaptivePolicy();
+        if (!policy.equals(adaptivePolicy)) {
+            Timber.d("Adaptive location policy changed from %s to %s", adaptivePolicy, policy);
+            setupLocationRequest();
+        }
+    }
+
     private PendingIntent getGeofencePendingIntent() {
         Intent geofeneIntent = new Intent(this, BackgroundService.class);
         geofeneIntent.setAction(INTENT_ACTION_SEND_EVENT_CIRCULAR);
         return PendingIntent.getBroadcast(this, INTENT_REQUEST_CODE_GEOFENCE, geofeneIntent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
+    /**
+     * Called from the EventBus background thread when waypoints change and from the background handler when
+     * the device has moved far enough for a different set of geofences. It's synchronized so that one call's
+     * removes and adds reach the geofencing client before the next call works out what has changed.
+     */
     @SuppressWarnings("MissingPermission")
-    private void setupGeofences() {
+    private synchronized void setupGeofences() {
         if (missingLocationPermission()) {
             Timber.e("missing location permission");
             return;
@@ -563,22 +646,36 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
 
         Timber.d("loader thread:%s, isMain:%s", Looper.myLooper(), Looper.myLooper() == Looper.getMainLooper());
 
-        LinkedList<Geofence> geofences = new LinkedList<>();
         List<WaypointModel> loadedWaypoints = waypointsRepo.getAllWithGeofences();
+        Location currentLocation = locationRepo.getCurrentLocation();
+        GeofenceRegistry.Diff diff = currentLocation != null ?
+                geofenceRegistry.update(loadedWaypoints, true, currentLocation.getLatitude(), currentLocation.getLongitude()) :
+                geofenceRegistry.update(loadedWaypoints, false, 0, 0);
+        if (diff.isEmpty()) {
+            return;
+        }
+        Timber.d("geofences to add:%s, to remove:%s", diff.toAdd.size(), diff.toRemove.size());
 
+        if (!diff.toRemove.isEmpty()) {
+            mGeofencingClient.removeGeofences(diff.toRemove);
+        }
 
-        for (WaypointModel w : loadedWaypoints){
+        LinkedList<Geofence> geofences = new LinkedList<>();
+        List<String> requestIds = new LinkedList<>();
+        for (WaypointModel w : diff.toAdd){
             Timber.d("id:%s, desc:%s, lat:%s, lon:%s, rad:%s", w.getId(), w.getDescription(), w.getGeofenceLatitude(), w.getGeofenceLongitude(), w.getGeofenceRadius());
 
             try {
                 geofences.add(new Geofence.Builder()
-                        .setRequestId(Long.toString(w.getId()))
+                        .setRequestId(GeofenceRegistry.requestIdFor(w))
                         .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT)
                         .setNotificationResponsiveness((int) TimeUnit.MINUTES.toMillis(2))
                         .setCircularRegion(w.getGeofenceLatitude(), w.getGeofenceLongitude(), w.getGeofenceRadius())
                         .setExpirationDuration(Geofence.NEVER_EXPIRE).build());
+                requestIds.add(GeofenceRegistry.requestIdFor(w));
             } catch (IllegalArgumentException e) {
                 Timber.e(e, "Invalid geofence parameter");
+                geofenceRegistry.forget(Collections.singletonList(GeofenceRegistry.requestIdFor(w)));
             }
         }
 
@@ -586,7 +683,11 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
             GeofencingRequest.Builder b = new GeofencingRequest.Builder();
             b.setInitialTrigger(Geofence.GEOFENCE_TRANSITION_ENTER);
             GeofencingRequest request = b.addGeofences(geofences).build();
-            mGeofencingClient.addGeofences(request, getGeofencePendingIntent());
+            mGeofencingClient.addGeofences(request, getGeofencePendingIntent())
+                    .addOnFailureListener(e -> {
+                        Timber.e(e, "Unable to add geofences");
+                        geofenceRegistry.forget(requestIds);
+                    });
         }
     }
 
@@ -594,7 +695,8 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
         return ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_DENIED;
     }
 
-    private void removeGeofences() {
+    private synchronized void removeGeofences() {
+        geofenceRegistry.clear();
         mGeofencingClient.removeGeofences(getGeofencePendingIntent());
     }
 
@@ -603,7 +705,6 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
     public void onEvent(Events.WaypointAdded e) {
         locationProcessor.publishWaypointMessage(e.getWaypointModel()); // TODO: move to waypointsRepo
         if(e.getWaypointModel().hasGeofence()) {
-            removeGeofences();
             setupGeofences();
         }
     }
@@ -612,7 +713,6 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
     @Subscribe(threadMode = ThreadMode.BACKGROUND)
     public void onEvent(Events.WaypointUpdated e) {
         locationProcessor.publishWaypointMessage(e.getWaypointModel()); // TODO: move to waypointsRepo
-        removeGeofences();
         setupGeofences();
     }
 
@@ -620,11 +720,19 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
     @Subscribe(threadMode = ThreadMode.BACKGROUND)
     public void onEvent(Events.WaypointRemoved e) {
         if(e.getWaypointModel().hasGeofence()) {
-            removeGeofences();
             setupGeofences();
         }
     }
 
+    @SuppressWarnings("unused")
+    @Subscribe(threadMode = ThreadMode.BACKGROUND)
+    public void onEvent(Events.WaypointsImported e) {
+        for (WaypointModel w : e.getWaypointModels()) {
+            locationProcessor.publishWaypointMessage(w); // TODO: move to waypointsRepo
+        }
+        setupGeofences();
+    }
+
     @SuppressWarnings("unused")
     @Subscribe(threadMode = ThreadMode.BACKGROUND)
     public void onEvent(Events.ModeChanged e) {
@@ -649,18 +757,13 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
             sendEventNotification(message);
     }
 
-    @SuppressWarnings("unused")
-    @Subscribe(threadMode = ThreadMode.BACKGROUND)
-    public void onEvent(MessageLocation messageLocation) {
-
-    }
-    @Subscribe(threadMode = ThreadMode.BACKGROUND)
-    public void onEvent(Location location) {
+    private void onLocationUpdated(Location location) {
         MessageLocation messageLocation = MessageLocation.fromLocation(location,new ArrayList<>());
         if (lastLocationMessage == null || lastLocationMessage.getTimestamp() < messageLocation.getTimestamp()) {
             this.lastLocationMessage = messageLocation;
-            geocoderProvider.resolve(messageLocation, this);
+            geocoderProvider.get().resolve(messageLocation, this);
         }
+        updateAdaptiveLocationRequest();
     }
 
     public void onGeocodingProviderResult(MessageLocation m) {
@@ -669,17 +772,13 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
         }
     }
 
-    @SuppressWarnings("unused")
-    @Subscribe(sticky = true)
-    public void onEvent(MessageProcessor.EndpointState state) {
+    private void onEndpointStateChanged(MessageProcessor.EndpointState state) {
         Timber.d(state.getError(), "endpoint state changed %s. Message: %s", state.getLabel(this), state.getMessage());
         this.lastEndpointState = state;
         updateOngoingNotification();
     }
 
-    @SuppressWarnings("unused")
-    @Subscribe(sticky = true)
-    public void onEvent(Events.QueueChanged e) {
+    private void onQueueChanged(Events.QueueChanged e) {
         this.lastQueueLength = e.getNewLength();
         updateOngoingNotification();
     }
@@ -746,6 +845,9 @@ public class BackgroundService extends DaggerService implements OnCompleteListen
         if (preferences.getPreferenceKey(R.string.preferenceKeyLocatorInterval).equals(key) ||
                 preferences.getPreferenceKey(R.string.preferenceKeyLocatorDisplacement).equals(key) ||
                 preferences.getPreferenceKey(R.string.preferenceKeyLocatorPriority).equals(key) ||
+                preferences.getPreferenceKey(R.string.preferenceKeyLocatorMaxWait).equals(key) ||
+                preferences.getPreferenceKey(R.string.preferenceKeyLocatorAdaptive).equals(key) ||
+                preferences.getPreferenceKey(R.string.preferenceKeyLocatorAdaptiveMinInterval).equals(key) ||
                 preferences.getPreferenceKey(R.string.preferenceKeyMoveModeLocatorInterval).equals(key)
         ) {
             Timber.d("locator preferences changed. Resetting location request.");
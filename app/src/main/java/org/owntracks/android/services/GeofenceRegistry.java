@@ -0,0 +1,181 @@
+package org.owntracks.android.services;
+
+import androidx.annotation.NonNull;
+
+import org.owntracks.android.data.WaypointModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the geofences that are currently registered with the platform, keyed by request id, so
+ * that waypoint changes can be applied as add / remove diffs instead of re-registering every geofence.
+ *
+ * The platform allows at most {@link #MAX_GEOFENCES} geofences per app. If there are more waypoints than
+ * that, only the ones nearest to the last known location are registered, and the selection is refreshed
+ * once the device has moved far enough from where it was last made.
+ */
+class GeofenceRegistry {
+    static final int MAX_GEOFENCES = 100;
+    static final double RESELECT_DISTANCE_METERS = 1000;
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    private final int maxGeofences;
+    private final Map<String, Registration> registered = new HashMap<>();
+    private boolean selectionLimited = false;
+    private double selectionLatitude;
+    private double selectionLongitude;
+    private boolean hasSelectionLocation = false;
+
+    GeofenceRegistry() {
+        this(MAX_GEOFENCES);
+    }
+
+    GeofenceRegistry(int maxGeofences) {
+        this.maxGeofences = maxGeofences;
+    }
+
+    static String requestIdFor(@NonNull WaypointModel w) {
+        return Long.toString(w.getId());
+    }
+
+    /**
+     * Works out which geofences need to be added and removed so that the registered set matches the given
+     * waypoints, and records the result as registered.
+     *
+     * @param waypoints all waypoints that have a geofence
+     * @param hasLocation whether latitude and longitude hold the current location
+     */
+    @NonNull
+    synchronized Diff update(@NonNull List<WaypointModel> waypoints, boolean hasLocation, double latitude, double longitude) {
+        List<WaypointModel> selected = waypoints;
+        selectionLimited = waypoints.size() > maxGeofences;
+        if (selectionLimited) {
+            selected = new ArrayList<>(waypoints);
+            if (hasLocation) {
+                Collections.sort(selected, (a, b) -> Double.compare(distanceToEdge(a, latitude, longitude), distanceToEdge(b, latitude, longitude)));
+            }
+            selected = selected.subList(0, maxGeofences);
+        }
+        hasSelectionLocation = hasLocation;
+        selectionLatitude = latitude;
+        selectionLongitude = longitude;
+
+        Map<String, WaypointModel> desired = new HashMap<>();
+        for (WaypointModel w : selected) {
+            desired.put(requestIdFor(w), w);
+        }
+
+        List<String> toRemove = new ArrayList<>();
+        for (String requestId : registered.keySet()) {
+            if (!desired.containsKey(requestId)) {
+                toRemove.add(requestId);
+            }
+        }
+        for (String requestId : toRemove) {
+            registered.remove(requestId);
+        }
+
+        List<WaypointModel> toAdd = new ArrayList<>();
+        for (Map.Entry<String, WaypointModel> entry : desired.entrySet()) {
+            Registration registration = new Registration(entry.getValue());
+            // Re-adding a geofence with an existing request id replaces it, so changed regions only need an add
+            if (!registration.equals(registered.get(entry.getKey()))) {
+                registered.put(entry.getKey(), registration);
+                toAdd.add(entry.getValue());
+            }
+        }
+        return new Diff(toAdd, toRemove);
+    }
+
+    /**
+     * Whether the device has moved far enough that a different set of nearest geofences may apply.
+     * Always false while every waypoint fits within the limit.
+     */
+    synchronized boolean needsReselection(double latitude, double longitude) {
+        if (!selectionLimited) {
+            return false;
+        }
+        return !hasSelectionLocation || distanceBetween(selectionLatitude, selectionLongitude, latitude, longitude) > RESELECT_DISTANCE_METERS;
+    }
+
+    /**
+     * Drops geofences that failed to register, so they're retried on the next update
+     */
+    synchronized void forget(@NonNull List<String> requestIds) {
+        for (String requestId : requestIds) {
+            registered.remove(requestId);
+        }
+    }
+
+    synchronized void clear() {
+        registered.clear();
+        selectionLimited = false;
+        hasSelectionLocation = false;
+    }
+
+    synchronized Set<String> getRegisteredRequestIds() {
+        return new HashSet<>(registered.keySet());
+    }
+
+    private static double distanceToEdge(WaypointModel w, double latitude, double longitude) {
+        return distanceBetween(latitude, longitude, w.getGeofenceLatitude(), w.getGeofenceLongitude()) - w.getGeofenceRadius();
+    }
+
+    static double distanceBetween(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    static final class Diff {
+        @NonNull
+        final List<WaypointModel> toAdd;
+        @NonNull
+        final List<String> toRemove;
+
+        Diff(@NonNull List<WaypointModel> toAdd, @NonNull List<String> toRemove) {
+            this.toAdd = toAdd;
+            this.toRemove = toRemove;
+        }
+
+        boolean isEmpty() {
+            return toAdd.isEmpty() && toRemove.isEmpty();
+        }
+    }
+
+    private static final class Registration {
+        private final double latitude;
+        private final double longitude;
+        private final int radius;
+
+        Registration(WaypointModel w) {
+            this.latitude = w.getGeofenceLatitude();
+            this.longitude = w.getGeofenceLongitude();
+            this.radius = w.getGeofenceRadius();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Registration)) return false;
+            Registration that = (Registration) o;
+            return Double.compare(that.latitude, latitude) == 0 &&
+                    Double.compare(that.longitude, longitude) == 0 &&
+                    radius == that.radius;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(latitude) * 31 + Double.doubleToLongBits(longitude);
+            return (int) (bits ^ (bits >>> 32)) * 31 + radius;
+        }
+    }
+}
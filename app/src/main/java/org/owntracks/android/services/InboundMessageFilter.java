@@ -0,0 +1,185 @@
+package org.owntracks.android.services;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Drops received messages that would be thrown away after parsing anyway, before they're parsed. Only
+ * `_type` and `tst` are read from the payload, and reading stops as soon as both have been seen.
+ *
+ * A location is dropped if it's older than the last location accepted for the same contact, or older than
+ * the stale location cutoff. Any message with a `tst` is dropped if the exact same payload was recently
+ * accepted on the same topic, which is what retained messages on a reconnect and QoS 1 redeliveries look
+ * like. Encrypted payloads and anything that can't be scanned are always let through, and left for the
+ * full parse to deal with.
+ *
+ * Nothing is remembered about a message until it's been {@link #commit committed}, which happens once it's
+ * been parsed and validated, so a payload that turns out to be broken can't hold back the ones after it.
+ */
+class InboundMessageFilter {
+    private static final int MAX_CONTACTS = 4096;
+    private static final int MAX_RECENT = 1024;
+    private static final String TYPE_LOCATION = "location";
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final Map<String, Long> lastLocationTimestamps = new BoundedMap<>(MAX_CONTACTS);
+    private final Map<String, Boolean> recent = new BoundedMap<>(MAX_RECENT);
+    private final AtomicLong droppedStale = new AtomicLong();
+    private final AtomicLong droppedDuplicate = new AtomicLong();
+
+    /**
+     * @param contactKey      the contact the topic belongs to
+     * @param oldestTimestamp locations with a `tst` before this (in seconds) are dropped
+     * @return null if the message should be dropped without parsing, otherwise what to pass to
+     * {@link #commit} once the message has been parsed and found valid
+     */
+    @Nullable
+    Admission check(@NonNull String topic, @NonNull String contactKey, @NonNull byte[] payload, long oldestTimestamp) {
+        Header header = scan(payload);
+        if (header == null || header.timestamp == null) {
+            return Admission.UNTRACKED;
+        }
+        long timestamp = header.timestamp;
+        String recentKey = topic + '\u0000' + timestamp + '\u0000' + Arrays.hashCode(payload);
+        synchronized (this) {
+            if (TYPE_LOCATION.equals(header.type)) {
+                Long last = lastLocationTimestamps.get(contactKey);
+                if (timestamp < oldestTimestamp || (last != null && timestamp < last)) {
+                    droppedStale.incrementAndGet();
+                    Timber.v("dropping stale location on %s, tst:%s", topic, timestamp);
+                    return null;
+                }
+            }
+            if (recent.containsKey(recentKey)) {
+                droppedDuplicate.incrementAndGet();
+                Timber.v("dropping duplicate %s on %s, tst:%s", header.type, topic, timestamp);
+                return null;
+            }
+        }
+        return new Admission(contactKey, TYPE_LOCATION.equals(header.type) ? timestamp : null, recentKey);
+    }
+
+    /**
+     * Remembers a message let through by {@link #check}, so that it's what later messages are compared to
+     */
+    synchronized void commit(@NonNull Admission admission) {
+        if (admission.recentKey == null) {
+            return;
+        }
+        recent.put(admission.recentKey, Boolean.TRUE);
+        if (admission.locationTimestamp != null) {
+            Long last = lastLocationTimestamps.get(admission.contactKey);
+            if (last == null || admission.locationTimestamp > last) {
+                lastLocationTimestamps.put(admission.contactKey, admission.locationTimestamp);
+            }
+        }
+    }
+
+    /**
+     * Forgets a contact, so that its next location is accepted whatever its timestamp. Called when the
+     * contact is cleared.
+     */
+    synchronized void forget(@NonNull String contactKey) {
+        lastLocationTimestamps.remove(contactKey);
+    }
+
+    /**
+     * Forgets everything. Called when the contacts are cleared, e.g. when connecting to a different broker.
+     */
+    synchronized void reset() {
+        lastLocationTimestamps.clear();
+        recent.clear();
+    }
+
+    long getDroppedStale() {
+        return droppedStale.get();
+    }
+
+    long getDroppedDuplicate() {
+        return droppedDuplicate.get();
+    }
+
+    /**
+     * Reads the top level `_type` and `tst` fields, skipping over everything else
+     *
+     * @return null if the payload isn't a JSON object
+     */
+    static Header scan(@NonNull byte[] payload) {
+        try (JsonParser jsonParser = jsonFactory.createParser(payload)) {
+            if (jsonParser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            String type = null;
+            Long timestamp = null;
+            while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = jsonParser.getCurrentName();
+                JsonToken value = jsonParser.nextToken();
+                if ("_type".equals(field) && value == JsonToken.VALUE_STRING) {
+                    type = jsonParser.getText();
+                } else if ("tst".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    timestamp = jsonParser.getLongValue();
+                } else {
+                    jsonParser.skipChildren();
+                }
+                if (type != null && timestamp != null) {
+                    break;
+                }
+            }
+            return new Header(type, timestamp);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static final class Header {
+        final String type;
+        final Long timestamp;
+
+        Header(String type, Long timestamp) {
+            this.type = type;
+            this.timestamp = timestamp;
+        }
+    }
+
+    static final class Admission {
+        // For messages the filter doesn't keep track of
+        static final Admission UNTRACKED = new Admission(null, null, null);
+
+        final String contactKey;
+        final Long locationTimestamp;
+        final String recentKey;
+
+        private Admission(String contactKey, Long locationTimestamp, String recentKey) {
+            this.contactKey = contactKey;
+            this.locationTimestamp = locationTimestamp;
+            this.recentKey = recentKey;
+        }
+    }
+
+    private static final class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+        private final int maxSize;
+
+        BoundedMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.owntracks.android.services;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Moves processing of received messages off the thread they arrive on. Messages are spread over a few
+ * lanes, each with a bounded queue and a single worker thread. All messages for the same contact go to the
+ * same lane, so they're still processed in the order they arrived.
+ *
+ * When a lane is full, {@link #submit} waits for space for a short while, which holds up the sender, and then
+ * drops the message if there's still no room.
+ */
+class InboundMessagePipeline<T> {
+    static final int DEFAULT_LANES = 2;
+    static final int DEFAULT_LANE_CAPACITY = 256;
+    private static final long SUBMIT_TIMEOUT_MILLIS = 1000;
+
+    interface Processor<T> {
+        void process(@NonNull T item);
+    }
+
+    private final Lane<T>[] lanes;
+    private final Processor<T> processor;
+    private final int laneCapacity;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile boolean running = true;
+
+    InboundMessagePipeline(@NonNull String name, @NonNull Processor<T> processor) {
+        this(name, DEFAULT_LANES, DEFAULT_LANE_CAPACITY, processor);
+    }
+
+    @SuppressWarnings("unchecked")
+    InboundMessagePipeline(@NonNull String name, int laneCount, int laneCapacity, @NonNull Processor<T> processor) {
+        this.processor = processor;
+        this.laneCapacity = laneCapacity;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            Lane<T> lane = new Lane<>(laneCapacity);
+            lane.worker = new Thread(() -> work(lane), name + "-" + i);
+            lane.worker.setDaemon(true);
+            lanes[i] = lane;
+            lane.worker.start();
+        }
+    }
+
+    /**
+     * Queues an item for processing on the lane for the given key
+     *
+     * @return false if the lane stayed full and the item was dropped
+     */
+    boolean submit(@NonNull String key, @NonNull T item) {
+        Lane<T> lane = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        try {
+            if (lane.queue.offer(new Entry<>(item, System.nanoTime()), SUBMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!lane.backlogged && lane.queue.size() > laneCapacity * 3 / 4) {
+                    lane.backlogged = true;
+                    Timber.w("Inbound backlog building up for %s: %s queued", key, lane.queue.size());
+                }
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dropped.incrementAndGet();
+        Timber.e("Inbound queue full, dropping message for %s", key);
+        return false;
+    }
+
+    private void work(Lane<T> lane) {
+        while (running) {
+            Entry<T> entry;
+            try {
+                entry = lane.queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                processor.process(entry.item);
+            } catch (RuntimeException e) {
+                Timber.e(e, "Failed to process inbound message");
+            }
+            long latency = System.nanoTime() - entry.queuedAt;
+            processed.incrementAndGet();
+            totalLatencyNanos.addAndGet(latency);
+            long max;
+            do {
+                max = maxLatencyNanos.get();
+            } while (latency > max && !maxLatencyNanos.compareAndSet(max, latency));
+
+            if (lane.backlogged && lane.queue.isEmpty()) {
+                lane.backlogged = false;
+                Timber.i("Inbound backlog cleared. %s", getStats());
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        for (Lane<T> lane : lanes) {
+            lane.queue.clear();
+            lane.worker.interrupt();
+        }
+    }
+
+    @NonNull
+    Stats getStats() {
+        int depth = 0;
+        for (Lane<T> lane : lanes) {
+            depth += lane.queue.size();
+        }
+        long processedCount = processed.get();
+        long averageLatencyNanos = processedCount == 0 ? 0 : totalLatencyNanos.get() / processedCount;
+        return new Stats(depth, processedCount, dropped.get(), TimeUnit.NANOSECONDS.toMillis(averageLatencyNanos), TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get()));
+    }
+
+    static final class Stats {
+        final int queueDepth;
+        final long processed;
+        final long dropped;
+        final long averageLatencyMillis;
+        final long maxLatencyMillis;
+
+        Stats(int queueDepth, long processed, long dropped, long averageLatencyMillis, long maxLatencyMillis) {
+            this.queueDepth = queueDepth;
+            this.processed = processed;
+            this.dropped = dropped;
+            this.averageLatencyMillis = averageLatencyMillis;
+            this.maxLatencyMillis = maxLatencyMillis;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "queued: %d, processed: %d, dropped: %d, latency avg: %dms, max: %dms", queueDepth, processed, dropped, averageLatencyMillis, maxLatencyMillis);
+        }
+    }
+
+    private static final class Lane<T> {
+        final BlockingQueue<Entry<T>> queue;
+        Thread worker;
+        volatile boolean backlogged = false;
+
+        Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final long queuedAt;
+
+        Entry(T item, long queuedAt) {
+            this.item = item;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
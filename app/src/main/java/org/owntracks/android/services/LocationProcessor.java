@@ -19,6 +19,7 @@ import org.owntracks.android.model.messages.MessageWaypoints;
 import org.owntracks.android.support.DeviceMetricsProvider;
 import org.owntracks.android.support.MessageWaypointCollection;
 import org.owntracks.android.support.Preferences;
+import org.owntracks.android.support.preferences.PreferencesSnapshot;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -54,7 +55,7 @@ public class LocationProcessor {
     }
 
     private boolean ignoreLowAccuracy(@NonNull Location l) {
-        int threshold = preferences.getIgnoreInaccurateLocations();
+        int threshold = preferences.getSnapshot().ignoreInaccurateLocations;
         return threshold > 0 && l.getAccuracy() > threshold;
     }
 
@@ -74,6 +75,7 @@ public class LocationProcessor {
 //            Log.e("222", "publishLocationMessage: " + locationRepo.getBleObjects().size());
 
         List<WaypointModel> loadedWaypoints = waypointsRepo.getAllWithGeofences();
+        PreferencesSnapshot settings = preferences.getSnapshot();
 
         assert currentLocation != null;
         if (ignoreLowAccuracy(currentLocation)) {
@@ -81,18 +83,18 @@ public class LocationProcessor {
         }
 
         // Check if publish would trigger a region if fusedRegionDetection is enabled
-        if (loadedWaypoints.size() > 0 && preferences.getFusedRegionDetection() && !MessageLocation.REPORT_TYPE_CIRCULAR.equals(trigger)) {
+        if (loadedWaypoints.size() > 0 && settings.fusedRegionDetection && !MessageLocation.REPORT_TYPE_CIRCULAR.equals(trigger)) {
             for (WaypointModel waypoint : loadedWaypoints) {
                 onWaypointTransition(waypoint, currentLocation, currentLocation.distanceTo(waypoint.getLocation()) <= waypoint.getGeofenceRadius() ? Geofence.GEOFENCE_TRANSITION_ENTER : Geofence.GEOFENCE_TRANSITION_EXIT, MessageTransition.TRIGGER_LOCATION);
             }
         }
 
-        if (preferences.getMonitoring() == MONITORING_QUIET && !MessageLocation.REPORT_TYPE_USER.equals(trigger)) {
+        if (settings.monitoring == MONITORING_QUIET && !MessageLocation.REPORT_TYPE_USER.equals(trigger)) {
             Timber.e("message suppressed by monitoring settings: quiet");
             return;
         }
 
-        if (preferences.getMonitoring() == MONITORING_MANUAL && (!MessageLocation.REPORT_TYPE_USER.equals(trigger) && !MessageLocation.REPORT_TYPE_CIRCULAR.equals(trigger))) {
+        if (settings.monitoring == MONITORING_MANUAL && (!MessageLocation.REPORT_TYPE_USER.equals(trigger) && !MessageLocation.REPORT_TYPE_CIRCULAR.equals(trigger))) {
             Timber.e("message suppressed by monitoring settings: manual");
             return;
         }
@@ -100,10 +102,10 @@ public class LocationProcessor {
         MessageLocation message = MessageLocation.fromLocation(currentLocation, bleObjects != null ? bleObjects : new ArrayList<>());
         message.setTrigger(trigger);
 
-        message.setTrackerId(preferences.getTrackerId(true));
+        message.setTrackerId(settings.trackerId);
         message.setInregions(calculateInregions(loadedWaypoints));
 
-        if (preferences.getPubLocationExtendedData()) {
+        if (settings.pubLocationExtendedData) {
 //            Log.e("2", "publishLocationMessage: ");
 
             message.setBattery(deviceMetricsProvider.getBatteryLevel());
@@ -111,6 +113,9 @@ public class LocationProcessor {
             message.setConn(deviceMetricsProvider.getConnectionType());
 //            message.setUuid("10D39AE7-020E-4467-9CB2-DD36366F899D");
         }
+        if (settings.bleCompactEncoding) {
+            message.packBleObjects();
+        }
         messageProcessor.queueMessageForSending(message);
     }
 
@@ -143,17 +148,15 @@ public class LocationProcessor {
         // If the region status is unknown, send transition only if the device is inside
         if (((transition == waypointModel.getLastTransition()) || (waypointModel.isUnknown() && transition == Geofence.GEOFENCE_TRANSITION_EXIT))) {
 //            Timber.e("ignoring initial or duplicate transition: %s", waypointModel.getDescription());
-            waypointModel.setLastTransition(transition);
-            waypointsRepo.update(waypointModel, false);
+            waypointsRepo.updateTransition(waypointModel, transition, false);
             return;
         }
 
-        waypointModel.setLastTransition(transition);
-        waypointModel.setLastTriggeredNow();
-        waypointsRepo.update(waypointModel, false);
+        waypointsRepo.updateTransition(waypointModel, transition, true);
 
-        if (preferences.getMonitoring() == MONITORING_QUIET) {
-            Timber.e("message suppressed by monitoring settings: %s", preferences.getMonitoring());
+        int monitoring = preferences.getSnapshot().monitoring;
+        if (monitoring == MONITORING_QUIET) {
+            Timber.e("message suppressed by monitoring settings: %s", monitoring);
             return;
         }
 
@@ -171,7 +174,7 @@ public class LocationProcessor {
         MessageTransition message = new MessageTransition();
         message.setTransition(transition);
         message.setTrigger(trigger);
-        message.setTrackerId(preferences.getTrackerId(true));
+        message.setTrackerId(preferences.getSnapshot().trackerId);
         message.setLatitude(triggeringLocation.getLatitude());
         message.setLongitude(triggeringLocation.getLongitude());
         message.setAccuracy(triggeringLocation.getAccuracy());
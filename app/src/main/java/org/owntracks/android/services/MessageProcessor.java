@@ -21,23 +21,27 @@ import org.owntracks.android.model.messages.MessageLocation;
 import org.owntracks.android.model.messages.MessageTransition;
 import org.owntracks.android.model.messages.MessageUnknown;
 import org.owntracks.android.services.worker.Scheduler;
+import org.owntracks.android.support.ConnectivityMonitor;
+import org.owntracks.android.support.EventChannel;
 import org.owntracks.android.support.Events;
+import org.owntracks.android.support.HttpStack;
+import org.owntracks.android.support.Metrics;
 import org.owntracks.android.support.Parser;
 import org.owntracks.android.support.Preferences;
 import org.owntracks.android.support.RunThingsOnOtherThreads;
 import org.owntracks.android.support.ServiceBridge;
+import org.owntracks.android.support.StartupTimings;
+import org.owntracks.android.support.TlsContextCache;
 import org.owntracks.android.support.interfaces.ConfigurationIncompleteException;
 import org.owntracks.android.support.interfaces.StatefulServiceMessageProcessor;
+import org.owntracks.android.support.preferences.PreferencesSnapshot;
 
-import java.io.IOException;
 import java.util.Locale;
 import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -56,18 +60,26 @@ public class MessageProcessor {
     private final Scheduler scheduler;
     private final Lazy<LocationProcessor> locationProcessorLazy;
 
-    private final Events.QueueChanged queueEvent = new Events.QueueChanged();
+    private final QueueStatusPublisher queueStatus;
+    private final EventChannel<EndpointState> endpointStates = EventChannel.conflated();
+    private final EventChannel<Events.QueueChanged> queueStates = EventChannel.conflated();
     private final ServiceBridge serviceBridge;
     private final CountingIdlingResource outgoingQueueIdlingResource;
     private final RunThingsOnOtherThreads runThingsOnOtherThreads;
+    private final TlsContextCache tlsContextCache;
+    private final HttpStack httpStack;
+    private final ConnectivityMonitor connectivityMonitor;
     private MessageProcessorEndpoint endpoint;
 
     private boolean acceptMessages = false;
     private final BlockingDeque<MessageBase> outgoingQueue = new LinkedBlockingDeque<>(10000);
-    private Thread backgroundDequeueThread;
+    private final OutgoingMessageSender sender;
+    // While a batch is being queued, the sender is only woken once it's all there
+    private final AtomicInteger openBatches = new AtomicInteger();
 
     private static final long SEND_FAILURE_BACKOFF_INITIAL_WAIT = TimeUnit.SECONDS.toMillis(1);
     private static final long SEND_FAILURE_BACKOFF_MAX_WAIT = TimeUnit.SECONDS.toMillis(10);
+    private static final long QUEUE_STATUS_MIN_INTERVAL = 500;
 
     private boolean initialized = false;
 
@@ -83,7 +95,10 @@ public class MessageProcessor {
             ServiceBridge serviceBridge,
             RunThingsOnOtherThreads runThingsOnOtherThreads,
             CountingIdlingResource outgoingQueueIdlingResource,
-            Lazy<LocationProcessor> locationProcessorLazy
+            Lazy<LocationProcessor> locationProcessorLazy,
+            TlsContextCache tlsContextCache,
+            HttpStack httpStack,
+            ConnectivityMonitor connectivityMonitor
     ) {
         this.applicationContext = applicationContext;
         this.preferences = preferences;
@@ -97,13 +112,36 @@ public class MessageProcessor {
         this.outgoingQueueIdlingResource = outgoingQueueIdlingResource;
         this.eventBus.register(this);
         this.runThingsOnOtherThreads = runThingsOnOtherThreads;
+        this.tlsContextCache = tlsContextCache;
+        this.httpStack = httpStack;
+        this.connectivityMonitor = connectivityMonitor;
+        this.queueStatus = new QueueStatusPublisher(outgoingQueue, QUEUE_STATUS_MIN_INTERVAL, runThingsOnOtherThreads::postOnBackgroundHandlerDelayed, queueStates::post);
+        // The endpoint implementations might not be thread-safe, so everything is sent from the network thread
+        this.sender = new OutgoingMessageSender(outgoingQueue, SEND_FAILURE_BACKOFF_INITIAL_WAIT, SEND_FAILURE_BACKOFF_MAX_WAIT, runThingsOnOtherThreads::postOnNetworkHandlerDelayed, message -> endpoint.sendMessage(message), new OutgoingMessageSender.Gate() {
+            @Override
+            public boolean isOnline() {
+                return connectivityMonitor.isOnline();
+            }
 
+            @Override
+            public boolean isBacklogDeferred() {
+                return preferences.getSnapshot().deferBacklogUntilUnmetered && !connectivityMonitor.isUnmetered();
+            }
+        }, message -> outgoingQueueIdlingResource.decrement());
     }
 
     synchronized public void initialize() {
         if (!initialized) {
             Timber.d("Initializing MessageProcessor");
             onEndpointStateChanged(EndpointState.INITIAL);
+            connectivityMonitor.start();
+            // Also called when a network becomes validated, which retries sending and connecting straight away
+            connectivityMonitor.getStates().observe(null, state -> {
+                sender.onGateChanged();
+                if (endpoint instanceof MessageProcessorEndpointMqtt) {
+                    ((MessageProcessorEndpointMqtt) endpoint).onNetworkChanged(state.getOnline());
+                }
+            });
             reconnect();
             initialized = true;
         }
@@ -176,23 +214,19 @@ public class MessageProcessor {
             endpoint.onDestroy();
         }
 
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
+        queueStatus.onQueueChanged();
 
         switch (preferences.getMode()) {
             case MessageProcessorEndpointHttp.MODE_ID:
-                this.endpoint = new MessageProcessorEndpointHttp(this, this.parser, this.preferences, this.scheduler, this.applicationContext);
+                this.endpoint = new MessageProcessorEndpointHttp(this, this.parser, this.preferences, this.scheduler, this.httpStack, this.tlsContextCache);
                 break;
             case MessageProcessorEndpointMqtt.MODE_ID:
             default:
-                this.endpoint = new MessageProcessorEndpointMqtt(this, this.parser, this.preferences, this.scheduler, this.eventBus, this.runThingsOnOtherThreads, this.applicationContext);
+                this.endpoint = new MessageProcessorEndpointMqtt(this, this.parser, this.preferences, this.scheduler, this.eventBus, this.runThingsOnOtherThreads, this.tlsContextCache, this.applicationContext);
 
         }
 
-        if (backgroundDequeueThread == null || !backgroundDequeueThread.isAlive()) {
-            // Create the background thread that will handle outbound msgs
-            backgroundDequeueThread = new Thread(this::sendAvailableMessages);
-            backgroundDequeueThread.start();
-        }
+        sender.start();
 
         this.endpoint.onCreateFromProcessor();
         acceptMessages = true;
@@ -202,89 +236,38 @@ public class MessageProcessor {
         if (!acceptMessages) return;
         outgoingQueueIdlingResource.increment();
 //        Timber.e("Queueing messageId:%s, queueLength:%s, ThreadID: %s", message.getMessageId(), outgoingQueue.size(), Thread.currentThread());
+        message.setQueuedAt(System.nanoTime());
         synchronized (outgoingQueue) {
             if (!outgoingQueue.offer(message)) {
                 MessageBase droppedMessage = outgoingQueue.poll();
                 Timber.e("Outoing queue full. Dropping oldest message: %s", droppedMessage);
+                Metrics.increment(Metrics.SEND_QUEUE_OVERFLOW);
+                Metrics.increment(Metrics.SEND_DROPPED);
                 if (!outgoingQueue.offer(message)) {
                     Timber.e("Still can't put message onto the queue. Dropping: %s", message);
+                    Metrics.increment(Metrics.SEND_DROPPED);
                 }
             }
         }
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
+        if (openBatches.get() == 0) {
+            sender.wake();
+        }
+        queueStatus.onQueueChanged();
     }
 
-    // Should be on the background thread here, because we block
-    private void sendAvailableMessages() {
-        Timber.d("Starting outbound message loop. ThreadID: %s", Thread.currentThread());
-        MessageBase lastFailedMessageToBeRetried = null;
-        int retriesToGo = 0;
-        long retryWait = SEND_FAILURE_BACKOFF_INITIAL_WAIT;
-        while (true) {
-            try {
-                MessageBase message;
-                if (lastFailedMessageToBeRetried == null) {
-                    message = this.outgoingQueue.take(); // <--- blocks
-
-                    retriesToGo = message.getNumberOfRetries();
-                } else {
-                    message = lastFailedMessageToBeRetried;
-                }
-
-                /*
-                We need to run the actual network sending part on a different thread because the
-                implementation might not be thread-safe. So we wrap `sendMessage()` up in a callable
-                and a FutureTask and then dispatch it off to the network thread, and block on the
-                return, handling any exceptions that might have been thrown.
-                */
-                Callable<Void> sendMessageCallable = () -> {
-                    this.endpoint.sendMessage(message);
-                    return null;
-                };
-                FutureTask<Void> futureTask = new FutureTask<>(sendMessageCallable);
-                runThingsOnOtherThreads.postOnNetworkHandlerDelayed(futureTask, 1);
-                try {
-                    try {
-                        futureTask.get();
-
-                    } catch (ExecutionException e) {
-                        if (e.getCause() != null) {
-                            throw e.getCause();
-                        } else {
-                            throw new Exception("sendMessage failed, but no exception actually given");
-                        }
-                    }
-                    lastFailedMessageToBeRetried = null;
-                    retryWait = SEND_FAILURE_BACKOFF_INITIAL_WAIT;
-                } catch (OutgoingMessageSendingException | ConfigurationIncompleteException e) {
-                    Timber.w(("Error sending message. Re-queueing"));
-                    lastFailedMessageToBeRetried = message;
-                    retriesToGo -= 1;
-                } catch (IOException e) {
-                    retryWait = SEND_FAILURE_BACKOFF_INITIAL_WAIT;
-                    lastFailedMessageToBeRetried = null;
-                    // Deserialization failure, drop and move on
-                } catch (Throwable e) {
-                    Timber.e(e, "Unhandled exception in sending message");
-                    lastFailedMessageToBeRetried = null;
-                }
-
-                if (lastFailedMessageToBeRetried != null && retriesToGo <= 0) {
-                    lastFailedMessageToBeRetried = null;
-                }
-
-                if (lastFailedMessageToBeRetried != null) {
-                    Thread.sleep(retryWait);
-                    retryWait = Math.min(2 * retryWait, SEND_FAILURE_BACKOFF_MAX_WAIT);
-                } else {
-                    outgoingQueueIdlingResource.decrement();
-                }
-            } catch (InterruptedException e) {
-                Timber.i(e, "Outgoing message loop interrupted");
-                break;
+    /**
+     * Runs something that queues several messages, and only wakes the sender once they're all queued, so
+     * that they go out together in one send cycle rather than one cycle each.
+     */
+    public void queueBatchForSending(Runnable batch) {
+        openBatches.incrementAndGet();
+        try {
+            batch.run();
+        } finally {
+            if (openBatches.decrementAndGet() == 0) {
+                sender.wake();
             }
         }
-        Timber.w("Exiting outgoingmessage loop");
     }
 
     @SuppressWarnings("UnusedParameters")
@@ -303,23 +286,45 @@ public class MessageProcessor {
 
     void onMessageDelivered(MessageBase messageBase) {
 //        Timber.d("onMessageDelivered in MessageProcessor Noop. ThreadID: %s", Thread.currentThread());
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
-        eventBus.post(messageBase);
+        if (messageBase instanceof MessageLocation) {
+            StartupTimings.mark(StartupTimings.FIRST_LOCATION_PUBLISHED);
+        }
+        queueStatus.onDelivered();
+        // The message id is the wall clock time it was created at
+        Metrics.record(Metrics.SEND_AGE_AT_DELIVERY, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - messageBase.getMessageId()));
+        queueStatus.onQueueChanged();
     }
 
     void onMessageDeliveryFailedFinal(Long messageId) {
         Timber.e("Message delivery failed, not retryable. :%s", messageId);
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
+        queueStatus.onQueueChanged();
     }
 
     void onMessageDeliveryFailed(Long messageId) {
         Timber.e("Message delivery failed. queueLength: %s, messageId: %s", outgoingQueue.size(), messageId);
-        eventBus.postSticky(queueEvent.withNewLength(outgoingQueue.size()));
+        queueStatus.onQueueChanged();
     }
 
     void onEndpointStateChanged(EndpointState newState) {
         Timber.d("message:%s, ", newState.getMessage());
-        eventBus.postSticky(newState);
+        if (newState == EndpointState.CONNECTED) {
+            StartupTimings.mark(StartupTimings.ENDPOINT_CONNECTED);
+        }
+        endpointStates.post(newState);
+    }
+
+    /**
+     * @return the endpoint's connection state. New observers get the current state straight away.
+     */
+    public EventChannel<EndpointState> getEndpointStates() {
+        return endpointStates;
+    }
+
+    /**
+     * @return the state of the outgoing queue, at most one update every {@value #QUEUE_STATUS_MIN_INTERVAL}ms
+     */
+    public EventChannel<Events.QueueChanged> getQueueStates() {
+        return queueStates;
     }
 
     public void processIncomingMessage(MessageBase message) {
@@ -351,7 +356,8 @@ public class MessageProcessor {
     private void processIncomingMessage(MessageLocation message) {
         Timber.d("processing location message %s. ThreadID: %s", message.getContactKey(), Thread.currentThread());
         // do not use TimeUnit.DAYS.toMillis to avoid long/double conversion issues...
-        if ((preferences.getIgnoreStaleLocations() > 0) && (System.currentTimeMillis() - ((message).getTimestamp() * 1000)) > (preferences.getIgnoreStaleLocations() * 24 * 60 * 60 * 1000)) {
+        double ignoreStaleLocations = preferences.getSnapshot().ignoreStaleLocations;
+        if ((ignoreStaleLocations > 0) && (System.currentTimeMillis() - ((message).getTimestamp() * 1000)) > (ignoreStaleLocations * 24 * 60 * 60 * 1000)) {
             Timber.e("discarding stale location");
             return;
         }
@@ -363,13 +369,14 @@ public class MessageProcessor {
     }
 
     private void processIncomingMessage(MessageCmd message) {
-        if (!preferences.getRemoteCommand()) {
+        PreferencesSnapshot settings = preferences.getSnapshot();
+        if (!settings.remoteCommand) {
             Timber.w("remote commands are disabled");
             return;
         }
 
         if (message.getModeId() != MessageProcessorEndpointHttp.MODE_ID &&
-                !preferences.getPubTopicCommands().equals(message.getTopic())
+                !settings.pubTopicCommands.equals(message.getTopic())
         ) {
             Timber.e("cmd message received on wrong topic");
             return;
@@ -399,7 +406,7 @@ public class MessageProcessor {
 
                 break;
             case SET_CONFIGURATION:
-                if (!preferences.getRemoteConfiguration()) {
+                if (!settings.remoteConfiguration) {
                     Timber.w("Received a remote configuration command but remote config setting is disabled");
                     break;
                 }
@@ -429,8 +436,8 @@ public class MessageProcessor {
     }
 
     public void stopSendingMessages() {
-        Timber.d("Interrupting background sending thread");
-        backgroundDequeueThread.interrupt();
+        Timber.d("Stopping sending messages");
+        sender.stop();
     }
 
     public enum EndpointState {
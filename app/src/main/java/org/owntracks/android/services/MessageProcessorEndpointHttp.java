@@ -1,6 +1,5 @@
 package org.owntracks.android.services;
 
-import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
@@ -13,27 +12,28 @@ import org.owntracks.android.R;
 import org.owntracks.android.model.messages.MessageBase;
 import org.owntracks.android.services.MessageProcessor.EndpointState;
 import org.owntracks.android.services.worker.Scheduler;
+import org.owntracks.android.support.HttpStack;
+import org.owntracks.android.support.Metrics;
 import org.owntracks.android.support.Parser;
 import org.owntracks.android.support.Preferences;
 import org.owntracks.android.support.SocketFactory;
+import org.owntracks.android.support.TlsContextCache;
 import org.owntracks.android.support.interfaces.ConfigurationIncompleteException;
 import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener;
 
-import java.io.FileNotFoundException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
 import java.util.Locale;
-import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.X509TrustManager;
 
 import okhttp3.CacheControl;
-import okhttp3.ConnectionPool;
 import okhttp3.Credentials;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
-import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -56,6 +56,12 @@ public class MessageProcessorEndpointHttp extends
     private static String httpEndpointHeaderPassword = "";
 
     private static OkHttpClient mHttpClient;
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String GZIP = "gzip";
+    // Below this the gzip header and trailer outweigh what compression saves
+    private static final int MIN_COMPRESSED_BODY_LENGTH = 128;
+    // A recorder can answer with the last location of every friend. Past this many, the rest are dropped.
+    private static final int MAX_RESPONSE_MESSAGES = 1000;
     private static final MediaType JSON  = MediaType.parse("application/json; charset=utf-8");
 
     public static final String USERAGENT = "Owntracks-Android/"+ BuildConfig.VERSION_CODE;
@@ -64,15 +70,19 @@ public class MessageProcessorEndpointHttp extends
     private Preferences preferences;
     private Parser parser;
     private Scheduler scheduler;
-    private Context applicationContext;
+    private TlsContextCache tlsContextCache;
+    private HttpStack httpStack;
     private HttpUrl httpEndpoint;
+    // Set once the server has turned down a compressed body, until the URL or compression preference changes
+    private boolean compressionRejected = false;
 
-    public MessageProcessorEndpointHttp(MessageProcessor messageProcessor, Parser parser, Preferences preferences, Scheduler scheduler, Context applicationContext) {
+    public MessageProcessorEndpointHttp(MessageProcessor messageProcessor, Parser parser, Preferences preferences, Scheduler scheduler, HttpStack httpStack, TlsContextCache tlsContextCache) {
         super(messageProcessor);
         this.parser = parser;
         this.preferences = preferences;
         this.scheduler = scheduler;
-        this.applicationContext = applicationContext;
+        this.httpStack = httpStack;
+        this.tlsContextCache = tlsContextCache;
 
         preferences.registerOnPreferenceChangedListener(this);
         loadEndpointUrl();
@@ -89,36 +99,15 @@ public class MessageProcessorEndpointHttp extends
 
     @Nullable
     private SocketFactory getSocketFactory() {
-        String tlsCaCrt = preferences.getTlsCaCrt();
-        String tlsClientCrt = preferences.getTlsClientCrt();
-
-        if(tlsCaCrt.length() == 0 && tlsClientCrt.length() == 0) {
+        if (tlsContextCache == null || (preferences.getTlsCaCrt().length() == 0 && preferences.getTlsClientCrt().length() == 0)) {
             return null;
         }
 
-        SocketFactory.SocketFactoryOptions socketFactoryOptions = new SocketFactory.SocketFactoryOptions();
-
-        if (tlsCaCrt.length() > 0) {
-            try {
-                socketFactoryOptions.withCaInputStream(applicationContext.openFileInput(tlsCaCrt));
-            } catch (FileNotFoundException e) {
-                Timber.e(e);
-                return null;
-            }
-        }
-
-        if (tlsClientCrt.length() > 0)	{
-            try {
-                socketFactoryOptions.withClientP12InputStream(applicationContext.openFileInput(tlsClientCrt)).withClientP12Password(preferences.getTlsClientCrtPassword());
-            } catch (FileNotFoundException e1) {
-                Timber.e(e1);
-                return null;
-            }
-        }
-
         try {
-            return new SocketFactory(socketFactoryOptions);
+            TlsContextCache.TlsContext tlsContext = tlsContextCache.get();
+            return tlsContext.hasCustomMaterial() ? tlsContext.getSocketFactory() : null;
         } catch (Exception e) {
+            Timber.e(e, "TLS setup failed");
             return null;
         }
     }
@@ -139,19 +128,11 @@ public class MessageProcessorEndpointHttp extends
     private OkHttpClient createHttpClient() {
         Timber.d("creating new HTTP client instance");
         SocketFactory f = getSocketFactory();
-        OkHttpClient.Builder builder = new OkHttpClient.Builder()
-                .followRedirects(true)
-                .followSslRedirects(true)
-                .connectTimeout(15, TimeUnit.SECONDS)
-                .connectionPool(new ConnectionPool(1, 1, TimeUnit.MICROSECONDS))
-                .retryOnConnectionFailure(false)
-                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
-                .cache(null);
-
-        if(f != null) {
-            builder.sslSocketFactory(f, (X509TrustManager) f.getTrustManagers()[0]);
+        boolean reuseConnections = !preferences.getDontReuseHttpClient();
+        if (f != null) {
+            return httpStack.endpointClient(f, (X509TrustManager) f.getTrustManagers()[0], reuseConnections);
         }
-        return builder.build();
+        return httpStack.endpointClient(null, null, reuseConnections);
     }
 
 
@@ -192,12 +173,21 @@ public class MessageProcessorEndpointHttp extends
             messageProcessor.onEndpointStateChanged(EndpointState.ERROR.withMessage(e.getMessage()));
             return null;
         }
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        CompressedBody compressedBody = compress(bodyBytes);
 
 
         // Any exception here (invalid header value, invalid URL, etc) will persist for all future messages until configuration is fixed.
         // Setting httpEndpoint to null will make sure no message can be send until the problem is corrected.
         try {
-            Request.Builder request = new Request.Builder().url(this.httpEndpoint).header(HEADER_USERAGENT,USERAGENT).method(METHOD, RequestBody.create(JSON, body));
+            Request.Builder request = new Request.Builder().url(this.httpEndpoint).header(HEADER_USERAGENT,USERAGENT);
+            if (compressedBody != null) {
+                request.method(METHOD, RequestBody.create(JSON, compressedBody.bytes))
+                        .header(HEADER_CONTENT_ENCODING, GZIP)
+                        .tag(CompressedBody.class, compressedBody);
+            } else {
+                request.method(METHOD, RequestBody.create(JSON, bodyBytes));
+            }
 
             if(isSet(httpEndpointHeaderUser) && isSet(httpEndpointHeaderPassword)) {
                 request.header(HEADER_AUTHORIZATION, Credentials.basic(httpEndpointHeaderUser, httpEndpointHeaderPassword));
@@ -223,6 +213,37 @@ public class MessageProcessorEndpointHttp extends
     }
 
 
+    /**
+     * Gzips the request body if compression is enabled and the server hasn't rejected it.
+     *
+     * @return the compressed body, or null if the body should be sent as is
+     */
+    @Nullable
+    private CompressedBody compress(byte[] body) {
+        if (compressionRejected || body.length < MIN_COMPRESSED_BODY_LENGTH || !preferences.getHttpCompression()) {
+            return null;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        } catch (IOException e) {
+            Timber.e(e, "unable to compress request body");
+            return null;
+        }
+        if (compressed.size() >= body.length) {
+            return null;
+        }
+        return new CompressedBody(compressed.toByteArray(), body.length);
+    }
+
+    private static String describeCompression(Request request) {
+        CompressedBody compressedBody = request.tag(CompressedBody.class);
+        if (compressedBody == null) {
+            return "";
+        }
+        return String.format(Locale.ROOT, ", gzip %d%% of %d bytes", compressedBody.getRatioPercent(), compressedBody.originalLength);
+    }
+
     private static boolean isSet(String str) {
         return str != null && str.length() > 0;
     }
@@ -230,24 +251,25 @@ public class MessageProcessorEndpointHttp extends
     void sendMessage(MessageBase message) throws OutgoingMessageSendingException {
         Log.e("TAG", "sendMessage: ");
         long messageId = message.getMessageId();
+        long serializeStartTime = System.nanoTime();
         Request request = getRequest(message);
         if(request == null) {
             messageProcessor.onMessageDeliveryFailedFinal(message.getMessageId());
             return;
         }
+        long startTime = System.nanoTime();
+        Metrics.record(Metrics.SEND_SERIALIZE, startTime - serializeStartTime);
         try(Response response = getHttpClient().newCall(request).execute()) {
+            Metrics.record(Metrics.SEND_NETWORK, System.nanoTime() - startTime);
             // Message was send. Handle delivered message
             if((response.isSuccessful())) {
                 Timber.d("request was successful: %s",response);
                 // Handle response
                 if(response.body() != null ) {
                     try {
-                        MessageBase[] result = parser.fromJson(response.body().byteStream());
+                        int received = parser.fromJson(response.body().byteStream(), MAX_RESPONSE_MESSAGES, this::onMessageReceived);
                         //TODO apply i18n here
-                        messageProcessor.onEndpointStateChanged(EndpointState.IDLE.withMessage(String.format(Locale.ROOT,"Response %d, (%d msgs received)", response.code(), result.length)));
-                        for (MessageBase aResult : result) {
-                            onMessageReceived(aResult);
-                        }
+                        messageProcessor.onEndpointStateChanged(EndpointState.IDLE.withMessage(String.format(Locale.ROOT,"Response %d, (%d msgs received%s)", response.code(), received, describeCompression(request))));
                     } catch (JsonProcessingException e ) {
                         Timber.e("JsonParseException HTTP status: %s", response.code());
                         messageProcessor.onEndpointStateChanged(EndpointState.IDLE.withMessage(String.format(Locale.ROOT,"HTTP status %d, JsonParseException", response.code())));
@@ -258,6 +280,11 @@ public class MessageProcessorEndpointHttp extends
                 }
             // Server could be contacted but returned non success HTTP code
             } else {
+                if (request.tag(CompressedBody.class) != null && (response.code() == 400 || response.code() == 415)) {
+                    // Most likely the server can't handle a compressed body. Send uncompressed from now on.
+                    Timber.w("HTTP status %s for compressed request, disabling compression", response.code());
+                    compressionRejected = true;
+                }
                 Exception httpException = new Exception(String.format("HTTP request failed. Status: %s", response.code()));
                 Timber.e(httpException);
                 messageProcessor.onEndpointStateChanged(EndpointState.ERROR.withMessage(String.format(Locale.ROOT, "HTTP code %d", response.code())));
@@ -294,7 +321,10 @@ public class MessageProcessorEndpointHttp extends
                         || preferences.getPreferenceKey(R.string.preferenceKeyPassword).equals(key)
                         || preferences.getPreferenceKey(R.string.preferenceKeyDeviceId).equals(key))
             loadEndpointUrl();
-        else if (preferences.getPreferenceKey(R.string.preferenceKeyTLSClientCrt).equals(key)
+        if (preferences.getPreferenceKey(R.string.preferenceKeyURL).equals(key)
+                || preferences.getPreferenceKey(R.string.preferenceKeyHttpCompression).equals(key))
+            compressionRejected = false;
+        if (preferences.getPreferenceKey(R.string.preferenceKeyTLSClientCrt).equals(key)
                 || preferences.getPreferenceKey(R.string.preferenceKeyTLSClientCrtPassword).equals(key)
                 || preferences.getPreferenceKey(R.string.preferenceKeyTLSCaCrt).equals(key))
             mHttpClient = null;
@@ -321,4 +351,18 @@ public class MessageProcessorEndpointHttp extends
         }
         return message;
     }
+
+    static final class CompressedBody {
+        final byte[] bytes;
+        final int originalLength;
+
+        CompressedBody(byte[] bytes, int originalLength) {
+            this.bytes = bytes;
+            this.originalLength = originalLength;
+        }
+
+        int getRatioPercent() {
+            return originalLength == 0 ? 100 : bytes.length * 100 / originalLength;
+        }
+    }
 }
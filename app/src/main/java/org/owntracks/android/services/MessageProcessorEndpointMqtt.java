@@ -6,6 +6,7 @@ import android.os.Build;
 import android.os.Looper;
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
@@ -16,6 +17,7 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
 import org.greenrobot.eventbus.EventBus;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONException;
@@ -27,18 +29,16 @@ import org.owntracks.android.model.messages.MessageClear;
 import org.owntracks.android.services.MessageProcessor.EndpointState;
 import org.owntracks.android.services.worker.Scheduler;
 import org.owntracks.android.support.Events;
+import org.owntracks.android.support.Metrics;
 import org.owntracks.android.support.Parser;
 import org.owntracks.android.support.Preferences;
 import org.owntracks.android.support.RunThingsOnOtherThreads;
-import org.owntracks.android.support.SocketFactory;
+import org.owntracks.android.support.TlsContextCache;
 import org.owntracks.android.support.interfaces.ConfigurationIncompleteException;
 import org.owntracks.android.support.interfaces.StatefulServiceMessageProcessor;
 import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyManagementException;
@@ -46,8 +46,6 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -64,6 +62,7 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
     public static final int MODE_ID = 0;
 
     private CustomMqttClient mqttClient;
+    private AlarmPingSender pingSender;
 
     private String lastConnectionId;
     private static MessageProcessor.EndpointState state;
@@ -71,13 +70,15 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
     private MessageProcessor messageProcessor;
     private RunThingsOnOtherThreads runThingsOnOtherThreads;
     private Context applicationContext;
+    private TlsContextCache tlsContextCache;
 
     private Parser parser;
     private Preferences preferences;
     private Scheduler scheduler;
     private EventBus eventBus;
+    private final ReconnectController reconnectController;
 
-    MessageProcessorEndpointMqtt(MessageProcessor messageProcessor, Parser parser, Preferences preferences, Scheduler scheduler, EventBus eventBus, RunThingsOnOtherThreads runThingsOnOtherThreads, Context applicationContext) {
+    MessageProcessorEndpointMqtt(MessageProcessor messageProcessor, Parser parser, Preferences preferences, Scheduler scheduler, EventBus eventBus, RunThingsOnOtherThreads runThingsOnOtherThreads, TlsContextCache tlsContextCache, Context applicationContext) {
         super(messageProcessor);
         this.parser = parser;
         this.preferences = preferences;
@@ -85,7 +86,9 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         this.eventBus = eventBus;
         this.messageProcessor = messageProcessor;
         this.runThingsOnOtherThreads = runThingsOnOtherThreads;
+        this.tlsContextCache = tlsContextCache;
         this.applicationContext = applicationContext;
+        this.reconnectController = new ReconnectController((runnable, delayMillis) -> this.runThingsOnOtherThreads.postOnNetworkHandlerDelayed(runnable, delayMillis), this::connectForReconnect);
         if (preferences != null) {
             preferences.registerOnPreferenceChangedListener(this);
         }
@@ -130,12 +133,19 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         }
 
         try {
-            IMqttDeliveryToken pubToken = this.mqttClient.publish(m.getTopic(), m.toJsonBytes(parser), m.getQos(), m.getRetained());
+            long serializeStartTime = System.nanoTime();
+            byte[] payload = m.toJsonBytes(parser);
             long startTime = System.nanoTime();
+            Metrics.record(Metrics.SEND_SERIALIZE, startTime - serializeStartTime);
+            IMqttDeliveryToken pubToken = this.mqttClient.publish(m.getTopic(), payload, m.getQos(), m.getRetained());
             pubToken.waitForCompletion(TimeUnit.SECONDS.toMillis(30));
             long endTime = System.nanoTime();
             long duration = (endTime - startTime);
+            Metrics.record(Metrics.SEND_NETWORK, duration);
             Timber.d("message id %s sent in %dms", messageId, TimeUnit.NANOSECONDS.toMillis(duration));
+            if (pingSender != null) {
+                pingSender.onPublished();
+            }
             messageProcessor.onMessageDelivered(m);
         } catch (MqttException e) {
             Timber.e(e, "MQTT Exception delivering message");
@@ -166,35 +176,103 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
             Timber.tag("MQTT").e(cause, "connectionLost error");
             scheduler.cancelMqttPing();
             changeState(EndpointState.DISCONNECTED.withError(cause));
+            reconnectController.onConnectionLost();
+            // Only does anything if the process is killed before we manage to reconnect
             scheduler.scheduleMqttReconnect();
         }
 
         @Override
         public void messageArrived(String topic, MqttMessage message) {
-            try {
-                MessageBase m = parser.fromJson(message.getPayload());
-                if (!m.isValidMessage()) {
-                    Timber.e("message failed validation");
-                    return;
-                }
-                m.setTopic(topic);
-                m.setRetained(message.isRetained());
-                m.setQos(message.getQos());
+            // Parsing, decryption and handing the message to the contacts all happen on the pipeline's
+            // threads, so a burst of retained messages doesn't hold up paho's receive loop
+            inboundPipeline.submit(contactKeyForTopic(topic), new ArrivedMessage(topic, message));
+        }
+    };
+
+    private final InboundMessageFilter inboundFilter = new InboundMessageFilter();
+    private final InboundMessagePipeline<ArrivedMessage> inboundPipeline = new InboundMessagePipeline<>("mqttInbound", this::processArrivedMessage);
+
+    /**
+     * All messages for a contact (location, card, events, commands) share one key, so that they're
+     * processed in the order they arrived
+     */
+    static String contactKeyForTopic(String topic) {
+        for (String suffix : CONTACT_TOPIC_SUFFIXES) {
+            if (topic.endsWith(suffix)) {
+                return topic.substring(0, topic.length() - suffix.length());
+            }
+        }
+        return topic;
+    }
+
+    private static final String[] CONTACT_TOPIC_SUFFIXES = {MessageCard.BASETOPIC_SUFFIX, "/event", "/cmd", "/waypoint", "/waypoints"};
+
+    /**
+     * Lets the MQTT test harness attach a client of its own to the endpoint's inbound message handling
+     */
+    @VisibleForTesting
+    MqttCallbackExtended getMqttCallback() {
+        return iCallbackClient;
+    }
+
+    InboundMessagePipeline.Stats getInboundStats() {
+        return inboundPipeline.getStats();
+    }
+
+    private void processArrivedMessage(ArrivedMessage arrived) {
+        String topic = arrived.topic;
+        MqttMessage message = arrived.message;
+        String contactKey = contactKeyForTopic(topic);
+        InboundMessageFilter.Admission admission = inboundFilter.check(topic, contactKey, message.getPayload(), oldestAcceptedTimestamp());
+        if (admission == null) {
+            return;
+        }
+        try {
+            MessageBase m = parser.fromJson(message.getPayload());
+            if (!m.isValidMessage()) {
+                Timber.e("message failed validation");
+                return;
+            }
+            inboundFilter.commit(admission);
+            m.setTopic(topic);
+            m.setRetained(message.isRetained());
+            m.setQos(message.getQos());
+            onMessageReceived(m);
+        } catch (Parser.EncryptionException e) {
+            Timber.e(e, "Decryption failure payload:%s ", new String(message.getPayload()));
+        } catch (IOException e) {
+            if (message.getPayload().length == 0) {
+                Timber.d("clear message received: %s", topic);
+                inboundFilter.forget(contactKey);
+                MessageClear m = new MessageClear();
+                m.setTopic(topic.replace(MessageCard.BASETOPIC_SUFFIX, ""));
                 onMessageReceived(m);
-            } catch (Parser.EncryptionException e) {
-                Timber.e(e, "Decryption failure payload:%s ", new String(message.getPayload()));
-            } catch (IOException e) {
-                if (message.getPayload().length == 0) {
-                    Timber.d("clear message received: %s", topic);
-                    MessageClear m = new MessageClear();
-                    m.setTopic(topic.replace(MessageCard.BASETOPIC_SUFFIX, ""));
-                    onMessageReceived(m);
-                } else {
-                    Timber.e(e, "payload: %s ", new String(message.getPayload()));
-                }
+            } else {
+                Timber.e(e, "payload: %s ", new String(message.getPayload()));
             }
         }
-    };
+    }
+
+    /**
+     * @return the timestamp (in seconds) before which received locations are ignored as stale
+     */
+    private long oldestAcceptedTimestamp() {
+        double ignoreStaleLocations = preferences.getSnapshot().ignoreStaleLocations;
+        if (ignoreStaleLocations <= 0) {
+            return Long.MIN_VALUE;
+        }
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - (long) (ignoreStaleLocations * 24 * 60 * 60);
+    }
+
+    private static final class ArrivedMessage {
+        final String topic;
+        final MqttMessage message;
+
+        ArrivedMessage(String topic, MqttMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+    }
 
     private CustomMqttClient buildMqttClient() throws URISyntaxException, MqttException {
         Timber.d("Initializing new mqttClient");
@@ -215,7 +293,8 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         String connectString = new URI(scheme, null, preferences.getHost(), preferences.getPort(), null, null, null).toString();
         Timber.d("client id :%s, connect string: %s", cid, connectString);
         try {
-            CustomMqttClient mqttClient = new CustomMqttClient(connectString, cid, new MqttClientMemoryPersistence());
+            pingSender = new AlarmPingSender(applicationContext);
+            CustomMqttClient mqttClient = new CustomMqttClient(connectString, cid, new MqttClientMemoryPersistence(), pingSender);
             mqttClient.setCallback(iCallbackClient);
             return mqttClient;
         } catch (IllegalArgumentException e) {
@@ -298,67 +377,27 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
         }
 
         connectOptions.setMqttVersion(preferences.getMqttProtocolLevel());
-        InputStream clientCaInputStream = null;
-        InputStream clientCertInputStream = null;
         try {
             if (preferences.getTls()) {
-                String tlsCaCrt = preferences.getTlsCaCrt();
-                String tlsClientCrt = preferences.getTlsClientCrt();
-
-                SocketFactory.SocketFactoryOptions socketFactoryOptions = new SocketFactory.SocketFactoryOptions();
-
-                if (tlsCaCrt.length() > 0) {
-                    try {
-                        clientCaInputStream = applicationContext.openFileInput(tlsCaCrt);
-                        socketFactoryOptions.withCaInputStream(clientCaInputStream);
-
-                        /* The default for paho is to validate hostnames as per the HTTPS spec. However, this causes
-                        a bit of a breakage for some users using self-signed certificates, where the verification of
-                        the hostname is unnecessary under certain circumstances. Specifically when the fingerprint of
-                        the server leaf certificate is the same as the certificate supplied as the CA (as would be the
-                        case using self-signed certs.
-
-                        So we turn off HTTPS behaviour and supply our own hostnameverifier that knows about the self-signed
-                        case.
-                         */
-
-                        connectOptions.setHttpsHostnameVerificationEnabled(false);
-                        try (FileInputStream caFileInputStream = applicationContext.openFileInput(tlsCaCrt)) {
-                            X509Certificate ca = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(caFileInputStream);
-                            connectOptions.setSSLHostnameVerifier(new MqttHostnameVerifier(ca));
-                        }
-                    } catch (FileNotFoundException e) {
-                        Timber.e(e);
-                    }
-                }
-
-                if (tlsClientCrt.length() > 0) {
-                    try {
-                        clientCertInputStream = applicationContext.openFileInput(tlsClientCrt);
-                        socketFactoryOptions.withClientP12InputStream(clientCertInputStream).withClientP12Password(preferences.getTlsClientCrtPassword());
-                    } catch (FileNotFoundException e) {
-                        Timber.e(e);
-                    }
+                TlsContextCache.TlsContext tlsContext = tlsContextCache.get();
+                if (tlsContext.getCaCertificate() != null) {
+                    /* The default for paho is to validate hostnames as per the HTTPS spec. However, this causes
+                    a bit of a breakage for some users using self-signed certificates, where the verification of
+                    the hostname is unnecessary under certain circumstances. Specifically when the fingerprint of
+                    the server leaf certificate is the same as the certificate supplied as the CA (as would be the
+                    case using self-signed certs.
+
+                    So we turn off HTTPS behaviour and supply our own hostnameverifier that knows about the self-signed
+                    case.
+                     */
+                    connectOptions.setHttpsHostnameVerificationEnabled(false);
+                    connectOptions.setSSLHostnameVerifier(new MqttHostnameVerifier(tlsContext.getCaCertificate()));
                 }
-
-                connectOptions.setSocketFactory(new SocketFactory(socketFactoryOptions));
+                connectOptions.setSocketFactory(tlsContext.getSocketFactory());
             }
-
         } catch (CertificateException | NoSuchAlgorithmException | UnrecoverableKeyException | KeyStoreException | KeyManagementException | IOException e) {
             changeState(EndpointState.ERROR.withError(e).withMessage("TLS setup failed"));
             throw new MqttConnectionException(e);
-        } finally {
-            try {
-                if (clientCaInputStream != null) {
-                    clientCaInputStream.close();
-                }
-                if (clientCertInputStream != null) {
-                    clientCertInputStream.close();
-                }
-            } catch (IOException e) {
-                Timber.e(e);
-            }
-
         }
 
         setWill(connectOptions);
@@ -390,12 +429,13 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
 
     private void onConnect() {
         Timber.tag("MQTT").d("MQTT connected!. Running onconnect handler (threadID %s)", Thread.currentThread());
-        scheduler.cancelMqttReconnect();
+        reconnectController.onConnected();
         // Check if we're connecting to the same broker that we were already connected to
         String connectionId = getConnectionId();
         if (lastConnectionId != null && !connectionId.equals(lastConnectionId)) {
             Log.e("TAG", "onConnect: ");
             eventBus.post(new Events.EndpointChanged());
+            inboundFilter.reset();
             lastConnectionId = connectionId;
             Timber.v("lastConnectionId changed to: %s", lastConnectionId);
         }
@@ -520,6 +560,7 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
             connectToBroker();
         } catch (MqttConnectionException | ConfigurationIncompleteException e) {
             Timber.e(e, "Failed to reconnect to MQTT broker");
+            reconnectController.onConnectFailed();
         } finally {
             if (completionNotifier != null) {
                 completionNotifier.release();
@@ -529,9 +570,29 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
 
     @Override
     public void disconnect() {
+        reconnectController.stop();
         disconnect(true);
     }
 
+    /**
+     * Called from the network thread when the reconnect controller decides it's time to try again
+     */
+    private boolean connectForReconnect() {
+        try {
+            connectToBroker();
+        } catch (MqttConnectionException e) {
+            Timber.tag("MQTT").w("Reconnect attempt failed: %s", e.getMessage());
+        } catch (ConfigurationIncompleteException e) {
+            // Nothing to retry until the configuration changes, which reconnects anyway
+            reconnectController.stop();
+        }
+        return isConnected();
+    }
+
+    void onNetworkChanged(boolean available) {
+        reconnectController.onNetworkChanged(available);
+    }
+
     @Override
     public void checkConfigurationComplete() throws ConfigurationIncompleteException {
         // Required to connect: host, username (only send when auth is enabled)
@@ -569,15 +630,17 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
 
     @Override
     public void onDestroy() {
+        reconnectController.stop();
         disconnect(false);
         scheduler.cancelMqttTasks();
+        inboundPipeline.shutdown();
     }
 
     @Override
     public void onCreateFromProcessor() {
         try {
             checkConfigurationComplete();
-            scheduler.scheduleMqttReconnect();
+            reconnectController.start();
         } catch (ConfigurationIncompleteException e) {
             changeState(EndpointState.ERROR_CONFIGURATION.withError(e));
         }
@@ -658,8 +721,8 @@ public class MessageProcessorEndpointMqtt extends MessageProcessorEndpoint imple
 
     private static final class CustomMqttClient extends MqttAsyncClient {
 
-        CustomMqttClient(String serverURI, String clientId, MqttClientPersistence persistence) throws MqttException {
-            super(serverURI, clientId, persistence);
+        CustomMqttClient(String serverURI, String clientId, MqttClientPersistence persistence, MqttPingSender pingSender) throws MqttException {
+            super(serverURI, clientId, persistence, pingSender);
         }
 
         void ping() {
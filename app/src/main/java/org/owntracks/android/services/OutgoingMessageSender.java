@@ -0,0 +1,251 @@
+package org.owntracks.android.services;
+
+import androidx.annotation.NonNull;
+
+import org.owntracks.android.model.messages.MessageBase;
+import org.owntracks.android.support.Metrics;
+import org.owntracks.android.support.interfaces.ConfigurationIncompleteException;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Sends the outgoing queue to the endpoint, one message after another, entirely on the thread behind the
+ * {@link Delayer} (the network thread). Nothing blocks that thread between messages: when the queue is empty
+ * the sender goes idle until {@link #wake()}, and a message that failed is retried from a delayed post rather
+ * than a sleep. {@link #start()} and {@link #stop()} take effect before the next message; a message waiting
+ * to be retried when the sender is stopped goes back to the head of the queue.
+ * <p>
+ * The {@link Gate} parks the sender while there's no usable network: nothing is taken off the queue, and a
+ * send that fails while offline doesn't count against the message's retries. {@link #onGateChanged()} picks
+ * things up straight away when a network comes back. The gate can also hold back the backlog (messages that
+ * have been waiting a while) until there's an unmetered network, while newer messages still go out.
+ */
+class OutgoingMessageSender {
+    interface Delayer {
+        void postDelayed(@NonNull Runnable runnable, long delayMillis);
+    }
+
+    interface Endpoint {
+        void sendMessage(@NonNull MessageBase message) throws ConfigurationIncompleteException, OutgoingMessageSendingException, IOException;
+    }
+
+    interface Gate {
+        boolean isOnline();
+
+        boolean isBacklogDeferred();
+    }
+
+    interface Listener {
+        /**
+         * Called once a message has left the sender, whether it was delivered to the endpoint or dropped
+         */
+        void onMessageFinished(@NonNull MessageBase message);
+    }
+
+    // Messages sent in one go before giving the thread back to anything else posted to it
+    static final int MAX_MESSAGES_PER_TURN = 20;
+    // How long a message waits on the queue before it counts as backlog
+    static final long BACKLOG_AGE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final BlockingDeque<MessageBase> queue;
+    private final long initialRetryWait;
+    private final long maxRetryWait;
+    private final Delayer delayer;
+    private final Endpoint endpoint;
+    private final Gate gate;
+    private final Listener listener;
+
+    // Bumped on every start and stop, so that drains and retries scheduled before then do nothing
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private volatile boolean running = false;
+
+    // Only changed on the sending thread
+    private MessageBase retrying;
+    private int retriesToGo;
+    private long retryWait;
+    private int backoffSequence = 0;
+    private volatile boolean backingOff = false;
+
+    OutgoingMessageSender(@NonNull BlockingDeque<MessageBase> queue, long initialRetryWait, long maxRetryWait, @NonNull Delayer delayer, @NonNull Endpoint endpoint, @NonNull Gate gate, @NonNull Listener listener) {
+        this.queue = queue;
+        this.initialRetryWait = initialRetryWait;
+        this.maxRetryWait = maxRetryWait;
+        this.delayer = delayer;
+        this.endpoint = endpoint;
+        this.gate = gate;
+        this.listener = listener;
+        this.retryWait = initialRetryWait;
+    }
+
+    /**
+     * Starts sending, or restarts it if it's already going (e.g. because the endpoint changed). A message
+     * waiting to be retried is retried straight away.
+     */
+    void start() {
+        running = true;
+        int token = generation.incrementAndGet();
+        delayer.postDelayed(() -> {
+            if (token != generation.get()) {
+                return;
+            }
+            resume(token);
+        }, 0);
+    }
+
+    void stop() {
+        running = false;
+        generation.incrementAndGet();
+        delayer.postDelayed(() -> {
+            backingOff = false;
+            if (retrying != null) {
+                if (!queue.offerFirst(retrying)) {
+                    Timber.e("Outgoing queue full. Dropping message waiting to be retried: %s", retrying);
+                    Metrics.increment(Metrics.SEND_DROPPED);
+                    listener.onMessageFinished(retrying);
+                }
+                retrying = null;
+            }
+        }, 0);
+    }
+
+    /**
+     * Tells the sender that the gate may have opened. If there's a network now, a message waiting to be
+     * retried is retried straight away, since whatever it was failing on has probably changed.
+     */
+    void onGateChanged() {
+        if (!running) {
+            return;
+        }
+        int token = generation.get();
+        delayer.postDelayed(() -> {
+            if (token != generation.get() || !gate.isOnline()) {
+                return;
+            }
+            resume(token);
+        }, 0);
+    }
+
+    /**
+     * Tells the sender there's something on the queue. Cheap enough to call for every message.
+     */
+    void wake() {
+        if (running && !backingOff && gate.isOnline() && drainScheduled.compareAndSet(false, true)) {
+            int token = generation.get();
+            delayer.postDelayed(() -> drain(token), 0);
+        }
+    }
+
+    private void resume(int token) {
+        // Any retry that's already scheduled is superseded by this one
+        backoffSequence++;
+        backingOff = false;
+        retryWait = initialRetryWait;
+        drain(token);
+    }
+
+    private void drain(int token) {
+        drainScheduled.set(false);
+        if (backingOff) {
+            return;
+        }
+        for (int sent = 0; sent < MAX_MESSAGES_PER_TURN; sent++) {
+            if (token != generation.get() || !gate.isOnline()) {
+                return;
+            }
+            MessageBase message;
+            if (retrying != null) {
+                message = retrying;
+                retrying = null;
+            } else {
+                message = gate.isBacklogDeferred() ? pollRecent() : queue.poll();
+                if (message == null) {
+                    return;
+                }
+                Metrics.record(Metrics.SEND_QUEUE_WAIT, System.nanoTime() - message.getQueuedAt());
+                retriesToGo = message.getNumberOfRetries();
+            }
+
+            if (!send(message)) {
+                if (!gate.isOnline()) {
+                    // Parked until there's a network again, which doesn't use up a retry
+                    retrying = message;
+                    return;
+                }
+                retriesToGo -= 1;
+                if (retriesToGo > 0) {
+                    retryLater(token, message);
+                    return;
+                }
+                Metrics.increment(Metrics.SEND_DROPPED);
+            }
+            retryWait = initialRetryWait;
+            listener.onMessageFinished(message);
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            delayer.postDelayed(() -> drain(token), 0);
+        }
+    }
+
+    /**
+     * @return the oldest message that isn't backlog, if there is one. Newer messages are at the tail, so this
+     * only walks the recent part of the queue.
+     */
+    private MessageBase pollRecent() {
+        long cutoff = System.nanoTime() - BACKLOG_AGE_NANOS;
+        int recent = 0;
+        for (Iterator<MessageBase> iterator = queue.descendingIterator(); iterator.hasNext() && iterator.next().getQueuedAt() - cutoff >= 0; ) {
+            recent++;
+        }
+        MessageBase message = null;
+        Iterator<MessageBase> iterator = queue.descendingIterator();
+        for (int i = 0; i < recent && iterator.hasNext(); i++) {
+            message = iterator.next();
+        }
+        if (message != null) {
+            iterator.remove();
+        }
+        return message;
+    }
+
+    /**
+     * @return false if sending failed in a way that's worth retrying
+     */
+    private boolean send(MessageBase message) {
+        try {
+            endpoint.sendMessage(message);
+        } catch (OutgoingMessageSendingException | ConfigurationIncompleteException e) {
+            Timber.w("Error sending message. Re-queueing");
+            return false;
+        } catch (IOException e) {
+            // Deserialization failure, drop and move on
+            Metrics.increment(Metrics.SEND_DROPPED);
+        } catch (RuntimeException e) {
+            Timber.e(e, "Unhandled exception in sending message");
+            Metrics.increment(Metrics.SEND_DROPPED);
+        }
+        return true;
+    }
+
+    private void retryLater(int token, MessageBase message) {
+        retrying = message;
+        backingOff = true;
+        Metrics.increment(Metrics.SEND_RETRIES);
+        int sequence = ++backoffSequence;
+        delayer.postDelayed(() -> {
+            if (token != generation.get() || sequence != backoffSequence) {
+                return;
+            }
+            backingOff = false;
+            drain(token);
+        }, retryWait);
+        retryWait = Math.min(2 * retryWait, maxRetryWait);
+    }
+}
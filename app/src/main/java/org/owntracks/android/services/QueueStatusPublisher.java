@@ -0,0 +1,92 @@
+package org.owntracks.android.services;
+
+import androidx.annotation.NonNull;
+
+import org.owntracks.android.model.messages.MessageBase;
+import org.owntracks.android.support.Events;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the stream of changes to the outgoing queue into at most one {@link Events.QueueChanged} per
+ * interval. The first change after a quiet period is published straight away; changes after that are
+ * folded into a single update at the end of the interval, which reads the queue as it is then, so the last
+ * state is always published.
+ */
+class QueueStatusPublisher {
+    interface Delayer {
+        void postDelayed(@NonNull Runnable runnable, long delayMillis);
+    }
+
+    interface Listener {
+        void onQueueChanged(@NonNull Events.QueueChanged queueChanged);
+    }
+
+    interface NanoClock {
+        long nanoTime();
+    }
+
+    // Weight given to the latest interval when smoothing the drain rate
+    private static final double DRAIN_RATE_SMOOTHING = 0.3;
+
+    private final BlockingDeque<MessageBase> queue;
+    private final long minIntervalNanos;
+    private final Delayer delayer;
+    private final NanoClock clock;
+    private final Listener listener;
+
+    private boolean pending = false;
+    private long lastPublishedAt;
+    private long deliveredSinceLastPublish = 0;
+    private double drainRate = 0;
+
+    QueueStatusPublisher(@NonNull BlockingDeque<MessageBase> queue, long minIntervalMillis, @NonNull Delayer delayer, @NonNull Listener listener) {
+        this(queue, minIntervalMillis, delayer, System::nanoTime, listener);
+    }
+
+    QueueStatusPublisher(@NonNull BlockingDeque<MessageBase> queue, long minIntervalMillis, @NonNull Delayer delayer, @NonNull NanoClock clock, @NonNull Listener listener) {
+        this.queue = queue;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        this.delayer = delayer;
+        this.clock = clock;
+        this.listener = listener;
+        this.lastPublishedAt = clock.nanoTime() - minIntervalNanos;
+    }
+
+    void onQueueChanged() {
+        long delayNanos;
+        synchronized (this) {
+            if (pending) {
+                return;
+            }
+            pending = true;
+            delayNanos = Math.max(0, lastPublishedAt + minIntervalNanos - clock.nanoTime());
+        }
+        delayer.postDelayed(this::publish, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+    }
+
+    synchronized void onDelivered() {
+        deliveredSinceLastPublish++;
+    }
+
+    private void publish() {
+        Events.QueueChanged queueChanged;
+        synchronized (this) {
+            pending = false;
+            long now = clock.nanoTime();
+            long elapsed = now - lastPublishedAt;
+            if (elapsed > 0) {
+                double latestRate = deliveredSinceLastPublish * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+                drainRate = queue.isEmpty() && deliveredSinceLastPublish == 0 ? 0 : DRAIN_RATE_SMOOTHING * latestRate + (1 - DRAIN_RATE_SMOOTHING) * drainRate;
+            }
+            deliveredSinceLastPublish = 0;
+            lastPublishedAt = now;
+
+            MessageBase oldest = queue.peekFirst();
+            long oldestAgeMillis = oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(now - oldest.getQueuedAt());
+            queueChanged = new Events.QueueChanged(queue.size(), oldestAgeMillis, drainRate);
+        }
+        listener.onQueueChanged(queueChanged);
+    }
+}
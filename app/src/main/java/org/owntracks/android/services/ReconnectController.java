@@ -0,0 +1,131 @@
+package org.owntracks.android.services;
+
+import androidx.annotation.NonNull;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Decides when to try to reconnect to the broker after the connection drops. Attempts back off
+ * exponentially up to {@link #MAX_DELAY_MILLIS}, and each delay is jittered between half and all of its
+ * nominal value so that clients that lost the same broker at the same time don't all come back at once.
+ * While there's no network nothing is attempted; when a network appears, the next attempt is made straight
+ * away and the backoff starts over.
+ */
+class ReconnectController {
+    interface Delayer {
+        void postDelayed(@NonNull Runnable runnable, long delayMillis);
+    }
+
+    interface Connector {
+        /**
+         * @return true if there's a connection to the broker afterwards
+         */
+        boolean connect();
+    }
+
+    static final long INITIAL_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    static final long MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Delayer delayer;
+    private final Connector connector;
+    private final Random random;
+
+    private boolean wanted = false;
+    private boolean connected = false;
+    private boolean networkAvailable = true;
+    private int failedAttempts = 0;
+    // Bumped whenever a scheduled attempt is no longer wanted
+    private int sequence = 0;
+
+    ReconnectController(@NonNull Delayer delayer, @NonNull Connector connector) {
+        this(delayer, connector, new Random());
+    }
+
+    ReconnectController(@NonNull Delayer delayer, @NonNull Connector connector, @NonNull Random random) {
+        this.delayer = delayer;
+        this.connector = connector;
+        this.random = random;
+    }
+
+    /**
+     * We want to be connected from now on. Connects straight away if we aren't already.
+     */
+    synchronized void start() {
+        wanted = true;
+        if (!connected) {
+            failedAttempts = 0;
+            schedule(0);
+        }
+    }
+
+    synchronized void stop() {
+        wanted = false;
+        sequence++;
+    }
+
+    /**
+     * A connection however it came about, including an explicit reconnect, means we want to stay connected.
+     */
+    synchronized void onConnected() {
+        wanted = true;
+        connected = true;
+        failedAttempts = 0;
+        sequence++;
+    }
+
+    synchronized void onConnectionLost() {
+        connected = false;
+        if (wanted) {
+            schedule(nextDelay());
+        }
+    }
+
+    /**
+     * An explicit connection attempt failed. That means we want to be connected, so keep trying.
+     */
+    synchronized void onConnectFailed() {
+        wanted = true;
+        connected = false;
+        failedAttempts++;
+        schedule(nextDelay());
+    }
+
+    synchronized void onNetworkChanged(boolean available) {
+        networkAvailable = available;
+        if (available && wanted && !connected) {
+            failedAttempts = 0;
+            schedule(0);
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        int scheduled = ++sequence;
+        Timber.tag("MQTT").d("Reconnecting in %dms", delayMillis);
+        delayer.postDelayed(() -> attempt(scheduled), delayMillis);
+    }
+
+    private void attempt(int scheduled) {
+        synchronized (this) {
+            if (scheduled != sequence || !wanted || connected || !networkAvailable) {
+                return;
+            }
+        }
+        boolean success = connector.connect();
+        synchronized (this) {
+            if (success) {
+                onConnected();
+            } else if (scheduled == sequence && wanted) {
+                failedAttempts++;
+                schedule(nextDelay());
+            }
+        }
+    }
+
+    private long nextDelay() {
+        long nominal = Math.min(MAX_DELAY_MILLIS, INITIAL_DELAY_MILLIS << Math.min(failedAttempts, 20));
+        return nominal / 2 + (long) (random.nextDouble() * (nominal / 2));
+    }
+}
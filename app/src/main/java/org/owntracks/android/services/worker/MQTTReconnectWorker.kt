@@ -12,6 +12,9 @@ import javax.inject.Inject
 class MQTTReconnectWorker(context: Context, workerParams: WorkerParameters, private val messageProcessor: MessageProcessor) : Worker(context, workerParams) {
     override fun doWork(): Result {
         Timber.i("MQTTReconnectWorker Doing work on threadID: %s", Thread.currentThread())
+        // The endpoint normally reconnects by itself, so there's usually nothing left to do by the time this runs.
+        // This also loads the endpoint if the process was restarted to run this.
+        if (messageProcessor.statefulCheckConnection()) return Result.success()
         if (!messageProcessor.isEndpointConfigurationComplete) return Result.failure()
         // We're going to try and call messagePrcessor.reconnect() here, which may reinvoke itself on
         // a different thread. One option here was to faff around with futures, but it seems easier just to
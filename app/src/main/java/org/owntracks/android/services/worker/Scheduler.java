@@ -4,6 +4,7 @@ import android.content.Context;
 
 import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
@@ -28,6 +29,7 @@ public class Scheduler {
     private static final String PERIODIC_TASK_SEND_LOCATION_PING = "PERIODIC_TASK_SEND_LOCATION_PING";
     private static final String PERIODIC_TASK_MQTT_KEEPALIVE = "PERIODIC_TASK_MQTT_KEEPALIVE";
     private static final String ONETIME_TASK_MQTT_RECONNECT = "PERIODIC_TASK_MQTT_RECONNECT";
+    private static final long MQTT_RECONNECT_SAFETY_NET_DELAY_MINUTES = 15;
     private final Context context;
     private final Constraints anyNetworkConstraint = new Constraints.Builder()
             .setRequiredNetworkType(NetworkType.CONNECTED)
@@ -62,7 +64,9 @@ public class Scheduler {
 
     public void scheduleMqttMaybeReconnectAndPing(long keepAliveSeconds) {
         if (keepAliveSeconds < TimeUnit.MILLISECONDS.toSeconds(MIN_PERIODIC_INTERVAL_MILLIS)) {
-            Timber.tag("MQTT").i("MQTT Keepalive interval is smaller than most granular workmanager interval, setting to 900 seconds");
+            // The keepalive itself is kept by the MQTT client's ping sender. This worker is only here to reconnect
+            // if that's stopped, so it doesn't need to run as often as the keepalive.
+            Timber.tag("MQTT").d("MQTT Keepalive interval is smaller than most granular workmanager interval, checking the connection every 900 seconds");
             keepAliveSeconds = TimeUnit.MILLISECONDS.toSeconds(MIN_PERIODIC_INTERVAL_MILLIS);
         }
         WorkRequest mqttPingWorkRequest = new PeriodicWorkRequest.Builder(MQTTMaybeReconnectAndPingWorker.class, keepAliveSeconds, TimeUnit.SECONDS)
@@ -91,17 +95,22 @@ public class Scheduler {
         WorkManager.getInstance(this.context).enqueue(pingWorkRequest);
     }
 
+    /**
+     * Reconnecting is handled in-process by the MQTT endpoint, so this is only a safety net for when the
+     * process is killed while disconnected. If one is already pending it's left alone rather than replaced,
+     * so a flapping connection doesn't keep rewriting WorkManager's database.
+     */
     public void scheduleMqttReconnect() {
-        WorkRequest mqttReconnectWorkRequest =
+        OneTimeWorkRequest mqttReconnectWorkRequest =
                 new OneTimeWorkRequest.Builder(MQTTReconnectWorker.class)
                         .addTag(ONETIME_TASK_MQTT_RECONNECT)
-                        .setBackoffCriteria(BackoffPolicy.LINEAR, 5, TimeUnit.SECONDS)
+                        .setInitialDelay(MQTT_RECONNECT_SAFETY_NET_DELAY_MINUTES, TimeUnit.MINUTES)
+                        .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
                         .setConstraints(anyNetworkConstraint)
                         .build();
 
-        Timber.tag("MQTT").d("WorkManager queue task %s as %s", ONETIME_TASK_MQTT_RECONNECT, mqttReconnectWorkRequest.getId());
-        WorkManager.getInstance(this.context).cancelAllWorkByTag(ONETIME_TASK_MQTT_RECONNECT);
-        WorkManager.getInstance(this.context).enqueue(mqttReconnectWorkRequest);
+        Timber.tag("MQTT").d("WorkManager queue task %s as %s unless already queued", ONETIME_TASK_MQTT_RECONNECT, mqttReconnectWorkRequest.getId());
+        WorkManager.getInstance(this.context).enqueueUniqueWork(ONETIME_TASK_MQTT_RECONNECT, ExistingWorkPolicy.KEEP, mqttReconnectWorkRequest);
     }
 
     public void cancelMqttReconnect() {
@@ -0,0 +1,59 @@
+package org.owntracks.android.support
+
+import android.os.SystemClock
+import okhttp3.Dns
+import timber.log.Timber
+import java.net.InetAddress
+import java.net.UnknownHostException
+import java.util.concurrent.TimeUnit
+
+/**
+ * [Dns] that remembers lookups for a while, so repeated requests to the same host don't each wait on the
+ * resolver. If a lookup fails (which on a flaky mobile link is usually the network, not the name), the last
+ * known addresses are used for a while longer rather than failing the request outright.
+ */
+class CachingDns(
+        private val resolver: (String) -> List<InetAddress> = { Dns.SYSTEM.lookup(it) },
+        private val clock: () -> Long = { SystemClock.elapsedRealtime() },
+        private val ttlMillis: Long = TimeUnit.MINUTES.toMillis(10),
+        private val maxStaleMillis: Long = TimeUnit.HOURS.toMillis(1)
+) : Dns {
+    private class Entry(val addresses: List<InetAddress>, val resolvedAt: Long)
+
+    private val entries = HashMap<String, Entry>()
+
+    override fun lookup(hostname: String): List<InetAddress> {
+        val cached = synchronized(entries) { entries[hostname] }
+        val now = clock()
+        if (cached != null && now - cached.resolvedAt < ttlMillis) {
+            return cached.addresses
+        }
+        return try {
+            val addresses = resolver(hostname)
+            synchronized(entries) { entries[hostname] = Entry(addresses, clock()) }
+            addresses
+        } catch (e: UnknownHostException) {
+            if (cached != null && now - cached.resolvedAt < maxStaleMillis) {
+                Timber.w("Lookup of %s failed, using addresses from %ss ago", hostname, (now - cached.resolvedAt) / 1000)
+                cached.addresses
+            } else {
+                throw e
+            }
+        }
+    }
+
+    /**
+     * Resolves [hostname] ahead of the first request to it. Failures are ignored; the request will try again.
+     */
+    fun prefetch(hostname: String) {
+        try {
+            lookup(hostname)
+        } catch (e: UnknownHostException) {
+            Timber.d("Prefetch of %s failed: %s", hostname, e.message)
+        }
+    }
+
+    fun clear() {
+        synchronized(entries) { entries.clear() }
+    }
+}
@@ -0,0 +1,90 @@
+package org.owntracks.android.support
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
+import android.net.NetworkRequest
+import android.os.Build
+import org.owntracks.android.injection.qualifier.AppContext
+import timber.log.Timber
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Keeps track of whether there's a network we can send over, from ConnectivityManager callbacks rather than
+ * by trying and failing. Any network with internet capability counts as online, validated or not, because a
+ * network without internet access may still be the way to a broker or recorder on the local network. On M
+ * and above, a network becoming validated is a state change of its own, so that anything waiting on a
+ * network that wasn't working is tried again straight away.
+ */
+@Singleton
+class ConnectivityMonitor @Inject constructor(@AppContext private val context: Context) {
+    data class State(val online: Boolean, val unmetered: Boolean, val validated: Boolean = online)
+
+    /**
+     * Only posted when the state actually changes
+     */
+    val states = EventChannel.conflated<State>()
+
+    private val networks = mutableMapOf<Network, NetworkCapabilities>()
+    private var started = false
+
+    private val connectivityManager: ConnectivityManager
+        get() = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+
+    private val callback = object : ConnectivityManager.NetworkCallback() {
+        override fun onAvailable(network: Network) {
+            // Before O, capabilities aren't guaranteed to follow straight after onAvailable
+            connectivityManager.getNetworkCapabilities(network)?.let { onCapabilitiesChanged(network, it) }
+        }
+
+        override fun onCapabilitiesChanged(network: Network, networkCapabilities: NetworkCapabilities) {
+            synchronized(networks) { networks[network] = networkCapabilities }
+            publish()
+        }
+
+        override fun onLost(network: Network) {
+            synchronized(networks) { networks.remove(network) }
+            publish()
+        }
+    }
+
+    val isOnline: Boolean
+        get() = states.latest?.online ?: true
+
+    val isUnmetered: Boolean
+        get() = states.latest?.unmetered ?: true
+
+    @Synchronized
+    fun start() {
+        if (started) {
+            return
+        }
+        started = true
+        val connectivityManager = connectivityManager
+        @Suppress("DEPRECATION")
+        states.post(State(connectivityManager.activeNetworkInfo?.isConnected == true, !connectivityManager.isActiveNetworkMetered))
+        try {
+            connectivityManager.registerNetworkCallback(NetworkRequest.Builder().addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build(), callback)
+        } catch (e: RuntimeException) {
+            // Some devices throw if an app has too many callbacks registered. Stay online so that sending isn't blocked.
+            Timber.e(e, "Unable to register network callback")
+            states.post(State(online = true, unmetered = true, validated = true))
+        }
+    }
+
+    private fun publish() {
+        val state = synchronized(networks) {
+            val usable = networks.values.filter { it.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) }
+            State(usable.isNotEmpty(), usable.any { it.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) }, usable.any { it.isValidated() })
+        }
+        if (state != states.latest) {
+            Timber.d("Connectivity changed: %s", state)
+            states.post(state)
+        }
+    }
+
+    private fun NetworkCapabilities.isValidated() =
+            Build.VERSION.SDK_INT < Build.VERSION_CODES.M || hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+}
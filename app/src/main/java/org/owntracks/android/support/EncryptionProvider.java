@@ -24,6 +24,9 @@ public class EncryptionProvider {
     private static final int crypto_secretbox_NONCEBYTES = XSALSA20_POLY1305_SECRETBOX_NONCEBYTES;
     private static final int crypto_secretbox_KEYBYTES = XSALSA20_POLY1305_SECRETBOX_KEYBYTES;
 
+    // The SecretBox and Random are created on first use rather than when the key is set, because creating
+    // either loads libsodium, which is too slow to do while the app is starting
+    private static byte[] key;
     private static SecretBox b;
     private static Random r;
     private static boolean enabled;
@@ -57,8 +60,24 @@ public class EncryptionProvider {
 
         System.arraycopy(encryptionKeyBytes, 0, encryptionKeyBytesPadded, 0, copyBytes);
 
-        b = new SecretBox(encryptionKeyBytesPadded);
-        r = new Random();
+        synchronized (EncryptionProvider.class) {
+            key = encryptionKeyBytesPadded;
+            b = null;
+        }
+    }
+
+    private static synchronized SecretBox getSecretBox() {
+        if (b == null) {
+            b = new SecretBox(key);
+        }
+        return b;
+    }
+
+    private static synchronized Random getRandom() {
+        if (r == null) {
+            r = new Random();
+        }
+        return r;
     }
 
     @Inject
@@ -75,7 +94,7 @@ public class EncryptionProvider {
 
         System.arraycopy(onTheWire, 0, nonce, 0, crypto_secretbox_NONCEBYTES);
         System.arraycopy(onTheWire, crypto_secretbox_NONCEBYTES, cyphertext, 0, onTheWire.length - crypto_secretbox_NONCEBYTES);
-        return new String(b.decrypt(nonce, cyphertext));
+        return new String(getSecretBox().decrypt(nonce, cyphertext));
     }
 
     String encrypt(@NonNull String plaintext) {
@@ -83,8 +102,8 @@ public class EncryptionProvider {
     }
 
     String encrypt(@NonNull byte[] plaintext) {
-        byte[] nonce = r.randomBytes(crypto_secretbox_NONCEBYTES);
-        byte[] cyphertext = b.encrypt(nonce, plaintext);
+        byte[] nonce = getRandom().randomBytes(crypto_secretbox_NONCEBYTES);
+        byte[] cyphertext = getSecretBox().encrypt(nonce, plaintext);
         byte[] out = new byte[crypto_secretbox_NONCEBYTES + cyphertext.length];
 
         System.arraycopy(nonce, 0, out, 0, crypto_secretbox_NONCEBYTES);
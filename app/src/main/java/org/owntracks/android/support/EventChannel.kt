@@ -0,0 +1,134 @@
+package org.owntracks.android.support
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+
+/**
+ * A typed stream of values with conflation, for the things that change often (locations, contacts, endpoint
+ * and queue state). Posting doesn't look anything up or allocate per observer: each observer has one pending
+ * slot, and if it hasn't caught up by the time the next value arrives, it only gets the latest.
+ *
+ * A [conflated] channel keeps a single latest value, which new observers get straight away. A
+ * [conflatedPerValue] channel keeps each distinct pending value (e.g. each contact that changed) until the
+ * observer gets to it, and has no replay.
+ */
+class EventChannel<T : Any> private constructor(private val perValue: Boolean) {
+    fun interface Observer<T> {
+        fun onEvent(value: T)
+    }
+
+    interface Subscription {
+        fun cancel()
+    }
+
+    private val registrations = CopyOnWriteArrayList<Registration>()
+
+    // Numbers the posted values, so that replaying the latest value to a new observer can't overwrite a newer
+    // one that was posted to it in the meantime. Guards latest and sequence being updated together.
+    private val lock = Any()
+    private var sequence = 0L
+
+    @Volatile
+    var latest: T? = null
+        private set
+
+    fun post(value: T) {
+        val posted = synchronized(lock) {
+            if (!perValue) {
+                latest = value
+            }
+            ++sequence
+        }
+        for (registration in registrations) {
+            registration.offer(value, posted)
+        }
+    }
+
+    /**
+     * @param executor where the observer is called. If null, it's called on the posting thread.
+     */
+    fun observe(executor: Executor?, observer: Observer<T>): Subscription {
+        val registration = Registration(executor, observer)
+        registrations.add(registration)
+        var replay: T? = null
+        var replaySequence = 0L
+        synchronized(lock) {
+            replay = latest
+            replaySequence = sequence
+        }
+        replay?.let { registration.offer(it, replaySequence) }
+        return registration
+    }
+
+    private inner class Registration(private val executor: Executor?, private val observer: Observer<T>) : Subscription {
+        @Volatile
+        private var active = true
+        private val pendingValues = LinkedHashSet<T>()
+        private var pendingValue: T? = null
+        private var scheduled = false
+        // The newest value offered so far. Anything older is stale on a conflated channel.
+        private var offeredSequence = 0L
+        private val drain = Runnable { drain() }
+
+        fun offer(value: T, sequence: Long) {
+            if (executor == null) {
+                if (perValue) {
+                    if (active) observer.onEvent(value)
+                    return
+                }
+                // One at a time, so that an older value can't be delivered after a newer one
+                synchronized(this) {
+                    if (advance(sequence) && active) observer.onEvent(value)
+                }
+                return
+            }
+            synchronized(this) {
+                if (perValue) {
+                    pendingValues.add(value)
+                } else {
+                    if (!advance(sequence)) return
+                    pendingValue = value
+                }
+                if (scheduled) return
+                scheduled = true
+            }
+            executor.execute(drain)
+        }
+
+        // Called with the registration locked
+        private fun advance(sequence: Long): Boolean {
+            if (sequence <= offeredSequence) return false
+            offeredSequence = sequence
+            return true
+        }
+
+        private fun drain() {
+            if (perValue) {
+                val values = synchronized(this) {
+                    scheduled = false
+                    pendingValues.toList().also { pendingValues.clear() }
+                }
+                values.forEach { if (active) observer.onEvent(it) }
+            } else {
+                val value = synchronized(this) {
+                    scheduled = false
+                    pendingValue.also { pendingValue = null }
+                }
+                if (value != null && active) observer.onEvent(value)
+            }
+        }
+
+        override fun cancel() {
+            active = false
+            registrations.remove(this)
+        }
+    }
+
+    companion object {
+        @JvmStatic
+        fun <T : Any> conflated() = EventChannel<T>(false)
+
+        @JvmStatic
+        fun <T : Any> conflatedPerValue() = EventChannel<T>(true)
+    }
+}
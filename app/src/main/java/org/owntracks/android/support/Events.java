@@ -4,6 +4,7 @@ import org.owntracks.android.data.WaypointModel;
 import org.owntracks.android.model.FusedContact;
 
 import java.util.Date;
+import java.util.List;
 
 public class Events {
     public static abstract class E {
@@ -81,18 +82,30 @@ public class Events {
 	}
 
     public static class QueueChanged extends E {
-        int length;
+        private final int length;
+        private final long oldestAgeMillis;
+        private final double drainRate;
 
-        public QueueChanged() {
-        }
-        public QueueChanged withNewLength(int length) {
+        public QueueChanged(int length, long oldestAgeMillis, double drainRate) {
             this.length = length;
-            return this;
+            this.oldestAgeMillis = oldestAgeMillis;
+            this.drainRate = drainRate;
         }
         public int getNewLength() {
             return length;
         }
-
+        /**
+         * @return how long the message at the head of the queue has been waiting
+         */
+        public long getOldestAgeMillis() {
+            return oldestAgeMillis;
+        }
+        /**
+         * @return messages delivered per second, smoothed over recent updates
+         */
+        public double getDrainRate() {
+            return drainRate;
+        }
     }
     public static class WaypointEvent extends E {
         private final WaypointModel m;
@@ -121,14 +134,15 @@ public class Events {
         }
     }
 
-    public static class FusedContactAdded extends E {
-        private final FusedContact fusedContact;
+    public static class WaypointsImported extends E {
+        private final List<WaypointModel> waypoints;
 
-        public FusedContactAdded(FusedContact c) {
-            this.fusedContact = c;
+        public WaypointsImported(List<WaypointModel> waypoints) {
+            this.waypoints = waypoints;
         }
-        public FusedContact getContact() {
-            return this.fusedContact;
+
+        public List<WaypointModel> getWaypointModels() {
+            return this.waypoints;
         }
     }
 
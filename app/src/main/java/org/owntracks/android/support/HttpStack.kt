@@ -0,0 +1,122 @@
+package org.owntracks.android.support
+
+import android.content.SharedPreferences
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import okhttp3.OkHttpClient
+import org.owntracks.android.R
+import org.owntracks.android.services.MessageProcessorEndpointHttp
+import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener
+import timber.log.Timber
+import java.util.concurrent.TimeUnit
+import javax.inject.Inject
+import javax.inject.Singleton
+import javax.net.ssl.SSLSocketFactory
+import javax.net.ssl.X509TrustManager
+
+/**
+ * The one place OkHttp clients come from. Every client is derived from the same base client, so they share
+ * its dispatcher threads, its connection pool (so a connection to a host, and its TLS session, is reused
+ * across requests and across consumers) and its DNS cache. Each consumer only gets its own timeouts.
+ *
+ * The host of the configured endpoint is resolved ahead of the first connection, and again whenever it
+ * changes.
+ */
+@Singleton
+class HttpStack @Inject constructor(
+        private val preferences: Preferences,
+        private val runThingsOnOtherThreads: RunThingsOnOtherThreads
+) : OnModeChangedPreferenceChangedListener {
+    val dns = CachingDns()
+
+    private val baseClient: OkHttpClient by lazy {
+        OkHttpClient.Builder()
+                .dispatcher(Dispatcher().apply { maxRequestsPerHost = MAX_REQUESTS_PER_HOST })
+                .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dns(dns)
+                .build()
+    }
+
+    /**
+     * Client for the HTTP endpoint. Failed requests aren't retried here because the outgoing queue
+     * already does that.
+     *
+     * @param reuseConnections false to close each connection after its request, for servers that don't
+     * cope with keep-alive
+     */
+    fun endpointClient(sslSocketFactory: SSLSocketFactory?, trustManager: X509TrustManager?, reuseConnections: Boolean): OkHttpClient {
+        val builder = baseClient.newBuilder()
+                .followRedirects(true)
+                .followSslRedirects(true)
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(false)
+                .cache(null)
+        if (!reuseConnections) {
+            builder.connectionPool(ConnectionPool(1, 1, TimeUnit.MICROSECONDS))
+        }
+        if (sslSocketFactory != null && trustManager != null) {
+            builder.sslSocketFactory(sslSocketFactory, trustManager)
+        }
+        return builder.build()
+    }
+
+    /**
+     * Client for reverse geocoding. Geocoding is best-effort, so it gives up sooner than the endpoint does.
+     */
+    val geocoderClient: OkHttpClient by lazy {
+        baseClient.newBuilder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(10, TimeUnit.SECONDS)
+                .callTimeout(20, TimeUnit.SECONDS)
+                .build()
+    }
+
+    /**
+     * Client for fetching a remote configuration
+     */
+    val remoteConfigurationClient: OkHttpClient by lazy {
+        baseClient.newBuilder()
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .build()
+    }
+
+    init {
+        preferences.registerOnPreferenceChangedListener(this)
+        prefetchEndpointHost()
+    }
+
+    private fun prefetchEndpointHost() {
+        val host = when (preferences.mode) {
+            MessageProcessorEndpointHttp.MODE_ID -> preferences.url.toHttpUrlOrNull()?.host
+            else -> preferences.host
+        }
+        if (host.isNullOrBlank()) {
+            return
+        }
+        runThingsOnOtherThreads.postOnBackgroundHandlerDelayed(Runnable {
+            Timber.v("Prefetching address of %s", host)
+            dns.prefetch(host)
+        }, 0)
+    }
+
+    override fun onAttachAfterModeChanged() {
+        prefetchEndpointHost()
+    }
+
+    override fun onSharedPreferenceChanged(sharedPreferences: SharedPreferences?, key: String?) {
+        if (preferences.getPreferenceKey(R.string.preferenceKeyURL) == key ||
+                preferences.getPreferenceKey(R.string.preferenceKeyHost) == key) {
+            prefetchEndpointHost()
+        }
+    }
+
+    companion object {
+        private const val MAX_REQUESTS_PER_HOST = 4
+        private const val MAX_IDLE_CONNECTIONS = 4
+        private const val KEEP_ALIVE_MINUTES = 5L
+    }
+}
@@ -0,0 +1,90 @@
+package org.owntracks.android.support
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Fixed-size histogram of durations, from a microsecond up to an hour. Buckets are logarithmic with 16
+ * linear steps between each power of two, so any reported value is within about 6% of the real one, and
+ * recording is a couple of atomic increments with no allocation. Longer durations are counted as an hour.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(BUCKETS)
+    private val total = AtomicLong()
+    private val sumMicros = AtomicLong()
+    private val maxMicros = AtomicLong()
+
+    fun record(durationNanos: Long) {
+        val micros = TimeUnit.NANOSECONDS.toMicros(durationNanos).coerceIn(0, MAX_MICROS)
+        counts.incrementAndGet(bucketFor(micros))
+        total.incrementAndGet()
+        sumMicros.addAndGet(micros)
+        var max: Long
+        do {
+            max = maxMicros.get()
+        } while (micros > max && !maxMicros.compareAndSet(max, micros))
+    }
+
+    val count: Long
+        get() = total.get()
+
+    val meanMillis: Double
+        get() = total.get().let { if (it == 0L) 0.0 else sumMicros.get() / it / 1000.0 }
+
+    val maxMillis: Double
+        get() = maxMicros.get() / 1000.0
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value at or below which [percentile]% of the recorded durations are, in milliseconds
+     */
+    fun percentileMillis(percentile: Double): Double {
+        val recorded = total.get()
+        if (recorded == 0L) {
+            return 0.0
+        }
+        val rank = Math.ceil(percentile / 100 * recorded).toLong().coerceIn(1, recorded)
+        var seen = 0L
+        for (index in 0 until BUCKETS) {
+            seen += counts.get(index)
+            if (seen >= rank) {
+                return minOf(highestValueIn(index), maxMicros.get()) / 1000.0
+            }
+        }
+        return maxMillis
+    }
+
+    fun reset() {
+        for (index in 0 until BUCKETS) {
+            counts.set(index, 0)
+        }
+        total.set(0)
+        sumMicros.set(0)
+        maxMicros.set(0)
+    }
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 4
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private val MAX_MICROS = TimeUnit.HOURS.toMicros(1)
+        private val BUCKETS = bucketFor(MAX_MICROS) + 1
+
+        internal fun bucketFor(micros: Long): Int {
+            if (micros < 2 * SUB_BUCKETS) {
+                return micros.toInt()
+            }
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS
+            return (shift + 1) * SUB_BUCKETS + (micros shr shift).toInt() - SUB_BUCKETS
+        }
+
+        internal fun highestValueIn(bucket: Int): Long {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket.toLong()
+            }
+            val shift = bucket / SUB_BUCKETS - 1
+            val subBucket = (bucket % SUB_BUCKETS + SUB_BUCKETS).toLong()
+            return ((subBucket + 1) shl shift) - 1
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.owntracks.android.support
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SerializationFeature
+import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Process-wide registry of latency histograms and counters, for the parts of the app where it matters how
+ * long things take. Histograms and counters are created on first use. Everything is kept in memory only,
+ * and starts again from zero with the process.
+ */
+object Metrics {
+    /** From a message being queued for sending to the sender picking it up */
+    const val SEND_QUEUE_WAIT = "send.queueWait"
+
+    /** Serializing, and encrypting if enabled, an outgoing message */
+    const val SEND_SERIALIZE = "send.serialize"
+
+    /** From handing a message to the MQTT client or HTTP client to the broker or server acknowledging it */
+    const val SEND_NETWORK = "send.network"
+
+    /** From a message being created to it being acknowledged */
+    const val SEND_AGE_AT_DELIVERY = "send.ageAtDelivery"
+
+    const val SEND_RETRIES = "send.retries"
+    const val SEND_DROPPED = "send.dropped"
+    const val SEND_QUEUE_OVERFLOW = "send.queueOverflow"
+
+    private val histograms = ConcurrentHashMap<String, LatencyHistogram>()
+    private val counters = ConcurrentHashMap<String, AtomicLong>()
+
+    @JvmStatic
+    fun histogram(name: String): LatencyHistogram = histograms.getOrPut(name) { LatencyHistogram() }
+
+    @JvmStatic
+    fun record(name: String, durationNanos: Long) {
+        histogram(name).record(durationNanos)
+    }
+
+    @JvmStatic
+    fun increment(name: String) {
+        counters.getOrPut(name) { AtomicLong() }.incrementAndGet()
+    }
+
+    @JvmStatic
+    fun count(name: String): Long = counters[name]?.get() ?: 0
+
+    @JvmStatic
+    fun reset() {
+        histograms.values.forEach { it.reset() }
+        counters.values.forEach { it.set(0) }
+    }
+
+    /**
+     * One line per send path histogram, for showing on the status screen
+     */
+    @JvmStatic
+    fun getSendSummary(): String {
+        val lines = listOf(
+                "queue wait" to SEND_QUEUE_WAIT,
+                "serialize" to SEND_SERIALIZE,
+                "network" to SEND_NETWORK,
+                "age at delivery" to SEND_AGE_AT_DELIVERY
+        ).map { (label, name) ->
+            val histogram = histogram(name)
+            String.format(Locale.ROOT, "%s: p50 %.0fms, p99 %.0fms, max %.0fms (%d)", label,
+                    histogram.percentileMillis(50.0), histogram.percentileMillis(99.0), histogram.maxMillis, histogram.count)
+        }
+        return (lines + String.format(Locale.ROOT, "retries: %d, dropped: %d, queue overflows: %d",
+                count(SEND_RETRIES), count(SEND_DROPPED), count(SEND_QUEUE_OVERFLOW))).joinToString("\n")
+    }
+
+    @JvmStatic
+    fun toJson(): String {
+        val json = linkedMapOf<String, Any>(
+                "histograms" to histograms.toSortedMap().mapValues { (_, histogram) ->
+                    linkedMapOf(
+                            "count" to histogram.count,
+                            "meanMs" to histogram.meanMillis,
+                            "p50Ms" to histogram.percentileMillis(50.0),
+                            "p90Ms" to histogram.percentileMillis(90.0),
+                            "p99Ms" to histogram.percentileMillis(99.0),
+                            "p999Ms" to histogram.percentileMillis(99.9),
+                            "maxMs" to histogram.maxMillis
+                    )
+                },
+                "counters" to counters.toSortedMap().mapValues { it.value.get() }
+        )
+        return ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(json)
+    }
+}
@@ -2,6 +2,9 @@ package org.owntracks.android.support;
 
 import androidx.annotation.NonNull;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -9,12 +12,17 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import javax.inject.Singleton;
 import org.owntracks.android.model.messages.MessageBase;
 import org.owntracks.android.model.messages.MessageEncrypted;
+import org.owntracks.android.model.messages.MessageLocation;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Inject;
 
+import timber.log.Timber;
+
 @Singleton
 public class Parser {
     private static ObjectMapper defaultMapper;
@@ -54,32 +62,97 @@ public class Parser {
     }
 
     public MessageBase fromJson(@NonNull String input) throws IOException, EncryptionException {
-        return decrypt(defaultMapper.readValue(input, MessageBase.class));
+        return expand(decrypt(defaultMapper.readValue(input, MessageBase.class)));
     }
 
 
     // Accepts {plain} as byte array
     public MessageBase fromJson(@NonNull byte[] input) throws IOException, EncryptionException {
-        return decrypt(defaultMapper.readValue(input, MessageBase.class));
+        return expand(decrypt(defaultMapper.readValue(input, MessageBase.class)));
     }
 
     // Accepts 1) [{plain},{plain},...], 2) {plain}, 3) {encrypted, data:[{plain}, {plain}, ...]} as input stream
     public MessageBase[] fromJson(@NonNull InputStream input) throws IOException, EncryptionException {
-        return decrypt(arrayCompatMapper.readValue(input, MessageBase[].class));
+        List<MessageBase> messages = new ArrayList<>();
+        fromJson(input, Integer.MAX_VALUE, messages::add);
+        return messages.toArray(new MessageBase[0]);
     }
 
-    private MessageBase[] decrypt(MessageBase[] a) throws IOException, EncryptionException {
-        // Recorder compatiblity, encrypted messages with data array
-        if (a == null)
-            throw new IOException("null array");
+    /**
+     * Same inputs as {@link #fromJson(InputStream)}, but each message is handed to the handler as soon as it
+     * has been read, rather than the whole document being read into memory first. Stops reading once
+     * maxMessages have been handled.
+     *
+     * @return the number of messages handed to the handler
+     */
+    public int fromJson(@NonNull InputStream input, int maxMessages, @NonNull MessageHandler handler) throws IOException, EncryptionException {
+        try (JsonParser jsonParser = arrayCompatMapper.getFactory().createParser(input)) {
+            return readMessages(jsonParser, maxMessages, handler, true);
+        }
+    }
+
+    private int readMessages(JsonParser jsonParser, int maxMessages, MessageHandler handler, boolean allowEncrypted) throws IOException, EncryptionException {
+        JsonToken token = jsonParser.nextToken();
+        if (token == null) {
+            return 0;
+        }
+        if (token != JsonToken.START_ARRAY) {
+            return readMessage(jsonParser, maxMessages, handler, allowEncrypted);
+        }
+        int count = 0;
+        while (count < maxMessages) {
+            token = jsonParser.nextToken();
+            if (token == JsonToken.END_ARRAY) {
+                return count;
+            }
+            if (token == null) {
+                throw new JsonParseException(jsonParser, "Unexpected end of message array");
+            }
+            count += readMessage(jsonParser, maxMessages - count, handler, allowEncrypted);
+        }
+        if (hasMoreElements(jsonParser)) {
+            Timber.w("Stopped reading messages after %s", maxMessages);
+        }
+        return count;
+    }
 
-        if (a.length == 1 && a[0] instanceof MessageEncrypted) {
+    private static boolean hasMoreElements(JsonParser jsonParser) {
+        try {
+            return jsonParser.nextToken() != JsonToken.END_ARRAY;
+        } catch (IOException e) {
+            // Whatever follows isn't read either way
+            return true;
+        }
+    }
+
+    private int readMessage(JsonParser jsonParser, int maxMessages, MessageHandler handler, boolean allowEncrypted) throws IOException, EncryptionException {
+        MessageBase message = arrayCompatMapper.readValue(jsonParser, MessageBase.class);
+        if (message == null) {
+            return 0;
+        }
+        if (message instanceof MessageEncrypted && allowEncrypted) {
+            // Recorder compatibility, encrypted messages with data array. The ciphertext has to be decrypted in
+            // one go, but the messages in it are still read and handed over one at a time.
             if (!encryptionProvider.isPayloadEncryptionEnabled())
                 throw new EncryptionException("received encrypted message but payload encryption is not enabled");
-            return defaultMapper.readValue(encryptionProvider.decrypt(((MessageEncrypted) a[0]).getData()), MessageBase[].class);
-        } else { // single message wrapped in array by mapper or array of messages
-            return a;
+            try (JsonParser decryptedParser = defaultMapper.getFactory().createParser(encryptionProvider.decrypt(((MessageEncrypted) message).getData()))) {
+                return readMessages(decryptedParser, maxMessages, handler, false);
+            }
         }
+        handler.onMessage(expand(message));
+        return 1;
+    }
+
+    // Restores fields that the sender may have packed into a compact form
+    private MessageBase expand(MessageBase m) {
+        if (m instanceof MessageLocation && ((MessageLocation) m).getBleCompact() != null) {
+            try {
+                ((MessageLocation) m).unpackBleObjects();
+            } catch (IllegalArgumentException e) {
+                Timber.w(e, "Unable to decode compact BLE objects");
+            }
+        }
+        return m;
     }
 
     private MessageBase decrypt(MessageBase m) throws IOException, EncryptionException {
@@ -111,6 +184,10 @@ public class Parser {
     }
 
 
+    public interface MessageHandler {
+        void onMessage(@NonNull MessageBase message);
+    }
+
     public static class EncryptionException extends Exception {
         EncryptionException(String s) {
             super(s);
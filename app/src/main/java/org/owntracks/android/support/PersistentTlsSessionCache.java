@@ -0,0 +1,99 @@
+package org.owntracks.android.support;
+
+import androidx.annotation.NonNull;
+
+import org.conscrypt.SSLClientSessionCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.net.ssl.SSLSession;
+
+import timber.log.Timber;
+
+/**
+ * Keeps TLS session data on disk, one file per host and port, so that a connection made after the process
+ * has been restarted can still resume the last session with the broker.
+ */
+class PersistentTlsSessionCache implements SSLClientSessionCache {
+    // A session ticket is a few hundred bytes. Anything much bigger than that isn't one of ours.
+    private static final int MAX_SESSION_DATA_BYTES = 16 * 1024;
+
+    private final File directory;
+
+    PersistentTlsSessionCache(@NonNull File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized byte[] getSessionData(String host, int port) {
+        File file = fileFor(host, port);
+        if (file == null || !file.isFile() || file.length() > MAX_SESSION_DATA_BYTES) {
+            return null;
+        }
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+            return data;
+        } catch (IOException e) {
+            Timber.w(e, "unable to read TLS session for %s:%s", host, port);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void putSessionData(SSLSession session, byte[] sessionData) {
+        File file = fileFor(session.getPeerHost(), session.getPeerPort());
+        if (file == null || sessionData == null || sessionData.length > MAX_SESSION_DATA_BYTES) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        // Write to a temporary file first so a half-written session is never read back
+        File temporary = new File(directory, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            out.write(sessionData);
+        } catch (IOException e) {
+            Timber.w(e, "unable to store TLS session for %s", file.getName());
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Forgets every stored session. Sessions are tied to the key material they were negotiated with, so
+     * this needs to happen whenever the certificates change.
+     */
+    synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private File fileFor(String host, int port) {
+        if (host == null || port <= 0) {
+            return null;
+        }
+        return new File(directory, host.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port);
+    }
+}
@@ -2,6 +2,7 @@ package org.owntracks.android.support
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.content.SharedPreferences
 import android.os.Build
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions
 //import org.eclipse.paho.client.mqttv3.MqttConnectOptions
@@ -18,14 +19,14 @@ import org.owntracks.android.services.worker.Scheduler
 import org.owntracks.android.support.Events.ModeChanged
 import org.owntracks.android.support.Events.MonitoringChanged
 import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener
+import org.owntracks.android.support.preferences.PreferenceAccessor
+import org.owntracks.android.support.preferences.PreferenceType
+import org.owntracks.android.support.preferences.PreferencesSnapshot
 import org.owntracks.android.support.preferences.PreferencesStore
 import timber.log.Timber
-import java.lang.reflect.InvocationTargetException
-import java.lang.reflect.Method
-import java.lang.reflect.ParameterizedType
-import java.lang.reflect.Type
 import java.util.*
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import javax.inject.Inject
 
 @Singleton
@@ -37,44 +38,44 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
     val sharedPreferencesName: String
         get() = preferencesStore.getSharedPreferencesName()
 
-    // need to iterated thought hierarchy in order to retrieve methods from above the current instance
-    // iterate though the list of methods declared in the class represented by klass variable, and insert those annotated with the specified annotation
-    private val exportMethods: Map<String, Method>
-        get() = Preferences::class.java
-                .parentClasses()
-                .flatMap { it.declaredMethods.asSequence() }
-                .filter { it.isAnnotationPresent(Export::class.java) }
-                .filter {
-                    val annotation = it.getAnnotation(Export::class.java)
-                    annotation != null &&
-                            (currentMode == MessageProcessorEndpointMqtt.MODE_ID && annotation.exportModeMqtt ||
-                                    currentMode == MessageProcessorEndpointHttp.MODE_ID && annotation.exportModeHttp)
-                }
-                .map { Pair(getPreferenceKey(it.getAnnotation(Export::class.java)!!.keyResId), it) }
-                .toMap()
+    // Keys are resource lookups, so resolve them once per instance rather than on every import / export
+    private val accessors: Map<String, PreferenceAccessor<*>> by lazy {
+        ACCESSORS.associateBy { getPreferenceKey(it.keyResId) }
+    }
 
     val importKeys: List<String>
-        get() = ArrayList(importMethods.keys)
-
-
-    // need to iterated thought hierarchy in order to retrieve methods from above the current instance
-    // iterate though the list of methods declared in the class represented by klass variable, and insert those annotated with the specified annotation
-    private val importMethods: Map<String, Method>
-        get() = Preferences::class.java
-                .parentClasses()
-                .flatMap { it.declaredMethods.asSequence() }
-                .filter { it.isAnnotationPresent(Import::class.java) }
-                .map { Pair(getPreferenceKey(it.getAnnotation(Import::class.java)!!.keyResId), it) }
-                .toMap()
-
-    private fun Class<*>.parentClasses(): Sequence<Class<*>> {
-        var k = this
-        return sequence {
-            yield(k)
-            while (k.superclass != null) {
-                k = k.superclass!!
-                yield(k)
-            }
+        get() = ArrayList(accessors.keys)
+
+    // Bumped on every change. A snapshot built from an older generation is rebuilt on the next read.
+    private val snapshotGeneration = AtomicInteger()
+
+    @Volatile
+    private var currentSnapshot: PreferencesSnapshot? = null
+
+    /**
+     * Typed, immutable view of the preferences that are read for every message. Cheap to call, so hot paths
+     * should prefer this over the individual getters.
+     */
+    val snapshot: PreferencesSnapshot
+        get() {
+            val generation = snapshotGeneration.get()
+            currentSnapshot?.let { if (it.generation == generation) return it }
+            return PreferencesSnapshot.of(this, generation).also { currentSnapshot = it }
+        }
+
+    private fun invalidateSnapshot() {
+        snapshotGeneration.incrementAndGet()
+    }
+
+    // Catches writes that don't go through this class, e.g. from the preference screens. Held here because
+    // SharedPreferences only keeps weak references to its listeners.
+    private val snapshotInvalidator = object : OnModeChangedPreferenceChangedListener {
+        override fun onAttachAfterModeChanged() {
+            invalidateSnapshot()
+        }
+
+        override fun onSharedPreferenceChanged(sharedPreferences: SharedPreferences?, key: String?) {
+            invalidateSnapshot()
         }
     }
 
@@ -98,43 +99,25 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
     @Throws(IllegalAccessException::class, IllegalArgumentException::class)
     fun importKeyValue(key: String?, value: String?) {
         Timber.v("setting %s, for key %s", value, key)
-        val methods = importMethods
-        val m = methods[key] ?: throw IllegalAccessException()
+        val accessor = accessors[key] ?: throw IllegalAccessException()
         if (value == null) {
             clearKey(key)
             return
         }
-        try {
-            val t = m.genericParameterTypes[0]
-            Timber.v("type of parameter: %s %s", t, t.javaClass)
-            methods[key]!!.invoke(this, convert(t, value))
-        } catch (e: InvocationTargetException) {
-            throw IllegalAccessException()
-        }
-    }
-
-    @Throws(IllegalArgumentException::class)
-    private fun convert(t: Type, value: String): Any {
-        if (java.lang.Boolean.TYPE == t) {
-            require(!("true" != value && "false" != value))
-            return java.lang.Boolean.parseBoolean(value)
-        }
-        try {
-            if (Integer.TYPE == t) return value.toInt()
-        } catch (e: NumberFormatException) {
-            throw IllegalArgumentException()
-        }
-        if (t is ParameterizedType && Set::class.java.isAssignableFrom(t.rawType as Class<*>))
-            return value.split(",").map { it.trim() }.filter { it.isNotBlank() }.toSortedSet()
-        return value
+        accessor.importString(this, value)
     }
 
     fun exportToMessage(): MessageConfiguration {
         val cfg = MessageConfiguration()
         cfg[getPreferenceKey(R.string.preferenceKeyVersion)] = BuildConfig.VERSION_CODE
-        exportMethods.forEach {
-            cfg[it.key] = it.value.invoke(this)
-        }
+        accessors
+                .filterValues {
+                    it.isExported && (currentMode == MessageProcessorEndpointMqtt.MODE_ID && it.exportModeMqtt ||
+                            currentMode == MessageProcessorEndpointHttp.MODE_ID && it.exportModeHttp)
+                }
+                .forEach {
+                    cfg[it.key] = it.value.export(this)
+                }
         return cfg
     }
 
@@ -157,16 +140,14 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
                     Timber.d("clearing value for key %s", it)
                     clearKey(it)
                 }
-        val methods = importMethods
         messageConfiguration.keys
                 .filter { messageConfiguration[it] != null }
-                .filter { methods.containsKey(it) }
+                .filter { accessors.containsKey(it) }
                 .forEach {
-                    Timber.d("Loading key %s from method: %s", it, methods.getValue(it).name)
-                    try {
-                        methods.getValue(it).invoke(this, messageConfiguration[it])
-                    } catch (e: IllegalArgumentException) {
-                        Timber.e("Tried to import %s but value is wrong type. Expected: %s, given %s", it, methods.getValue(it).parameterTypes.first().canonicalName, messageConfiguration[it]?.javaClass?.canonicalName)
+                    val accessor = accessors.getValue(it)
+                    Timber.d("Loading key %s", it)
+                    if (!accessor.importValue(this, messageConfiguration[it]!!)) {
+                        Timber.e("Tried to import %s but value is wrong type. Expected: %s, given %s", it, accessor.typeName, messageConfiguration[it]?.javaClass?.canonicalName)
                     }
                 }
     }
@@ -185,6 +166,7 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         Timber.v("setting mode to: %s", requestedMode)
         preferencesStore.setMode(getPreferenceKey(R.string.preferenceKeyModeId), requestedMode)
         currentMode = requestedMode
+        invalidateSnapshot()
         if (!init && eventBus != null) {
             Timber.v("broadcasting mode change event")
             eventBus.post(ModeChanged(oldModeId, currentMode))
@@ -202,8 +184,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         monitoring = mode
     }
 
-    @get:Export(keyResId = R.string.preferenceKeyModeId, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyModeId)
     var mode: Int
         get() = currentMode
         set(active) {
@@ -211,8 +191,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         }
 
 
-    @get:Export(keyResId = R.string.preferenceKeyMonitoring, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyMonitoring)
     var monitoring: Int
         get() = getIntOrDefault(R.string.preferenceKeyMonitoring, R.integer.valMonitoring)
         set(newMode) {
@@ -226,82 +204,96 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
             }
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyDontReuseHttpClient, exportModeMqtt = false, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyDontReuseHttpClient)
     var dontReuseHttpClient: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyDontReuseHttpClient, R.bool.valFalse)
         set(newValue) {
             setBoolean(R.string.preferenceKeyDontReuseHttpClient, newValue)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyOpencageGeocoderApiKey, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyOpencageGeocoderApiKey)
+    var deferBacklogUntilUnmetered: Boolean
+        get() = getBooleanOrDefault(R.string.preferenceKeyDeferBacklogUntilUnmetered, R.bool.valFalse)
+        set(newValue) {
+            setBoolean(R.string.preferenceKeyDeferBacklogUntilUnmetered, newValue)
+        }
+
+    var httpCompression: Boolean
+        get() = getBooleanOrDefault(R.string.preferenceKeyHttpCompression, R.bool.valFalse)
+        set(newValue) {
+            setBoolean(R.string.preferenceKeyHttpCompression, newValue)
+        }
+
     var openCageGeocoderApiKey: String
         get() = getStringOrDefault(R.string.preferenceKeyOpencageGeocoderApiKey, R.string.valEmpty)
         set(key) {
             setString(R.string.preferenceKeyOpencageGeocoderApiKey, key.trim())
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyRemoteCommand, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyRemoteCommand)
     var remoteCommand: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyRemoteCommand, R.bool.valRemoteCommand)
         set(newValue) {
             setBoolean(R.string.preferenceKeyRemoteCommand, newValue)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyCleanSession, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyCleanSession)
     var cleanSession: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyCleanSession, R.bool.valCleanSession)
         set(newValue) {
             setBoolean(R.string.preferenceKeyCleanSession, newValue)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyPublishExtendedData, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyPublishExtendedData)
     var pubLocationExtendedData: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyPublishExtendedData, R.bool.valPubExtendedData)
         set(newValue) {
             setBoolean(R.string.preferenceKeyPublishExtendedData, newValue)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyLocatorInterval, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyLocatorInterval)
     var locatorInterval: Int
         get() = getIntOrDefault(R.string.preferenceKeyLocatorInterval, R.integer.valLocatorInterval)
         set(anInt) {
             setInt(R.string.preferenceKeyLocatorInterval, anInt)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyMoveModeLocatorInterval, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyMoveModeLocatorInterval)
     var moveModeLocatorInterval: Int
         get() = getIntOrDefault(R.string.preferenceKeyMoveModeLocatorInterval, R.integer.valMoveModeLocatorInterval)
         set(moveModeLocatorInterval) {
             setInt(R.string.preferenceKeyMoveModeLocatorInterval, moveModeLocatorInterval)
         }
 
+    // Picks the interval, displacement and priority in significant changes mode from how fast we're moving,
+    // with locatorInterval, locatorDisplacement and locatorPriority as the bounds
+    var locatorAdaptive: Boolean
+        get() = getBooleanOrDefault(R.string.preferenceKeyLocatorAdaptive, R.bool.valFalse)
+        set(newValue) {
+            setBoolean(R.string.preferenceKeyLocatorAdaptive, newValue)
+        }
+
+    // Unit is seconds
+    var locatorAdaptiveMinInterval: Int
+        get() = getIntOrDefault(R.string.preferenceKeyLocatorAdaptiveMinInterval, R.integer.valLocatorAdaptiveMinInterval)
+        set(anInt) {
+            setInt(R.string.preferenceKeyLocatorAdaptiveMinInterval, anInt)
+        }
+
+    // Unit is seconds. 0 delivers each location as soon as it's available
+    var locatorMaxWait: Int
+        get() = getIntOrDefault(R.string.preferenceKeyLocatorMaxWait, R.integer.valLocatorMaxWait)
+        set(anInt) {
+            setInt(R.string.preferenceKeyLocatorMaxWait, anInt)
+        }
+
     // Unit is minutes
     // Unit is minutes
-    @get:Export(keyResId = R.string.preferenceKeyPing, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyPing)
     var ping: Int
         get() = getIntOrDefault(R.string.preferenceKeyPing, R.integer.valPing).coerceAtLeast(TimeUnit.MILLISECONDS.toMinutes(Scheduler.MIN_PERIODIC_INTERVAL_MILLIS).toInt())
         set(anInt) {
             setInt(R.string.preferenceKeyPing, anInt)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyUsername, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyUsername)
     var username: String
         get() = getStringOrDefault(R.string.preferenceKeyUsername, R.string.valEmpty)
         set(value) {
             setString(R.string.preferenceKeyUsername, value)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyDeviceId, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyDeviceId)
     var deviceId: String
         get() = getDeviceId(true)
         set(deviceId) {
@@ -313,16 +305,12 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         return if ("" == deviceId && fallbackToDefault) deviceIdDefault else deviceId
     }
 
-    @get:Export(keyResId = R.string.preferenceKeyIgnoreStaleLocations, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyIgnoreStaleLocations)
     var ignoreStaleLocations: Double
         get() = getStringOrDefault(R.string.preferenceKeyIgnoreStaleLocations, R.string.valIgnoreStaleLocations).toDouble()
         set(days) {
             setString(R.string.preferenceKeyIgnoreStaleLocations, days.toString())
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyIgnoreInaccurateLocations, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyIgnoreInaccurateLocations)
     var ignoreInaccurateLocations: Int
         get() = getIntOrDefault(R.string.preferenceKeyIgnoreInaccurateLocations, R.integer.valIgnoreInaccurateLocations)
         set(meters) {
@@ -330,8 +318,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         }
 
 
-    @get:Export(keyResId = R.string.preferenceKeyClientId, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyClientId)
     var clientId: String
         get() {
             var clientId = getStringOrDefault(R.string.preferenceKeyClientId, R.string.valEmpty)
@@ -342,8 +328,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
             setString(R.string.preferenceKeyClientId, clientId)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyPubTopicBase, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyPubTopicBase)
     var pubTopicBaseFormatString: String
         get() = getStringOrDefault(R.string.preferenceKeyPubTopicBase, R.string.valPubTopic)
         set(deviceTopic) {
@@ -353,16 +337,12 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
     val pubTopicBase: String
         get() = pubTopicBaseFormatString.replace("%u", username).replace("%d", deviceId)
 
-    @get:Export(keyResId = R.string.preferenceKeySubTopic, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeySubTopic)
     var subTopic: String
         get() = getStringOrDefault(R.string.preferenceKeySubTopic, R.string.defaultSubTopic)
         set(string) {
             setString(R.string.preferenceKeySubTopic, string)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeySub, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeySub)
     var sub: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeySub, R.bool.valSub)
         set(sub) {
@@ -370,8 +350,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         }
 
     // value validation - must be max 2 characters, only letters and digits
-    @get:Export(keyResId = R.string.preferenceKeyTrackerId, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyTrackerId)
     var trackerId: String
         get() = getTrackerId(false)
         set(trackerId) {
@@ -400,8 +378,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         }
 
 
-    @get:Export(keyResId = R.string.preferenceKeyPort, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyPort)
     var port: Int
         get() = getIntOrDefault(R.string.preferenceKeyPort, R.integer.valPort)
         set(port) {
@@ -415,8 +391,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         clearKey(R.string.preferenceKeyPort)
     }
 
-    @get:Export(keyResId = R.string.preferenceKeyMqttProtocolLevel, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyMqttProtocolLevel)
     var mqttProtocolLevel: Int
         get() = getIntOrDefault(R.string.preferenceKeyMqttProtocolLevel, R.integer.valMqttProtocolLevel)
         set(mqttProtocolLevel) {
@@ -428,8 +402,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
 
     // Unit is seconds
     // Minimum time is 15minutes because work manager cannot schedule any faster
-    @get:Export(keyResId = R.string.preferenceKeyKeepalive, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyKeepalive)
     var keepalive: Int
         get() {
             if (isExperimentalFeatureEnabled(EXPERIMENTAL_FEATURE_ALLOW_SMALL_KEEPALIVE)) {
@@ -459,24 +431,18 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         clearKey(R.string.preferenceKeyKeepalive)
     }
 
-    @get:Export(keyResId = R.string.preferenceKeyNotificationEvents, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyNotificationEvents)
     var notificationEvents: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyNotificationEvents, R.bool.valNotificationEvents)
         set(notificationEvents) {
             setBoolean(R.string.preferenceKeyNotificationEvents, notificationEvents)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyLocatorDisplacement, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyLocatorDisplacement)
     var locatorDisplacement: Int
         get() = getIntOrDefault(R.string.preferenceKeyLocatorDisplacement, R.integer.valLocatorDisplacement)
         set(anInt) {
             setInt(R.string.preferenceKeyLocatorDisplacement, anInt)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyLocatorPriority, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyLocatorPriority)
     var locatorPriority: Int
         get() = getIntOrDefault(R.string.preferenceKeyLocatorPriority, R.integer.valLocatorPriority)
         set(anInt) {
@@ -487,72 +453,54 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
             }
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyTLSCaCrt, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyTLSCaCrt)
     var tlsCaCrt: String
         get() = getStringOrDefault(R.string.preferenceKeyTLSCaCrt, R.string.valEmpty)
         set(name) {
             setString(R.string.preferenceKeyTLSCaCrt, name)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyHost, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyHost)
     var host: String
         get() = getStringOrDefault(R.string.preferenceKeyHost, R.string.valEmpty)
         set(value) {
             setString(R.string.preferenceKeyHost, value)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyPassword, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyPassword)
     var password: String
         get() = getStringOrDefault(R.string.preferenceKeyPassword, R.string.valEmpty)
         set(password) {
             setString(R.string.preferenceKeyPassword, password)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyTLS, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyTLS)
     var tls: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyTLS, R.bool.valTls)
         set(tlsSpecifier) {
             setBoolean(R.string.preferenceKeyTLS, tlsSpecifier)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyWS, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyWS)
     var ws: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyWS, R.bool.valWs)
         set(wsEnable) {
             setBoolean(R.string.preferenceKeyWS, wsEnable)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyTLSClientCrt, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyTLSClientCrt)
     var tlsClientCrt: String
         get() = getStringOrDefault(R.string.preferenceKeyTLSClientCrt, R.string.valEmpty)
         set(name) {
             setString(R.string.preferenceKeyTLSClientCrt, name)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyNotificationHigherPriority, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyNotificationHigherPriority)
     var notificationHigherPriority: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyNotificationHigherPriority, R.bool.valNotificationHigherPriority)
         set(newValue) {
             setBoolean(R.string.preferenceKeyNotificationHigherPriority, newValue)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyNotificationLocation, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyNotificationLocation)
     var notificationLocation: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyNotificationLocation, R.bool.valNotificationLocation)
         set(newValue) {
             setBoolean(R.string.preferenceKeyNotificationLocation, newValue)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyPubQos, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyPubQos)
     var pubQos: Int
         get() = getIntOrDefault(R.string.preferenceKeyPubQos, R.integer.valPubQos)
         set(anInt) {
@@ -560,8 +508,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         }
 
 
-    @get:Export(keyResId = R.string.preferenceKeyPubRetain, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyPubRetain)
     var pubRetain: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyPubRetain, R.bool.valPubRetain)
         set(newValue) {
@@ -569,77 +515,70 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         }
 
 
-    @get:Export(keyResId = R.string.preferenceKeySubQos, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeySubQos)
     var subQos: Int
         get() = getIntOrDefault(R.string.preferenceKeySubQos, R.integer.valSubQos)
         set(anInt) {
             setInt(R.string.preferenceKeySubQos, anInt.coerceAtMost(2))
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyAutostartOnBoot, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyAutostartOnBoot)
     var autostartOnBoot: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyAutostartOnBoot, R.bool.valAutostartOnBoot)
         set(newValue) {
             setBoolean(R.string.preferenceKeyAutostartOnBoot, newValue)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyInfo, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyInfo)
     var info: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyInfo, R.bool.valInfo)
         set(info) {
             setBoolean(R.string.preferenceKeyInfo, info)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyTLSClientCrtPassword, exportModeMqtt = true)
-    @set:Import(keyResId = R.string.preferenceKeyTLSClientCrtPassword)
     var tlsClientCrtPassword: String
         get() = getStringOrDefault(R.string.preferenceKeyTLSClientCrtPassword, R.string.valEmpty)
         set(password) {
             setString(R.string.preferenceKeyTLSClientCrtPassword, password)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyURL, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyURL)
+    var tlsPersistSessions: Boolean
+        get() = getBooleanOrDefault(R.string.preferenceKeyTLSPersistSessions, R.bool.valFalse)
+        set(newValue) {
+            setBoolean(R.string.preferenceKeyTLSPersistSessions, newValue)
+        }
+
     var url: String
         get() = getStringOrDefault(R.string.preferenceKeyURL, R.string.valEmpty)
         set(url) {
             setString(R.string.preferenceKeyURL, url)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyFusedRegionDetection, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyFusedRegionDetection)
     var fusedRegionDetection: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyFusedRegionDetection, R.bool.valTrue)
         set(newValue) {
             setBoolean(R.string.preferenceKeyFusedRegionDetection, newValue)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyDebugLog, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyDebugLog)
     var debugLog: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyDebugLog, R.bool.valFalse)
         set(debug) {
             setBoolean(R.string.preferenceKeyDebugLog, debug)
         }
 
-    @get:Export(keyResId = R.string.preferenceKeyRemoteConfiguration, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyRemoteConfiguration)
     var remoteConfiguration: Boolean
         get() = getBooleanOrDefault(R.string.preferenceKeyRemoteConfiguration, R.bool.valFalse)
         set(newValue) {
             setBoolean(R.string.preferenceKeyRemoteConfiguration, newValue)
         }
 
-    @Import(keyResId = R.string.preferenceKeyGeocodeEnabled)
+    var bleCompactEncoding: Boolean
+        get() = getBooleanOrDefault(R.string.preferenceKeyBleCompactEncoding, R.bool.valBleCompactEncoding)
+        set(newValue) {
+            setBoolean(R.string.preferenceKeyBleCompactEncoding, newValue)
+        }
+
     fun setGeocodeEnabled(newValue: Boolean) {
         reverseGeocodeProvider = if (newValue) REVERSE_GEOCODE_PROVIDER_GOOGLE else REVERSE_GEOCODE_PROVIDER_NONE
     }
 
-    @get:Export(keyResId = R.string.preferenceKeyReverseGeocodeProvider, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyReverseGeocodeProvider)
     var reverseGeocodeProvider: String
         get() = getStringOrDefault(R.string.preferenceKeyReverseGeocodeProvider, R.string.valDefaultGeocoder)
         set(newValue) {
@@ -651,8 +590,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         }
 
 
-    @get:Export(keyResId = R.string.preferenceKeyExperimentalFeatures, exportModeMqtt = true, exportModeHttp = true)
-    @set:Import(keyResId = R.string.preferenceKeyExperimentalFeatures)
     var experimentalFeatures: Set<String>
         get() = getStringSet(R.string.preferenceKeyExperimentalFeatures).toSortedSet()
         set(value) {
@@ -782,18 +719,22 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
 
     private fun setString(resKeyId: Int, value: String) {
         preferencesStore.putString(getPreferenceKey(resKeyId), value)
+        invalidateSnapshot()
     }
 
     private fun setInt(resKeyId: Int, value: Int) {
         preferencesStore.putInt(getPreferenceKey(resKeyId), value)
+        invalidateSnapshot()
     }
 
     private fun setBoolean(resKeyId: Int, value: Boolean) {
         preferencesStore.putBoolean(getPreferenceKey(resKeyId), value)
+        invalidateSnapshot()
     }
 
     private fun setStringSet(resKeyId: Int, value: Set<String>) {
         preferencesStore.putStringSet(getPreferenceKey(resKeyId), value)
+        invalidateSnapshot()
     }
 
     private fun getStringSet(resKeyId: Int): Set<String> {
@@ -802,6 +743,7 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
 
     private fun clearKey(key: String?) {
         preferencesStore.remove(key!!)
+        invalidateSnapshot()
     }
 
     private fun clearKey(resKeyId: Int) {
@@ -814,14 +756,6 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         }
     }
 
-    @Retention(AnnotationRetention.RUNTIME)
-    @Target(AnnotationTarget.FUNCTION, AnnotationTarget.PROPERTY_GETTER, AnnotationTarget.PROPERTY_SETTER)
-    annotation class Export(val keyResId: Int = 0, val exportModeMqtt: Boolean = false, val exportModeHttp: Boolean = false)
-
-    @Retention(AnnotationRetention.RUNTIME)
-    @Target(AnnotationTarget.FUNCTION, AnnotationTarget.PROPERTY_GETTER, AnnotationTarget.PROPERTY_SETTER)
-    annotation class Import(val keyResId: Int = 0)
-
     fun getPreferenceKey(res: Int): String {
         return getStringResource(res)
     }
@@ -832,6 +766,7 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
                 modePreferenceKey,
                 getIntResource(R.integer.valModeId))
         setMode(initMode, true)
+        preferencesStore.registerOnSharedPreferenceChangeListener(snapshotInvalidator)
 
         // Migrations
         if (preferencesStore.hasKey(getPreferenceKey(R.string.preferenceKeyGeocodeEnabled))) {
@@ -856,5 +791,64 @@ class Preferences @Inject constructor(@AppContext c: Context, private val eventB
         const val REVERSE_GEOCODE_PROVIDER_GOOGLE = "Google"
         const val REVERSE_GEOCODE_PROVIDER_OPENCAGE = "OpenCage"
         val REVERSE_GEOCODE_PROVIDERS = listOf(REVERSE_GEOCODE_PROVIDER_NONE, REVERSE_GEOCODE_PROVIDER_GOOGLE, REVERSE_GEOCODE_PROVIDER_OPENCAGE)
+
+        /**
+         * Every preference that can be imported from or exported to a [MessageConfiguration]
+         */
+        private val ACCESSORS: List<PreferenceAccessor<*>> = listOf(
+                PreferenceAccessor.exported(R.string.preferenceKeyModeId, PreferenceType.IntType, Preferences::mode, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyMonitoring, PreferenceType.IntType, Preferences::monitoring, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyDontReuseHttpClient, PreferenceType.BooleanType, Preferences::dontReuseHttpClient, exportModeMqtt = false, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyDeferBacklogUntilUnmetered, PreferenceType.BooleanType, Preferences::deferBacklogUntilUnmetered, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyHttpCompression, PreferenceType.BooleanType, Preferences::httpCompression, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyOpencageGeocoderApiKey, PreferenceType.StringType, Preferences::openCageGeocoderApiKey, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyRemoteCommand, PreferenceType.BooleanType, Preferences::remoteCommand, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyCleanSession, PreferenceType.BooleanType, Preferences::cleanSession, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyPublishExtendedData, PreferenceType.BooleanType, Preferences::pubLocationExtendedData, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyLocatorInterval, PreferenceType.IntType, Preferences::locatorInterval, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyLocatorAdaptive, PreferenceType.BooleanType, Preferences::locatorAdaptive, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyLocatorAdaptiveMinInterval, PreferenceType.IntType, Preferences::locatorAdaptiveMinInterval, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyLocatorMaxWait, PreferenceType.IntType, Preferences::locatorMaxWait, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyMoveModeLocatorInterval, PreferenceType.IntType, Preferences::moveModeLocatorInterval, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyPing, PreferenceType.IntType, Preferences::ping, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyUsername, PreferenceType.StringType, Preferences::username, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyDeviceId, PreferenceType.StringType, Preferences::deviceId, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyIgnoreStaleLocations, PreferenceType.DoubleType, Preferences::ignoreStaleLocations, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyIgnoreInaccurateLocations, PreferenceType.IntType, Preferences::ignoreInaccurateLocations, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyClientId, PreferenceType.StringType, Preferences::clientId, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyPubTopicBase, PreferenceType.StringType, Preferences::pubTopicBaseFormatString, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeySubTopic, PreferenceType.StringType, Preferences::subTopic, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeySub, PreferenceType.BooleanType, Preferences::sub, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyTrackerId, PreferenceType.StringType, Preferences::trackerId, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyPort, PreferenceType.IntType, Preferences::port, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyMqttProtocolLevel, PreferenceType.IntType, Preferences::mqttProtocolLevel, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyKeepalive, PreferenceType.IntType, Preferences::keepalive, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyNotificationEvents, PreferenceType.BooleanType, Preferences::notificationEvents, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyLocatorDisplacement, PreferenceType.IntType, Preferences::locatorDisplacement, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyLocatorPriority, PreferenceType.IntType, Preferences::locatorPriority, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyTLSCaCrt, PreferenceType.StringType, Preferences::tlsCaCrt, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyHost, PreferenceType.StringType, Preferences::host, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyPassword, PreferenceType.StringType, Preferences::password, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyTLS, PreferenceType.BooleanType, Preferences::tls, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyWS, PreferenceType.BooleanType, Preferences::ws, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyTLSClientCrt, PreferenceType.StringType, Preferences::tlsClientCrt, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyNotificationHigherPriority, PreferenceType.BooleanType, Preferences::notificationHigherPriority, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyNotificationLocation, PreferenceType.BooleanType, Preferences::notificationLocation, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyPubQos, PreferenceType.IntType, Preferences::pubQos, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyPubRetain, PreferenceType.BooleanType, Preferences::pubRetain, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeySubQos, PreferenceType.IntType, Preferences::subQos, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyAutostartOnBoot, PreferenceType.BooleanType, Preferences::autostartOnBoot, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyInfo, PreferenceType.BooleanType, Preferences::info, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyTLSClientCrtPassword, PreferenceType.StringType, Preferences::tlsClientCrtPassword, exportModeMqtt = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyTLSPersistSessions, PreferenceType.BooleanType, Preferences::tlsPersistSessions, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyURL, PreferenceType.StringType, Preferences::url, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyFusedRegionDetection, PreferenceType.BooleanType, Preferences::fusedRegionDetection, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyDebugLog, PreferenceType.BooleanType, Preferences::debugLog, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyRemoteConfiguration, PreferenceType.BooleanType, Preferences::remoteConfiguration, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyBleCompactEncoding, PreferenceType.BooleanType, Preferences::bleCompactEncoding, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyReverseGeocodeProvider, PreferenceType.StringType, Preferences::reverseGeocodeProvider, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.exported(R.string.preferenceKeyExperimentalFeatures, PreferenceType.StringSetType, Preferences::experimentalFeatures, exportModeMqtt = true, exportModeHttp = true),
+                PreferenceAccessor.importOnly(R.string.preferenceKeyGeocodeEnabled, PreferenceType.BooleanType) { preferences, value -> preferences.setGeocodeEnabled(value) }
+        )
     }
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import android.os.Handler
 import android.os.HandlerThread
 import android.os.Looper
 import org.owntracks.android.injection.qualifier.AppContext
+import java.util.concurrent.Executor
 import javax.inject.Singleton
 import javax.inject.Inject
 
@@ -30,6 +31,10 @@ class RunThingsOnOtherThreads @Inject constructor(@AppContext appContext: Contex
         return backgroundHandler.looper
     }
 
+    val mainExecutor = Executor { mainHandler.post(it) }
+
+    val backgroundExecutor = Executor { backgroundHandler.post(it) }
+
     fun postOnMainHandlerDelayed(r: Runnable, delayMilliseconds: Long) {
         mainHandler.postDelayed(r, delayMilliseconds)
     }
@@ -38,6 +43,10 @@ class RunThingsOnOtherThreads @Inject constructor(@AppContext appContext: Contex
         networkHandler.postDelayed(r, delayMilliseconds)
     }
 
+    fun postOnBackgroundHandlerDelayed(r: Runnable, delayMilliseconds: Long) {
+        backgroundHandler.postDelayed(r, delayMilliseconds)
+    }
+
     companion object {
         const val NETWORK_HANDLER_THREAD_NAME = "networkHandlerThread"
         const val BACKGROUND_HANDLER_THREAD_NAME = "backgroundHandlerThread"
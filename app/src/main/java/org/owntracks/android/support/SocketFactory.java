@@ -1,5 +1,8 @@
 package org.owntracks.android.support;
 
+import org.conscrypt.Conscrypt;
+import org.conscrypt.SSLClientSessionCache;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -12,9 +15,11 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -24,12 +29,15 @@ import timber.log.Timber;
 public class SocketFactory extends javax.net.ssl.SSLSocketFactory{
     private javax.net.ssl.SSLSocketFactory factory;
     private String[] protocols=new String[] {"TLSv1", "TLSv1.1", "TLSv1.2", "TLSv1.3"};
+    private static final int SESSION_CACHE_SIZE = 16;
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(24);
 
     public static class SocketFactoryOptions {
 
         private InputStream caCrtInputStream;
         private InputStream caClientP12InputStream;
         private String caClientP12Password;
+        private SSLClientSessionCache persistentSessionCache;
 
         public SocketFactoryOptions withCaInputStream(InputStream stream) {
             this.caCrtInputStream = stream;
@@ -43,6 +51,10 @@ public class SocketFactory extends javax.net.ssl.SSLSocketFactory{
             this.caClientP12Password = password;
             return this;
         }
+        public SocketFactoryOptions withPersistentSessionCache(SSLClientSessionCache cache) {
+            this.persistentSessionCache = cache;
+            return this;
+        }
 
         boolean hasCaCrt() {
             return caCrtInputStream != null;
@@ -67,6 +79,10 @@ public class SocketFactory extends javax.net.ssl.SSLSocketFactory{
         boolean hasClientP12Password() {
             return (caClientP12Password != null) && !caClientP12Password.equals("");
         }
+
+        SSLClientSessionCache getPersistentSessionCache() {
+            return persistentSessionCache;
+        }
     }
 
 
@@ -132,6 +148,15 @@ public class SocketFactory extends javax.net.ssl.SSLSocketFactory{
         // Create an SSLContext that uses our TrustManager
         SSLContext context = SSLContext.getInstance("TLS");
         context.init(kmf.getKeyManagers(), getTrustManagers(), null);
+
+        // Sockets from the same context share its session cache, so reconnecting to the same host can resume
+        // the previous session instead of doing a full handshake
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        if (options.getPersistentSessionCache() != null && Conscrypt.isConscrypt(context)) {
+            Conscrypt.setClientSessionCache(context, options.getPersistentSessionCache());
+        }
         this.factory= context.getSocketFactory();
     }
 
@@ -0,0 +1,117 @@
+package org.owntracks.android.support
+
+import android.os.Build
+import android.os.Process
+import android.os.SystemClock
+import timber.log.Timber
+
+/**
+ * Records how long after process start certain startup milestones are reached, and how long each startup
+ * phase takes. Only the first occurrence of each milestone or phase is kept, so it's safe to call from code
+ * that runs repeatedly.
+ */
+object StartupTimings {
+    const val APP_CREATE_STARTED = "appCreateStarted"
+    const val APP_CREATED = "appCreated"
+    const val FIRST_FRAME = "firstFrame"
+    const val WAYPOINTS_READY = "waypointsReady"
+    const val ENDPOINT_CONNECTED = "endpointConnected"
+    const val FIRST_LOCATION_PUBLISHED = "firstLocationPublished"
+
+    // Phases that run on the main thread before the first frame, and how long each is allowed to take
+    // before it's flagged in the log
+    const val PHASE_SECURITY_PROVIDER = "securityProvider"
+    const val PHASE_INJECTION = "injection"
+    const val PHASE_WORK_MANAGER = "workManager"
+    const val PHASE_LOGGING = "logging"
+    const val PHASE_ENDPOINT_INIT = "endpointInit"
+    private val phaseBudgetsMillis = mapOf(
+            PHASE_SECURITY_PROVIDER to 50L,
+            PHASE_INJECTION to 100L,
+            PHASE_WORK_MANAGER to 50L,
+            PHASE_LOGGING to 10L,
+            PHASE_ENDPOINT_INIT to 50L
+    )
+
+    // Pre-N there's no process start time, so this falls back to the first time this object is touched,
+    // which is at the start of App.onCreate
+    private val processStartElapsed: Long = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+        Process.getStartElapsedRealtime()
+    } else {
+        SystemClock.elapsedRealtime()
+    }
+
+    private val marks = LinkedHashMap<String, Long>()
+    private val phases = LinkedHashMap<String, Long>()
+
+    @JvmStatic
+    fun mark(milestone: String) {
+        val sinceStart = SystemClock.elapsedRealtime() - processStartElapsed
+        synchronized(marks) {
+            if (marks.containsKey(milestone)) {
+                return
+            }
+            marks[milestone] = sinceStart
+        }
+        Timber.i("Startup milestone %s reached after %sms", milestone, sinceStart)
+        // The HTTP endpoint never reports connected, so whichever of these comes first ends the cold start
+        if ((milestone == ENDPOINT_CONNECTED || milestone == FIRST_LOCATION_PUBLISHED) && !reported) {
+            reported = true
+            Timber.i("Startup report:\n%s", getReport())
+        }
+    }
+
+    @Volatile
+    private var reported = false
+
+    /**
+     * Runs [block] as the named startup phase and records how long it took
+     */
+    @JvmStatic
+    fun <T> phase(name: String, block: () -> T): T {
+        val start = SystemClock.elapsedRealtime()
+        try {
+            return block()
+        } finally {
+            val duration = SystemClock.elapsedRealtime() - start
+            synchronized(marks) {
+                if (!phases.containsKey(name)) {
+                    phases[name] = duration
+                }
+            }
+            val budget = phaseBudgetsMillis[name]
+            if (budget != null && duration > budget) {
+                Timber.w("Startup phase %s took %sms, over its budget of %sms", name, duration, budget)
+            }
+        }
+    }
+
+    /**
+     * Milestones reached so far, in the order they were reached, with milliseconds since process start
+     */
+    @JvmStatic
+    fun getMarks(): Map<String, Long> = synchronized(marks) { LinkedHashMap(marks) }
+
+    /**
+     * Phases completed so far, in the order they completed, with their duration in milliseconds
+     */
+    @JvmStatic
+    fun getPhases(): Map<String, Long> = synchronized(marks) { LinkedHashMap(phases) }
+
+    @JvmStatic
+    fun getReport(): String {
+        val report = StringBuilder()
+        getPhases().forEach { (name, duration) ->
+            val budget = phaseBudgetsMillis[name]
+            report.append("phase ").append(name).append(": ").append(duration).append("ms")
+            if (budget != null) {
+                report.append(" (budget ").append(budget).append("ms)")
+            }
+            report.append('\n')
+        }
+        getMarks().forEach { (name, sinceStart) ->
+            report.append("milestone ").append(name).append(": ").append(sinceStart).append("ms\n")
+        }
+        return report.toString()
+    }
+}
@@ -0,0 +1,223 @@
+package org.owntracks.android.support;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.owntracks.android.R;
+import org.owntracks.android.injection.qualifier.AppContext;
+import org.owntracks.android.support.preferences.OnModeChangedPreferenceChangedListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import timber.log.Timber;
+
+/**
+ * Holds the TLS material (CA certificate, client certificate and the resulting {@link SocketFactory}) that
+ * both endpoints connect with. Building it means reading and parsing the certificate files and setting up
+ * a new SSLContext, and because the session cache lives in the SSLContext, building a new one for every
+ * connection also means every reconnect is a full handshake. So it's built once and kept until one of the
+ * TLS preferences or the certificate files change.
+ */
+@Singleton
+public class TlsContextCache implements OnModeChangedPreferenceChangedListener {
+    private static final String SESSION_DIRECTORY = "tls-sessions";
+
+    private final Context applicationContext;
+    private final Preferences preferences;
+    private final PersistentTlsSessionCache persistentSessionCache;
+    private TlsContext current;
+
+    @Inject
+    public TlsContextCache(@AppContext Context applicationContext, Preferences preferences) {
+        this.applicationContext = applicationContext;
+        this.preferences = preferences;
+        this.persistentSessionCache = new PersistentTlsSessionCache(new File(applicationContext.getNoBackupFilesDir(), SESSION_DIRECTORY));
+        preferences.registerOnPreferenceChangedListener(this);
+    }
+
+    /**
+     * @return the TLS context for the current preferences, building it if the preferences or the
+     * certificate files have changed since it was last built
+     */
+    @NonNull
+    public synchronized TlsContext get() throws CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException, KeyManagementException, IOException {
+        String caCrt = preferences.getTlsCaCrt();
+        String clientCrt = preferences.getTlsClientCrt();
+        Key key = new Key(caCrt, lastModified(caCrt), clientCrt, lastModified(clientCrt), preferences.getTlsClientCrtPassword(), preferences.getTlsPersistSessions());
+        if (current != null && current.key.equals(key)) {
+            return current;
+        }
+        if (current != null) {
+            // Usually a certificate file replaced under the same name, which there's no preference change for
+            Timber.d("TLS certificate files or preferences changed, rebuilding TLS context");
+            persistentSessionCache.clear();
+        }
+        current = build(key);
+        return current;
+    }
+
+    public synchronized void invalidate() {
+        current = null;
+        persistentSessionCache.clear();
+    }
+
+    private TlsContext build(Key key) throws CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException, KeyManagementException, IOException {
+        Timber.d("building TLS context");
+        String caCrt = key.caCrt;
+        String clientCrt = key.clientCrt;
+        SocketFactory.SocketFactoryOptions socketFactoryOptions = new SocketFactory.SocketFactoryOptions();
+        if (key.persistSessions) {
+            socketFactoryOptions.withPersistentSessionCache(persistentSessionCache);
+        }
+
+        X509Certificate caCertificate = null;
+        InputStream caInputStream = null;
+        InputStream clientCertInputStream = null;
+        try {
+            if (caCrt.length() > 0) {
+                try {
+                    caInputStream = applicationContext.openFileInput(caCrt);
+                    socketFactoryOptions.withCaInputStream(caInputStream);
+                    try (FileInputStream caFileInputStream = applicationContext.openFileInput(caCrt)) {
+                        caCertificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(caFileInputStream);
+                    }
+                } catch (FileNotFoundException e) {
+                    Timber.e(e);
+                }
+            }
+
+            if (clientCrt.length() > 0) {
+                try {
+                    clientCertInputStream = applicationContext.openFileInput(clientCrt);
+                    socketFactoryOptions.withClientP12InputStream(clientCertInputStream).withClientP12Password(key.clientCrtPassword);
+                } catch (FileNotFoundException e) {
+                    Timber.e(e);
+                }
+            }
+
+            boolean hasCustomMaterial = caInputStream != null || clientCertInputStream != null;
+            return new TlsContext(new SocketFactory(socketFactoryOptions), caCertificate, hasCustomMaterial, key);
+        } finally {
+            try {
+                if (caInputStream != null) {
+                    caInputStream.close();
+                }
+                if (clientCertInputStream != null) {
+                    clientCertInputStream.close();
+                }
+            } catch (IOException e) {
+                Timber.e(e);
+            }
+        }
+    }
+
+    private long lastModified(String fileName) {
+        if (fileName.length() == 0) {
+            return 0;
+        }
+        return applicationContext.getFileStreamPath(fileName).lastModified();
+    }
+
+    @Override
+    public void onAttachAfterModeChanged() {
+        // Each mode has its own preferences, so the TLS preferences may be different now
+        invalidate();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (preferences.getPreferenceKey(R.string.preferenceKeyTLSCaCrt).equals(key)
+                || preferences.getPreferenceKey(R.string.preferenceKeyTLSClientCrt).equals(key)
+                || preferences.getPreferenceKey(R.string.preferenceKeyTLSClientCrtPassword).equals(key)
+                || preferences.getPreferenceKey(R.string.preferenceKeyTLSPersistSessions).equals(key)) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Everything a {@link TlsContext} is built from. If any of it is different, the context is built again.
+     */
+    private static final class Key {
+        private final String caCrt;
+        private final long caCrtModified;
+        private final String clientCrt;
+        private final long clientCrtModified;
+        private final String clientCrtPassword;
+        private final boolean persistSessions;
+
+        private Key(String caCrt, long caCrtModified, String clientCrt, long clientCrtModified, String clientCrtPassword, boolean persistSessions) {
+            this.caCrt = caCrt;
+            this.caCrtModified = caCrtModified;
+            this.clientCrt = clientCrt;
+            this.clientCrtModified = clientCrtModified;
+            this.clientCrtPassword = clientCrtPassword;
+            this.persistSessions = persistSessions;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return caCrtModified == key.caCrtModified && clientCrtModified == key.clientCrtModified && persistSessions == key.persistSessions
+                    && caCrt.equals(key.caCrt) && clientCrt.equals(key.clientCrt) && clientCrtPassword.equals(key.clientCrtPassword);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * caCrt.hashCode() + clientCrt.hashCode()) + Long.valueOf(caCrtModified ^ clientCrtModified).hashCode();
+        }
+    }
+
+    public static final class TlsContext {
+        private final SocketFactory socketFactory;
+        private final X509Certificate caCertificate;
+        private final boolean hasCustomMaterial;
+        private final Key key;
+
+        private TlsContext(SocketFactory socketFactory, X509Certificate caCertificate, boolean hasCustomMaterial, Key key) {
+            this.socketFactory = socketFactory;
+            this.caCertificate = caCertificate;
+            this.hasCustomMaterial = hasCustomMaterial;
+            this.key = key;
+        }
+
+        @NonNull
+        public SocketFactory getSocketFactory() {
+            return socketFactory;
+        }
+
+        /**
+         * @return the configured CA certificate, or null if the system trust store is used
+         */
+        @Nullable
+        public X509Certificate getCaCertificate() {
+            return caCertificate;
+        }
+
+        /**
+         * @return whether a CA or client certificate was loaded. If not, the socket factory only differs from
+         * the platform default by its session cache.
+         */
+        public boolean hasCustomMaterial() {
+            return hasCustomMaterial;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.owntracks.android.support.preferences
+
+import org.owntracks.android.support.Preferences
+import kotlin.reflect.KMutableProperty1
+
+/**
+ * A typed handle on a single importable / exportable preference. [Preferences] keeps a static table of
+ * these so that configuration import and export are plain typed calls rather than reflective lookups.
+ */
+class PreferenceAccessor<T : Any> private constructor(
+        val keyResId: Int,
+        private val type: PreferenceType<T>,
+        val exportModeMqtt: Boolean,
+        val exportModeHttp: Boolean,
+        private val getter: ((Preferences) -> T)?,
+        private val setter: (Preferences, T) -> Unit
+) {
+    val isExported: Boolean
+        get() = getter != null
+
+    val typeName: String
+        get() = type.name
+
+    fun export(preferences: Preferences): T? = getter?.invoke(preferences)
+
+    /**
+     * Sets the preference from an already deserialized value, e.g. from a [org.owntracks.android.model.messages.MessageConfiguration].
+     * Returns false if the value is not of the expected type.
+     */
+    fun importValue(preferences: Preferences, value: Any): Boolean {
+        val typedValue = type.coerce(value) ?: return false
+        setter(preferences, typedValue)
+        return true
+    }
+
+    @Throws(IllegalArgumentException::class)
+    fun importString(preferences: Preferences, value: String) {
+        setter(preferences, type.parse(value))
+    }
+
+    companion object {
+        fun <T : Any> exported(keyResId: Int, type: PreferenceType<T>, property: KMutableProperty1<Preferences, T>, exportModeMqtt: Boolean = false, exportModeHttp: Boolean = false): PreferenceAccessor<T> =
+                PreferenceAccessor(keyResId, type, exportModeMqtt, exportModeHttp, { property.get(it) }, { preferences, value -> property.set(preferences, value) })
+
+        fun <T : Any> importOnly(keyResId: Int, type: PreferenceType<T>, setter: (Preferences, T) -> Unit): PreferenceAccessor<T> =
+                PreferenceAccessor(keyResId, type, exportModeMqtt = false, exportModeHttp = false, getter = null, setter = setter)
+    }
+}
+
+sealed class PreferenceType<T : Any>(val name: String) {
+    /**
+     * Converts a deserialized value into this type, or null if it can't be represented
+     */
+    abstract fun coerce(value: Any): T?
+
+    /**
+     * Parses a user entered string into this type
+     */
+    @Throws(IllegalArgumentException::class)
+    abstract fun parse(value: String): T
+
+    object BooleanType : PreferenceType<Boolean>("Boolean") {
+        override fun coerce(value: Any): Boolean? = value as? Boolean
+
+        override fun parse(value: String): Boolean {
+            require(value == "true" || value == "false")
+            return value.toBoolean()
+        }
+    }
+
+    object IntType : PreferenceType<Int>("Int") {
+        override fun coerce(value: Any): Int? = value as? Int
+
+        override fun parse(value: String): Int = value.toIntOrNull() ?: throw IllegalArgumentException()
+    }
+
+    object DoubleType : PreferenceType<Double>("Double") {
+        override fun coerce(value: Any): Double? = (value as? Number)?.toDouble()
+
+        override fun parse(value: String): Double = value.toDoubleOrNull() ?: throw IllegalArgumentException()
+    }
+
+    object StringType : PreferenceType<String>("String") {
+        override fun coerce(value: Any): String? = value as? String
+
+        override fun parse(value: String): String = value
+    }
+
+    object StringSetType : PreferenceType<Set<String>>("Set<String>") {
+        override fun coerce(value: Any): Set<String>? = (value as? Collection<*>)?.map { it.toString() }?.toSortedSet()
+
+        override fun parse(value: String): Set<String> = value.split(",").map { it.trim() }.filter { it.isNotBlank() }.toSortedSet()
+    }
+}
@@ -0,0 +1,61 @@
+package org.owntracks.android.support.preferences
+
+import org.owntracks.android.support.Preferences
+
+/**
+ * Immutable copy of the preferences that are read for every message that is sent or received. Reading
+ * these through [Preferences] costs a resource lookup and a SharedPreferences read per call, so
+ * [Preferences.snapshot] hands out one of these instead and swaps it out whenever a preference changes.
+ */
+class PreferencesSnapshot internal constructor(
+        @JvmField val generation: Int,
+        @JvmField val mode: Int,
+        @JvmField val monitoring: Int,
+        @JvmField val ignoreInaccurateLocations: Int,
+        @JvmField val ignoreStaleLocations: Double,
+        @JvmField val fusedRegionDetection: Boolean,
+        @JvmField val pubLocationExtendedData: Boolean,
+        @JvmField val bleCompactEncoding: Boolean,
+        @JvmField val trackerId: String,
+        @JvmField val remoteCommand: Boolean,
+        @JvmField val remoteConfiguration: Boolean,
+        @JvmField val pubTopicLocations: String,
+        @JvmField val pubTopicWaypoints: String,
+        @JvmField val pubTopicEvents: String,
+        @JvmField val pubTopicCommands: String,
+        @JvmField val pubQosLocations: Int,
+        @JvmField val pubRetainLocations: Boolean,
+        @JvmField val pubQosEvents: Int,
+        @JvmField val pubRetainEvents: Boolean,
+        @JvmField val pubQosWaypoints: Int,
+        @JvmField val pubRetainWaypoints: Boolean,
+        @JvmField val deferBacklogUntilUnmetered: Boolean
+) {
+    companion object {
+        @JvmStatic
+        internal fun of(preferences: Preferences, generation: Int) = PreferencesSnapshot(
+                generation = generation,
+                mode = preferences.mode,
+                monitoring = preferences.monitoring,
+                ignoreInaccurateLocations = preferences.ignoreInaccurateLocations,
+                ignoreStaleLocations = preferences.ignoreStaleLocations,
+                fusedRegionDetection = preferences.fusedRegionDetection,
+                pubLocationExtendedData = preferences.pubLocationExtendedData,
+                bleCompactEncoding = preferences.bleCompactEncoding,
+                trackerId = preferences.getTrackerId(true),
+                remoteCommand = preferences.remoteCommand,
+                remoteConfiguration = preferences.remoteConfiguration,
+                pubTopicLocations = preferences.pubTopicLocations,
+                pubTopicWaypoints = preferences.pubTopicWaypoints,
+                pubTopicEvents = preferences.pubTopicEvents,
+                pubTopicCommands = preferences.pubTopicCommands,
+                pubQosLocations = preferences.pubQosLocations,
+                pubRetainLocations = preferences.pubRetainLocations,
+                pubQosEvents = preferences.pubQosEvents,
+                pubRetainEvents = preferences.pubRetainEvents,
+                pubQosWaypoints = preferences.pubQosWaypoints,
+                pubRetainWaypoints = preferences.pubRetainWaypoints,
+                deferBacklogUntilUnmetered = preferences.deferBacklogUntilUnmetered
+        )
+    }
+}
@@ -47,6 +47,8 @@ import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.material.appbar.AppBarLayout;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 
+import dagger.Lazy;
+
 import org.greenrobot.eventbus.EventBus;
 import org.owntracks.android.R;
 import org.owntracks.android.data.repos.LocationRepo;
@@ -61,11 +63,11 @@ import org.owntracks.android.support.ContactImageProvider;
 import org.owntracks.android.support.Events;
 import org.owntracks.android.support.RequirementsChecker;
 import org.owntracks.android.support.RunThingsOnOtherThreads;
+import org.owntracks.android.support.StartupTimings;
 import org.owntracks.android.support.widgets.BindingConversions;
 import org.owntracks.android.support.widgets.RecyclerView;
 import org.owntracks.android.ui.base.BaseActivity;
 import org.owntracks.android.ui.base.navigator.Navigator;
-import org.owntracks.android.ui.map.ble.adapter.DiscoveredBluetoothDevice;
 import org.owntracks.android.ui.map.ble.utils.Utils;
 import org.owntracks.android.ui.map.ble.viewmodel.ScannerStateLiveData;
 import org.owntracks.android.ui.map.ble.viewmodel.ScannerViewModel;
@@ -74,7 +76,6 @@ import org.owntracks.android.ui.welcome.WelcomeActivity;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -136,7 +137,7 @@ public class MapActivity extends BaseActivity<UiMapBinding, MapMvvm.ViewModel<Ma
 
 
     @Inject
-    GeocoderProvider geocoderProvider;
+    Lazy<GeocoderProvider> geocoderProvider;
 
     @Inject
     CountingIdlingResource countingIdlingResource;
@@ -217,8 +218,16 @@ public class MapActivity extends BaseActivity<UiMapBinding, MapMvvm.ViewModel<Ma
         }
         fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
 
-        List<DiscoveredBluetoothDevice> devices = new ArrayList<>();
+        // BLE scanning isn't needed to show the map, so hold it back until the first frame has been drawn
+        getWindow().getDecorView().post(() -> {
+            StartupTimings.mark(StartupTimings.FIRST_FRAME);
+            if (!isFinishing()) {
+                setupBleScanner();
+            }
+        });
+    }
 
+    private void setupBleScanner() {
         // Create view model containing utility methods for scanning
         scannerViewModel = new ViewModelProvider(this).get(ScannerViewModel.class);
         scannerViewModel.getScannerState().observe(this, this::startScan);
@@ -233,9 +242,6 @@ public class MapActivity extends BaseActivity<UiMapBinding, MapMvvm.ViewModel<Ma
             locationRepo.setBleObject(bleObjects);
             bleObjects.clear();
         });
-
-
-
     }
 
 
@@ -269,7 +275,7 @@ public class MapActivity extends BaseActivity<UiMapBinding, MapMvvm.ViewModel<Ma
             binding.contactPeek.name.setText(c.getFusedName());
             if (c.hasLocation()) {
                 contactImageProvider.setImageViewAsync(binding.contactPeek.image, c);
-                geocoderProvider.resolve(c.getMessageLocation().getValue(), binding.contactPeek.location);
+                geocoderProvider.get().resolve(c.getMessageLocation().getValue(), binding.contactPeek.location);
                 BindingConversions.setRelativeTimeSpanString(binding.contactPeek.locationDate, c.getTst());
                 binding.acc.setText(String.format(Locale.getDefault(), "%s m", c.getFusedLocationAccuracy()));
                 binding.tid.setText(c.getTrackerId());
@@ -756,6 +762,9 @@ public class MapActivity extends BaseActivity<UiMapBinding, MapMvvm.ViewModel<Ma
      * stop scanning for bluetooth devices.
      */
     private void stopScan() {
+        if (scannerViewModel == null) {
+            return;
+        }
         scannerViewModel.stopScan();
     }
 
@@ -763,6 +772,9 @@ public class MapActivity extends BaseActivity<UiMapBinding, MapMvvm.ViewModel<Ma
      * Clears the list of devices, which will notify the observer.
      */
     private void clear() {
+        if (scannerViewModel == null) {
+            return;
+        }
         scannerViewModel.getDevices().clear();
         scannerViewModel.getScannerState().clearRecords();
     }
@@ -17,13 +17,16 @@ import com.google.android.gms.maps.model.Marker;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.owntracks.android.data.repos.ContactsRepo;
+import org.owntracks.android.data.repos.LocationRepo;
 import org.owntracks.android.injection.scopes.PerActivity;
 import org.owntracks.android.model.FusedContact;
 import org.owntracks.android.model.messages.MessageClear;
 import org.owntracks.android.model.messages.MessageLocation;
 import org.owntracks.android.services.LocationProcessor;
 import org.owntracks.android.services.MessageProcessor;
+import org.owntracks.android.support.EventChannel;
 import org.owntracks.android.support.Events;
+import org.owntracks.android.support.RunThingsOnOtherThreads;
 import org.owntracks.android.support.SimpleIdlingResource;
 import org.owntracks.android.ui.base.viewmodel.BaseViewModel;
 
@@ -35,6 +38,10 @@ import timber.log.Timber;
 public class MapViewModel extends BaseViewModel<MapMvvm.View> implements MapMvvm.ViewModel<MapMvvm.View>, LocationSource, GoogleMap.OnMapClickListener, GoogleMap.OnMarkerClickListener, GoogleMap.OnCameraMoveStartedListener {
     private final ContactsRepo contactsRepo;
     private final LocationProcessor locationProcessor;
+    private final LocationRepo locationRepo;
+    private final RunThingsOnOtherThreads runThingsOnOtherThreads;
+    private EventChannel.Subscription contactUpdatesSubscription;
+    private EventChannel.Subscription locationsSubscription;
     private FusedContact activeContact;
     private LocationSource.OnLocationChangedListener onLocationChangedListener;
     private MessageProcessor messageProcessor;
@@ -53,11 +60,27 @@ public class MapViewModel extends BaseViewModel<MapMvvm.View> implements MapMvvm
     private final SimpleIdlingResource locationIdlingResource = new SimpleIdlingResource("locationIdlingResource", false);
 
     @Inject
-    public MapViewModel(ContactsRepo contactsRepo, LocationProcessor locationRepo, MessageProcessor messageProcessor) {
+    public MapViewModel(ContactsRepo contactsRepo, LocationProcessor locationProcessor, LocationRepo locationRepo, MessageProcessor messageProcessor, RunThingsOnOtherThreads runThingsOnOtherThreads) {
         Timber.v("onCreate");
         this.contactsRepo = contactsRepo;
         this.messageProcessor = messageProcessor;
-        this.locationProcessor = locationRepo;
+        this.locationProcessor = locationProcessor;
+        this.locationRepo = locationRepo;
+        this.runThingsOnOtherThreads = runThingsOnOtherThreads;
+    }
+
+    @Override
+    public void attachView(@Nullable Bundle savedInstanceState, @NonNull MapMvvm.View view) {
+        super.attachView(savedInstanceState, view);
+        contactUpdatesSubscription = contactsRepo.getContactUpdates().observe(runThingsOnOtherThreads.getMainExecutor(), this::onContactUpdated);
+        locationsSubscription = locationRepo.getLocations().observe(runThingsOnOtherThreads.getMainExecutor(), this::onLocationUpdated);
+    }
+
+    @Override
+    public void detachView() {
+        contactUpdatesSubscription.cancel();
+        locationsSubscription.cancel();
+        super.detachView();
     }
 
     @Override
@@ -210,11 +233,6 @@ public class MapViewModel extends BaseViewModel<MapMvvm.View> implements MapMvvm
         }
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    public void onEvent(Events.FusedContactAdded e) {
-        onEvent(e.getContact());
-    }
-
     @Subscribe(threadMode = ThreadMode.MAIN)
     public void onEvent(Events.FusedContactRemoved c) {
         if (c.getContact() == activeContact) {
@@ -224,8 +242,10 @@ public class MapViewModel extends BaseViewModel<MapMvvm.View> implements MapMvvm
         getView().removeMarker(c.getContact());
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN)
-    public void onEvent(FusedContact c) {
+    private void onContactUpdated(FusedContact c) {
+        if (c.isDeleted()) {
+            return;
+        }
         getView().updateMarker(c);
         if (c == activeContact) {
             liveContact.postValue(c);
@@ -244,8 +264,7 @@ public class MapViewModel extends BaseViewModel<MapMvvm.View> implements MapMvvm
         getView().updateMonitoringModeMenu();
     }
 
-    @Subscribe(threadMode = ThreadMode.MAIN, priority = 1, sticky = true)
-    public void onEvent(@NonNull Location location) {
+    private void onLocationUpdated(@NonNull Location location) {
         this.location = location;
         getView().enableLocationMenus();
         locationIdlingResource.setIdleState(true);
@@ -13,6 +13,7 @@ import org.owntracks.android.data.repos.WaypointsRepo;
 import org.owntracks.android.injection.scopes.PerActivity;
 import org.owntracks.android.model.messages.MessageBase;
 import org.owntracks.android.model.messages.MessageConfiguration;
+import org.owntracks.android.support.HttpStack;
 import org.owntracks.android.support.Parser;
 import org.owntracks.android.support.Preferences;
 import org.owntracks.android.ui.base.viewmodel.BaseViewModel;
@@ -43,16 +44,18 @@ public class LoadViewModel extends BaseViewModel<LoadMvvm.View> implements LoadM
     private final Preferences preferences;
     private final Parser parser;
     private final WaypointsRepo waypointsRepo;
+    private final HttpStack httpStack;
 
     private MessageConfiguration configuration;
     private String displayedConfiguration;
     private ImportStatus importStatus = ImportStatus.LOADING;
 
     @Inject
-    public LoadViewModel(Preferences preferences, Parser parser, WaypointsRepo waypointsRepo) {
+    public LoadViewModel(Preferences preferences, Parser parser, WaypointsRepo waypointsRepo, HttpStack httpStack) {
         this.preferences = preferences;
         this.parser = parser;
         this.waypointsRepo = waypointsRepo;
+        this.httpStack = httpStack;
     }
 
     public void attachView(@Nullable Bundle savedInstanceState, @NonNull LoadMvvm.View view) {
@@ -133,7 +136,7 @@ public class LoadViewModel extends BaseViewModel<LoadMvvm.View> implements LoadM
                     setConfiguration(new String(config, StandardCharsets.UTF_8));
                 } else if (urlQueryParam.size() == 1) {
                     URL remoteConfigUrl = new URL(urlQueryParam.get(0));
-                    OkHttpClient client = new OkHttpClient();
+                    OkHttpClient client = httpStack.getRemoteConfigurationClient();
                     Request request = new Request.Builder()
                             .url(remoteConfigUrl)
                             .build();
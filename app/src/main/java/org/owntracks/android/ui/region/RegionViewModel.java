@@ -33,7 +33,7 @@ public class RegionViewModel extends BaseViewModel<RegionMvvm.View> implements R
     }
 
     public void loadWaypoint(long id) {
-        WaypointModel w = waypointsRepo.get(id);
+        WaypointModel w = waypointsRepo.getForEditing(id);
         if(w == null) {
             w = new WaypointModel();
             if (locationRepo.hasLocation()) {
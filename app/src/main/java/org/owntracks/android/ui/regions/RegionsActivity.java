@@ -18,8 +18,6 @@ import org.owntracks.android.ui.region.RegionActivity;
 
 import javax.inject.Inject;
 
-import io.objectbox.android.AndroidScheduler;
-import io.objectbox.reactive.DataSubscription;
 import timber.log.Timber;
 
 public class RegionsActivity extends BaseActivity<UiRegionsBinding, RegionsMvvm.ViewModel<RegionsMvvm.View>> implements RegionsMvvm.View, RegionsAdapter.ClickListener {
@@ -28,7 +26,6 @@ public class RegionsActivity extends BaseActivity<UiRegionsBinding, RegionsMvvm.
     Navigator navigator;
 
     private RegionsAdapter recyclerViewAdapter;
-    private DataSubscription subscription;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -42,6 +39,7 @@ public class RegionsActivity extends BaseActivity<UiRegionsBinding, RegionsMvvm.
         binding.recyclerView.setLayoutManager(new LinearLayoutManager(this));
         binding.recyclerView.setAdapter(recyclerViewAdapter);
         binding.recyclerView.setEmptyView(binding.placeholder);
+        viewModel.getWaypointsList().observe(this, recyclerViewAdapter::onData);
 
     }
 
@@ -90,18 +88,4 @@ public class RegionsActivity extends BaseActivity<UiRegionsBinding, RegionsMvvm.
         }
     }
 
-
-    @Override
-    public void onStart() {
-        super.onStart();
-        if(this.subscription == null || this.subscription.isCanceled()) {
-            this.subscription = viewModel.getWaypointsList().subscribe().on(AndroidScheduler.mainThread()).observer(recyclerViewAdapter) ;
-        }
-    }
-
-    @Override
-    protected void onStop() {
-        super.onStop();
-        subscription.cancel();
-    }
 }
@@ -1,10 +1,12 @@
 package org.owntracks.android.ui.regions;
 
+import androidx.lifecycle.LiveData;
+
 import org.owntracks.android.data.WaypointModel;
 import org.owntracks.android.ui.base.view.MvvmView;
 import org.owntracks.android.ui.base.viewmodel.MvvmViewModel;
 
-import io.objectbox.query.Query;
+import java.util.List;
 
 public interface RegionsMvvm {
 
@@ -12,7 +14,7 @@ public interface RegionsMvvm {
     }
 
     interface ViewModel<V extends MvvmView> extends MvvmViewModel<V> {
-        Query<WaypointModel> getWaypointsList();
+        LiveData<List<WaypointModel>> getWaypointsList();
         void delete(WaypointModel model);
 
         void exportWaypoints();
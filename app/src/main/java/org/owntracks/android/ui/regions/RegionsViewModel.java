@@ -1,14 +1,17 @@
 package org.owntracks.android.ui.regions;
 
+import androidx.lifecycle.LiveData;
+
 import org.owntracks.android.data.WaypointModel;
 import org.owntracks.android.data.repos.WaypointsRepo;
 import org.owntracks.android.injection.scopes.PerActivity;
 import org.owntracks.android.services.LocationProcessor;
 import org.owntracks.android.ui.base.viewmodel.BaseViewModel;
 
+import java.util.List;
+
 import javax.inject.Inject;
 
-import io.objectbox.query.Query;
 import timber.log.Timber;
 
 @PerActivity
@@ -24,9 +27,10 @@ public class RegionsViewModel extends BaseViewModel<RegionsMvvm.View> implements
         this.locationProcessor = locationProcessor;
     }
 
-        public Query<WaypointModel> getWaypointsList() {
-            return this.waypointsRepo.getAllQuery();
-        }
+    @Override
+    public LiveData<List<WaypointModel>> getWaypointsList() {
+        return this.waypointsRepo.getAllLive();
+    }
 
     @Override
     public void delete(WaypointModel model) {
@@ -19,5 +19,6 @@ public interface StatusMvvm {
         long getLocationUpdated();
         Date getServiceStarted();
         boolean getDozeWhitelisted();
+        String getSendMetrics();
     }
 }
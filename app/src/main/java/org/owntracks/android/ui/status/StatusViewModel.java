@@ -13,13 +13,20 @@ import androidx.databinding.Bindable;
 
 import org.greenrobot.eventbus.Subscribe;
 import org.owntracks.android.BR;
+import org.owntracks.android.R;
+import org.owntracks.android.data.repos.LocationRepo;
 import org.owntracks.android.injection.qualifier.AppContext;
 import org.owntracks.android.injection.scopes.PerActivity;
 import org.owntracks.android.services.MessageProcessor;
+import org.owntracks.android.support.EventChannel;
 import org.owntracks.android.support.Events;
+import org.owntracks.android.support.Metrics;
+import org.owntracks.android.support.RunThingsOnOtherThreads;
 import org.owntracks.android.ui.base.viewmodel.BaseViewModel;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -30,6 +37,10 @@ import timber.log.Timber;
 @PerActivity
 public class StatusViewModel extends BaseViewModel<StatusMvvm.View> implements StatusMvvm.ViewModel<StatusMvvm.View> {
     private final Context context;
+    private final MessageProcessor messageProcessor;
+    private final LocationRepo locationRepo;
+    private final RunThingsOnOtherThreads runThingsOnOtherThreads;
+    private final List<EventChannel.Subscription> subscriptions = new ArrayList<>();
     private MessageProcessor.EndpointState endpointState;
     private String endpointMessage;
 
@@ -38,12 +49,27 @@ public class StatusViewModel extends BaseViewModel<StatusMvvm.View> implements S
     private int queueLength;
 
     @Inject
-    public StatusViewModel(@AppContext Context context) {
+    public StatusViewModel(@AppContext Context context, MessageProcessor messageProcessor, LocationRepo locationRepo, RunThingsOnOtherThreads runThingsOnOtherThreads) {
         this.context = context;
+        this.messageProcessor = messageProcessor;
+        this.locationRepo = locationRepo;
+        this.runThingsOnOtherThreads = runThingsOnOtherThreads;
     }
 
     public void attachView(@Nullable Bundle savedInstanceState, @NonNull StatusMvvm.View view) {
         super.attachView(savedInstanceState, view);
+        subscriptions.add(messageProcessor.getEndpointStates().observe(runThingsOnOtherThreads.getMainExecutor(), this::onEndpointStateChanged));
+        subscriptions.add(messageProcessor.getQueueStates().observe(runThingsOnOtherThreads.getMainExecutor(), this::onQueueChanged));
+        subscriptions.add(locationRepo.getLocations().observe(runThingsOnOtherThreads.getMainExecutor(), this::onLocationUpdated));
+    }
+
+    @Override
+    public void detachView() {
+        for (EventChannel.Subscription subscription : subscriptions) {
+            subscription.cancel();
+        }
+        subscriptions.clear();
+        super.detachView();
     }
 
     @Override
@@ -82,8 +108,13 @@ public class StatusViewModel extends BaseViewModel<StatusMvvm.View> implements S
         return locationUpdated;
     }
 
-    @Subscribe(sticky = true)
-    public void onEvent(MessageProcessor.EndpointState e) {
+    @Override
+    @Bindable
+    public String getSendMetrics() {
+        return Metrics.getSendSummary();
+    }
+
+    private void onEndpointStateChanged(MessageProcessor.EndpointState e) {
         this.endpointState = e;
         this.endpointMessage = e.getMessage();
         notifyPropertyChanged(BR.endpointState);
@@ -96,21 +127,28 @@ public class StatusViewModel extends BaseViewModel<StatusMvvm.View> implements S
         notifyPropertyChanged(BR.serviceStarted);
     }
 
-    @Subscribe(sticky = true)
-    public void onEvent(Location l) {
+    private void onLocationUpdated(Location l) {
         this.locationUpdated = TimeUnit.MILLISECONDS.toSeconds(l.getTime());
         notifyPropertyChanged(BR.locationUpdated);
     }
 
-    @Subscribe(sticky = true)
-    public void onEvent(Events.QueueChanged e) {
+    private void onQueueChanged(Events.QueueChanged e) {
         Timber.v("queue changed %s", e.getNewLength());
         this.queueLength = e.getNewLength();
         notifyPropertyChanged(BR.endpointQueue);
+        notifyPropertyChanged(BR.sendMetrics);
     }
 
     public void viewLogs() {
         Intent intent = new Intent(context, LogViewerActivity.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         context.startActivity(intent);
     }
+
+    public void exportMetrics() {
+        Intent intent = new Intent(Intent.ACTION_SEND)
+                .setType("application/json")
+                .putExtra(Intent.EXTRA_SUBJECT, "OwnTracks metrics")
+                .putExtra(Intent.EXTRA_TEXT, Metrics.toJson());
+        context.startActivity(Intent.createChooser(intent, context.getString(R.string.exportMetricsPrompt)).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+    }
 }
@@ -7,15 +7,19 @@ import androidx.arch.core.executor.testing.InstantTaskExecutorRule
 import com.nhaarman.mockitokotlin2.any
 import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.mock
+import dagger.Lazy
 import org.greenrobot.eventbus.EventBus
 import org.junit.Assert.*
 import org.junit.Before
 import org.junit.Rule
 import org.junit.Test
+import org.owntracks.android.model.messages.MessageCard
 import org.owntracks.android.model.messages.MessageLocation
 import org.owntracks.android.support.ContactImageProvider
 import org.owntracks.android.support.Events.EndpointChanged
 import org.owntracks.android.support.Events.ModeChanged
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
 
 class MemoryContactsRepoTest {
 
@@ -51,7 +55,7 @@ class MemoryContactsRepoTest {
         messageLocation.latitude = 50.1
         messageLocation.longitude = 60.2
         messageLocation.timestamp = 123456789
-        contactsRepo = MemoryContactsRepo(eventBus, contactImageProvider)
+        contactsRepo = MemoryContactsRepo(eventBus, Lazy { contactImageProvider })
     }
 
     @Test
@@ -92,6 +96,30 @@ class MemoryContactsRepoTest {
         assertTrue(contactsRepo!!.all.value!!.isEmpty())
     }
 
+    @Test
+    fun repoKeepsEveryContactWhenCardsAndLocationsArriveOnTwoLanesAtOnce() {
+        val contacts = 500
+        val start = CountDownLatch(1)
+        val cardLane = thread {
+            start.await()
+            (0 until contacts).forEach { contactsRepo!!.update("card$it", MessageCard().apply { name = "Card $it" }) }
+        }
+        val locationLane = thread {
+            start.await()
+            (0 until contacts).forEach { contactsRepo!!.update("location$it", messageLocation) }
+        }
+        start.countDown()
+        cardLane.join()
+        locationLane.join()
+
+        assertEquals(2L * contacts, contactsRepo!!.revision)
+        assertEquals(2 * contacts, contactsRepo!!.all.value!!.size)
+        (0 until contacts).forEach {
+            assertEquals("Card $it", contactsRepo!!.getById("card$it")!!.messageCard.name)
+            assertEquals(messageLocation, contactsRepo!!.getById("location$it")!!.messageLocation.value)
+        }
+    }
+
     companion object {
         private const val CONTACT_ID = "abcd1234"
     }
@@ -0,0 +1,119 @@
+package org.owntracks.android.data.repos
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.data.WaypointModel
+import org.owntracks.android.model.messages.MessageWaypoint
+import org.owntracks.android.support.MessageWaypointCollection
+import org.owntracks.android.ui.preferences.load.InMemoryWaypointsRepo
+
+class WaypointsRepoTest {
+    private val repo = InMemoryWaypointsRepo(mock())
+
+    private fun waypoint(tst: Long, description: String = "home") = WaypointModel(0, tst, description, 51.5, -0.12, 100, 0, 0)
+
+    @Test
+    fun `given a waypoint that's been edited but not saved, the next get returns it unchanged`() {
+        repo.insert(waypoint(1000))
+        val editing = repo.getForEditing(1000)!!
+        editing.description = "work"
+        editing.geofenceRadius = 500
+        editing.lastTransition = 2
+
+        val reloaded = repo.get(1000)!!
+        assertEquals("home", reloaded.description)
+        assertEquals(100, reloaded.geofenceRadius)
+        assertEquals(0, reloaded.lastTransition)
+        assertEquals(100, repo.getAllWithGeofences().single().geofenceRadius)
+    }
+
+    @Test
+    fun `reads hand out the same waypoints every time rather than copies`() {
+        repo.insert(waypoint(1000))
+        assertSame(repo.get(1000), repo.get(1000))
+        assertSame(repo.getAllWithGeofences().single(), repo.getAllWithGeofences().single())
+        assertNotSame(repo.get(1000), repo.getForEditing(1000))
+    }
+
+    @Test
+    fun `given transitions on several waypoints, one flush is scheduled and they're written in one batch`() {
+        repo.insert(waypoint(1000))
+        repo.insert(waypoint(2000))
+        repo.updateTransition(repo.get(1000)!!, 1, true)
+        repo.updateTransition(repo.get(2000)!!, 1, true)
+        repo.updateTransition(repo.get(1000)!!, 2, true)
+        assertEquals(1, repo.flushesScheduled)
+
+        repo.flush()
+        assertEquals(listOf(setOf(repo.get(1000)!!.id, repo.get(2000)!!.id)), repo.transitionWrites)
+        assertEquals(2, repo.get(1000)!!.lastTransition)
+    }
+
+    @Test
+    fun `given an unchanged transition that didn't trigger, nothing is written`() {
+        repo.insert(waypoint(1000))
+        repo.updateTransition(repo.get(1000)!!, 0, false)
+        repo.flush()
+        assertEquals(0, repo.flushesScheduled)
+        assertTrue(repo.transitionWrites.isEmpty())
+    }
+
+    @Test
+    fun `given a flushed transition, the next flush writes nothing`() {
+        repo.insert(waypoint(1000))
+        repo.updateTransition(repo.get(1000)!!, 1, true)
+        repo.flush()
+        repo.flush()
+        assertEquals(1, repo.transitionWrites.size)
+    }
+
+    @Test
+    fun `given a transition that hasn't been flushed, reads return it`() {
+        repo.insert(waypoint(1000))
+        repo.updateTransition(repo.get(1000)!!, 1, true)
+        assertTrue(repo.transitionWrites.isEmpty())
+        assertEquals(1, repo.get(1000)!!.lastTransition)
+        assertTrue(repo.get(1000)!!.lastTriggered > 0)
+        assertEquals(1, repo.getAllWithGeofences().single().lastTransition)
+    }
+
+    @Test
+    fun `given a pending transition, a waypoint imported over it starts without it`() {
+        repo.insert(waypoint(1000))
+        val id = repo.get(1000)!!.id
+        repo.updateTransition(repo.get(1000)!!, 1, true)
+        repo.importFromMessage(MessageWaypointCollection().apply {
+            add(MessageWaypoint().apply {
+                timestamp = 1000
+                description = "work"
+                latitude = 51.5
+                longitude = -0.12
+                radius = 100
+            })
+        })
+        repo.flush()
+
+        val imported = repo.get(1000)!!
+        assertEquals(id, imported.id)
+        assertEquals("work", imported.description)
+        assertEquals(0, imported.lastTransition)
+        assertTrue(repo.transitionWrites.isEmpty())
+    }
+
+    @Test
+    fun `given a pending transition, a waypoint deleted and added again with the same id starts without it`() {
+        repo.insert(waypoint(1000))
+        val deleted = repo.get(1000)!!
+        repo.updateTransition(repo.get(1000)!!, 1, true)
+        repo.delete(deleted)
+        repo.insert(WaypointModel(deleted.id, 1000, "home", 51.5, -0.12, 100, 0, 0))
+        repo.flush()
+
+        assertEquals(0, repo.get(1000)!!.lastTransition)
+        assertTrue(repo.transitionWrites.isEmpty())
+    }
+}
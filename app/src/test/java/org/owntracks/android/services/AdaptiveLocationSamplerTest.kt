@@ -0,0 +1,90 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.owntracks.android.services.AdaptiveLocationSampler.PRIORITY_BALANCED_POWER_ACCURACY
+import org.owntracks.android.services.AdaptiveLocationSampler.PRIORITY_HIGH_ACCURACY
+import timber.log.Timber
+import java.io.File
+import java.util.concurrent.TimeUnit
+import kotlin.math.cos
+
+/**
+ * Recorded tracks can be replayed through [AdaptiveSamplingSimulation] as well as the built-in commute, e.g.
+ *
+ *     SAMPLING_TRACKS=/path/to/tracks ./gradlew :app:testGmsDebugUnitTest --tests '*AdaptiveLocationSamplerTest*'
+ *
+ * where the directory has one `seconds,latitude,longitude` CSV file per track. The test JVM inherits the
+ * environment, so nothing needs passing through; a `sampling.tracks` system property set on the test JVM
+ * itself works too.
+ */
+class AdaptiveLocationSamplerTest {
+    private val bounds = AdaptiveLocationSampler.Bounds(TimeUnit.SECONDS.toMillis(30), TimeUnit.SECONDS.toMillis(300), 100, PRIORITY_HIGH_ACCURACY)
+
+    private fun fix(seconds: Long, metersEast: Double, accuracy: Float = 20f, speed: Float = Float.NaN) = AdaptiveLocationSampler.Fix(
+            TimeUnit.SECONDS.toMillis(seconds),
+            51.5,
+            -0.12 + metersEast / (111_320.0 * cos(Math.toRadians(51.5))),
+            accuracy,
+            speed
+    )
+
+    @Test
+    fun `given no locations, it samples as if stationary`() {
+        assertEquals(AdaptiveLocationSampler.Policy(TimeUnit.SECONDS.toMillis(300), 100, PRIORITY_BALANCED_POWER_ACCURACY), AdaptiveLocationSampler.choose(emptyList(), bounds))
+    }
+
+    @Test
+    fun `given GPS locations at driving speed, it samples as often as allowed at high accuracy`() {
+        val history = listOf(fix(0, 0.0, 5f, 25f), fix(30, 750.0, 5f, 25f), fix(60, 1500.0, 5f, 25f))
+        assertEquals(AdaptiveLocationSampler.Policy(TimeUnit.SECONDS.toMillis(30), 0, PRIORITY_HIGH_ACCURACY), AdaptiveLocationSampler.choose(history, bounds))
+    }
+
+    @Test
+    fun `given locations without a speed at walking pace, it samples about once per displacement`() {
+        val history = listOf(fix(0, 0.0), fix(60, 84.0), fix(120, 168.0))
+        assertEquals(AdaptiveLocationSampler.Policy(TimeUnit.SECONDS.toMillis(60), 0, PRIORITY_BALANCED_POWER_ACCURACY), AdaptiveLocationSampler.choose(history, bounds))
+    }
+
+    @Test
+    fun `given a lower configured priority, it never asks for more than that`() {
+        val history = listOf(fix(0, 0.0, 5f, 25f), fix(30, 750.0, 5f, 25f))
+        val policy = AdaptiveLocationSampler.choose(history, AdaptiveLocationSampler.Bounds(TimeUnit.SECONDS.toMillis(30), TimeUnit.SECONDS.toMillis(300), 100, PRIORITY_BALANCED_POWER_ACCURACY))
+        assertEquals(PRIORITY_BALANCED_POWER_ACCURACY, policy.priority)
+    }
+
+    @Test
+    fun `given inaccurate locations that drift about, it treats the device as stationary and ignores moves smaller than the accuracy`() {
+        val history = listOf(fix(0, 0.0, 150f), fix(300, 60.0, 150f), fix(600, -20.0, 150f))
+        assertEquals(AdaptiveLocationSampler.Policy(TimeUnit.SECONDS.toMillis(300), 150, PRIORITY_BALANCED_POWER_ACCURACY), AdaptiveLocationSampler.choose(history, bounds))
+    }
+
+    @Test
+    fun `given a location a long way away after a long time stationary, it assumes the device has just started moving`() {
+        val history = listOf(fix(0, 0.0), fix(3600, 1000.0))
+        val policy = AdaptiveLocationSampler.choose(history, bounds)
+        assertEquals(TimeUnit.SECONDS.toMillis(30), policy.intervalMillis)
+        assertEquals(0, policy.displacementMeters)
+    }
+
+    @Test
+    fun `given a commute, adaptive sampling has the GPS on for less time and tracks the device more closely than the fixed request`() {
+        val report = AdaptiveSamplingSimulation(AdaptiveSamplingSimulation.Config()).run(AdaptiveSamplingSimulation.commute())
+        assertTrue("GPS on for ${report.adaptive.gpsOnSeconds}s adaptive vs ${report.fixed.gpsOnSeconds}s fixed\n$report", report.adaptive.gpsOnSeconds < report.fixed.gpsOnSeconds)
+        assertTrue("Mean error ${report.adaptive.meanErrorMeters}m adaptive vs ${report.fixed.meanErrorMeters}m fixed\n$report", report.adaptive.meanErrorMeters < report.fixed.meanErrorMeters)
+    }
+
+    @Test
+    fun `recorded tracks`() {
+        val directory = System.getenv("SAMPLING_TRACKS") ?: System.getProperty("sampling.tracks")
+        assumeTrue("Set SAMPLING_TRACKS to replay recorded tracks", directory != null)
+        val simulation = AdaptiveSamplingSimulation(AdaptiveSamplingSimulation.Config())
+        File(directory!!).listFiles { file -> file.extension == "csv" }!!.sorted().forEach {
+            val report = simulation.run(AdaptiveSamplingSimulation.load(it))
+            Timber.i("%s", report)
+            assertTrue("GPS on for longer with adaptive sampling\n$report", report.adaptive.gpsOnSeconds <= report.fixed.gpsOnSeconds)
+        }
+    }
+}
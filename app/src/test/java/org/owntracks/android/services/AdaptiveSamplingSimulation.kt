@@ -0,0 +1,196 @@
+package org.owntracks.android.services
+
+import org.owntracks.android.data.repos.LocationRepo
+import java.io.File
+import java.util.Locale
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import kotlin.math.cos
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sin
+
+/**
+ * Replays a track through a simple model of the fused location provider, once with the fixed significant
+ * changes location request (locatorInterval, locatorDisplacement and locatorPriority) and once with
+ * [AdaptiveLocationSampler] choosing the request from the locations delivered so far.
+ *
+ * The provider model takes a location every interval, with an accuracy that depends on the priority, and
+ * delivers it if it's at least the smallest displacement away from the last one it delivered. Every delivered
+ * location is a message, as it is in significant changes mode. The GPS is counted as on for
+ * [Config.gpsFixSeconds] (or the whole interval, if that's shorter) for every location taken at high
+ * accuracy. The tracking error is how far the last delivered location is from where the device actually is,
+ * every second.
+ */
+class AdaptiveSamplingSimulation(private val config: Config) {
+    data class Config(
+            val minIntervalSeconds: Long = 30,
+            val locatorIntervalSeconds: Long = 300,
+            val displacementMeters: Int = 100,
+            val locatorPriority: Int = AdaptiveLocationSampler.PRIORITY_HIGH_ACCURACY,
+            val gpsFixSeconds: Long = 10,
+            val seed: Long = 1
+    )
+
+    class Track(val name: String, private val points: List<Point>) {
+        data class Point(val seconds: Long, val latitude: Double, val longitude: Double)
+
+        init {
+            require(points.isNotEmpty()) { "Track $name has no points" }
+        }
+
+        val startSeconds: Long
+            get() = points.first().seconds
+        val endSeconds: Long
+            get() = points.last().seconds
+
+        private var cursor = 0
+
+        /**
+         * Where the device is at the given time, interpolated between the points either side. Expects to be
+         * asked in time order.
+         */
+        fun positionAt(seconds: Long): Point {
+            if (cursor > 0 && points[cursor].seconds > seconds) cursor = 0
+            while (cursor < points.size - 1 && points[cursor + 1].seconds <= seconds) cursor++
+            val from = points[cursor]
+            if (cursor == points.size - 1 || from.seconds == seconds) return from
+            val to = points[cursor + 1]
+            val fraction = (seconds - from.seconds).toDouble() / (to.seconds - from.seconds)
+            return Point(seconds, from.latitude + (to.latitude - from.latitude) * fraction, from.longitude + (to.longitude - from.longitude) * fraction)
+        }
+    }
+
+    class Result(val messages: Int, val gpsOnSeconds: Long, val meanErrorMeters: Double, val maxErrorMeters: Double) {
+        override fun toString(): String = String.format(Locale.ROOT, "%d messages, GPS on %ds, tracking error mean %.0fm max %.0fm", messages, gpsOnSeconds, meanErrorMeters, maxErrorMeters)
+    }
+
+    class Report(val track: String, val fixed: Result, val adaptive: Result) {
+        override fun toString(): String = "$track\n  fixed:    $fixed\n  adaptive: $adaptive"
+    }
+
+    private val bounds = AdaptiveLocationSampler.Bounds(
+            TimeUnit.SECONDS.toMillis(config.minIntervalSeconds),
+            TimeUnit.SECONDS.toMillis(config.locatorIntervalSeconds),
+            config.displacementMeters,
+            config.locatorPriority
+    )
+
+    fun run(track: Track): Report = Report(track.name, replay(track, adaptive = false), replay(track, adaptive = true))
+
+    private fun replay(track: Track, adaptive: Boolean): Result {
+        val random = Random(config.seed)
+        val history = mutableListOf<AdaptiveLocationSampler.Fix>()
+        var policy = if (adaptive) {
+            AdaptiveLocationSampler.choose(history, bounds)
+        } else {
+            AdaptiveLocationSampler.Policy(TimeUnit.SECONDS.toMillis(config.locatorIntervalSeconds), config.displacementMeters, config.locatorPriority)
+        }
+        var nextLocationAt = track.startSeconds
+        var lastDelivered: AdaptiveLocationSampler.Fix? = null
+        var previous = track.positionAt(track.startSeconds)
+        var messages = 0
+        var gpsOnSeconds = 0L
+        var errorSum = 0.0
+        var maxError = 0.0
+
+        for (second in track.startSeconds..track.endSeconds) {
+            val position = track.positionAt(second)
+            val speed = distance(previous, position)
+            previous = position
+
+            if (second >= nextLocationAt) {
+                val intervalSeconds = TimeUnit.MILLISECONDS.toSeconds(policy.intervalMillis)
+                nextLocationAt = second + max(1L, intervalSeconds)
+                if (policy.priority == AdaptiveLocationSampler.PRIORITY_HIGH_ACCURACY) {
+                    gpsOnSeconds += min(intervalSeconds, config.gpsFixSeconds)
+                }
+                val fix = observe(position, speed, policy.priority, random)
+                if (fix != null && (lastDelivered == null || AdaptiveLocationSampler.distanceMeters(lastDelivered.latitude, lastDelivered.longitude, fix.latitude, fix.longitude) >= policy.displacementMeters)) {
+                    lastDelivered = fix
+                    messages++
+                    history.add(fix)
+                    if (adaptive) {
+                        val next = AdaptiveLocationSampler.choose(history.takeLast(LocationRepo.HISTORY_SIZE), bounds)
+                        if (next != policy) {
+                            // A new request gets a location straight away and then one every interval
+                            policy = next
+                            nextLocationAt = second + max(1L, TimeUnit.MILLISECONDS.toSeconds(policy.intervalMillis))
+                        }
+                    }
+                }
+            }
+
+            val error = lastDelivered?.let { AdaptiveLocationSampler.distanceMeters(it.latitude, it.longitude, position.latitude, position.longitude) }
+                    ?: 0.0
+            errorSum += error
+            maxError = max(maxError, error)
+        }
+        return Result(messages, gpsOnSeconds, errorSum / (track.endSeconds - track.startSeconds + 1), maxError)
+    }
+
+    /**
+     * A location as the provider would report it at the given priority: off by up to around its accuracy,
+     * and with a speed only if it came from the GPS.
+     */
+    private fun observe(position: Track.Point, speed: Double, priority: Int, random: Random): AdaptiveLocationSampler.Fix? {
+        val accuracy = when (priority) {
+            AdaptiveLocationSampler.PRIORITY_HIGH_ACCURACY -> 10f
+            AdaptiveLocationSampler.PRIORITY_BALANCED_POWER_ACCURACY -> 60f
+            AdaptiveLocationSampler.PRIORITY_LOW_POWER -> 500f
+            else -> return null
+        }
+        val offset = Math.abs(random.nextGaussian()) * accuracy / 2
+        val bearing = random.nextDouble() * 2 * Math.PI
+        val moved = offsetBy(position, offset * cos(bearing), offset * sin(bearing))
+        return AdaptiveLocationSampler.Fix(TimeUnit.SECONDS.toMillis(position.seconds), moved.latitude, moved.longitude, accuracy,
+                if (priority == AdaptiveLocationSampler.PRIORITY_HIGH_ACCURACY) speed.toFloat() else Float.NaN)
+    }
+
+    companion object {
+        private const val METERS_PER_DEGREE = 111_320.0
+
+        private fun distance(a: Track.Point, b: Track.Point) = AdaptiveLocationSampler.distanceMeters(a.latitude, a.longitude, b.latitude, b.longitude)
+
+        private fun offsetBy(point: Track.Point, northMeters: Double, eastMeters: Double) = Track.Point(
+                point.seconds,
+                point.latitude + northMeters / METERS_PER_DEGREE,
+                point.longitude + eastMeters / (METERS_PER_DEGREE * cos(Math.toRadians(point.latitude)))
+        )
+
+        /**
+         * A day out: an hour at home, a walk to the car, a drive with a stop at some lights, a walk to the
+         * office and then four hours at a desk. One point a second.
+         */
+        @JvmStatic
+        fun commute(): Track {
+            val points = mutableListOf<Track.Point>()
+            var position = Track.Point(0, 51.5, -0.12)
+            fun go(seconds: Long, metersPerSecond: Double) {
+                repeat(seconds.toInt()) {
+                    position = offsetBy(position, 0.0, metersPerSecond).copy(seconds = position.seconds + 1)
+                    points.add(position)
+                }
+            }
+            points.add(position)
+            go(TimeUnit.HOURS.toSeconds(1), 0.0)
+            go(TimeUnit.MINUTES.toSeconds(8), 1.4)
+            go(TimeUnit.MINUTES.toSeconds(10), 15.0)
+            go(TimeUnit.MINUTES.toSeconds(2), 0.0)
+            go(TimeUnit.MINUTES.toSeconds(15), 20.0)
+            go(TimeUnit.MINUTES.toSeconds(5), 1.4)
+            go(TimeUnit.HOURS.toSeconds(4), 0.0)
+            return Track("commute", points)
+        }
+
+        /**
+         * Reads a recorded track: one `seconds,latitude,longitude` line per point, in time order. Lines that
+         * don't start with a number (e.g. a header) are skipped.
+         */
+        @JvmStatic
+        fun load(file: File): Track = Track(file.nameWithoutExtension, file.readLines()
+                .map { it.split(',').map(String::trim) }
+                .filter { it.size >= 3 && it[0].toDoubleOrNull() != null }
+                .map { Track.Point(it[0].toDouble().toLong(), it[1].toDouble(), it[2].toDouble()) })
+    }
+}
@@ -0,0 +1,82 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class AlarmPingSenderTest {
+    private val keepAlive = TimeUnit.SECONDS.toMillis(60)
+    private var now = TimeUnit.HOURS.toMillis(1)
+    private var alarmAt: Long? = null
+    private var alarmWindow = 0L
+    private var alarmSets = 0
+    private var checks = 0
+
+    private val sender = AlarmPingSender({ now }, object : AlarmPingSender.Alarm {
+        override fun set(triggerAtElapsedRealtime: Long, windowMillis: Long) {
+            alarmAt = triggerAtElapsedRealtime
+            alarmWindow = windowMillis
+            alarmSets++
+        }
+
+        override fun cancel() {
+            alarmAt = null
+        }
+    }).apply {
+        init(keepAlive) { done ->
+            checks++
+            done.run()
+        }
+    }
+
+    @Test
+    fun `given a start, the first alarm is a keepalive from now and may go off a quarter of it late`() {
+        sender.start()
+        assertEquals(now + keepAlive, alarmAt)
+        assertEquals(keepAlive / 4, alarmWindow)
+    }
+
+    @Test
+    fun `given the alarm goes off, paho checks for activity and the wakeup is released`() {
+        sender.start()
+        var released = false
+        sender.onAlarm { released = true }
+        assertEquals(1, checks)
+        assertTrue(released)
+    }
+
+    @Test
+    fun `given a publish, the alarm is pushed back to a keepalive after it`() {
+        sender.start()
+        now += keepAlive * 3 / 4
+        sender.onPublished()
+        assertEquals(now + keepAlive, alarmAt)
+    }
+
+    @Test
+    fun `given lots of publishes, the alarm is moved at most once every half keepalive`() {
+        sender.start()
+        val setsAfterStart = alarmSets
+        repeat(60) {
+            now += TimeUnit.SECONDS.toMillis(1)
+            sender.onPublished()
+        }
+        assertEquals(setsAfterStart + 2, alarmSets)
+    }
+
+    @Test
+    fun `given a stop, the alarm is cancelled and later alarms and schedules do nothing`() {
+        sender.start()
+        sender.stop()
+        assertNull(alarmAt)
+        sender.schedule(keepAlive)
+        sender.onPublished()
+        var released = false
+        sender.onAlarm { released = true }
+        assertNull(alarmAt)
+        assertEquals(0, checks)
+        assertTrue(released)
+    }
+}
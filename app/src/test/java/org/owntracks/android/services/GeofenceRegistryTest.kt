@@ -0,0 +1,68 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.owntracks.android.data.WaypointModel
+
+class GeofenceRegistryTest {
+    private fun waypoint(id: Long, latitude: Double, longitude: Double = 0.0, radius: Int = 100) =
+            WaypointModel(id, id, "waypoint $id", latitude, longitude, radius, 0, 0)
+
+    @Test
+    fun `given no registered geofences, when updating, all waypoints are added`() {
+        val registry = GeofenceRegistry()
+        val diff = registry.update(listOf(waypoint(1, 1.0), waypoint(2, 2.0)), false, 0.0, 0.0)
+        assertEquals(listOf(1L, 2L), diff.toAdd.map { it.id }.sorted())
+        assertTrue(diff.toRemove.isEmpty())
+    }
+
+    @Test
+    fun `given registered geofences, when a waypoint is added, removed and changed, only those are in the diff`() {
+        val registry = GeofenceRegistry()
+        registry.update(listOf(waypoint(1, 1.0), waypoint(2, 2.0), waypoint(3, 3.0)), false, 0.0, 0.0)
+
+        val diff = registry.update(listOf(waypoint(1, 1.0), waypoint(2, 2.0, radius = 500), waypoint(4, 4.0)), false, 0.0, 0.0)
+
+        assertEquals(listOf(2L, 4L), diff.toAdd.map { it.id }.sorted())
+        assertEquals(listOf("3"), diff.toRemove)
+        assertEquals(setOf("1", "2", "4"), registry.registeredRequestIds)
+    }
+
+    @Test
+    fun `given unchanged waypoints, when updating, the diff is empty`() {
+        val registry = GeofenceRegistry()
+        registry.update(listOf(waypoint(1, 1.0)), false, 0.0, 0.0)
+        assertTrue(registry.update(listOf(waypoint(1, 1.0)), false, 0.0, 0.0).isEmpty)
+    }
+
+    @Test
+    fun `given more waypoints than the limit, when updating, only the nearest are registered`() {
+        val registry = GeofenceRegistry(2)
+        val waypoints = listOf(waypoint(1, 10.0), waypoint(2, 0.1), waypoint(3, 5.0), waypoint(4, 0.2))
+
+        registry.update(waypoints, true, 0.0, 0.0)
+        assertEquals(setOf("2", "4"), registry.registeredRequestIds)
+
+        assertFalse(registry.needsReselection(0.001, 0.0))
+        assertTrue(registry.needsReselection(9.9, 0.0))
+
+        val diff = registry.update(waypoints, true, 9.9, 0.0)
+        assertEquals(setOf("1", "3"), registry.registeredRequestIds)
+        assertEquals(listOf("2", "4"), diff.toRemove.sorted())
+    }
+
+    @Test
+    fun `given fewer waypoints than the limit, reselection is never needed`() {
+        val registry = GeofenceRegistry(2)
+        registry.update(listOf(waypoint(1, 1.0)), true, 0.0, 0.0)
+        assertFalse(registry.needsReselection(50.0, 50.0))
+    }
+
+    @Test
+    fun `given geofences that failed to register, when updating again, they are added again`() {
+        val registry = GeofenceRegistry()
+        registry.update(listOf(waypoint(1, 1.0)), false, 0.0, 0.0)
+        registry.forget(listOf("1"))
+        assertEquals(listOf(1L), registry.update(listOf(waypoint(1, 1.0)), false, 0.0, 0.0).toAdd.map { it.id })
+    }
+}
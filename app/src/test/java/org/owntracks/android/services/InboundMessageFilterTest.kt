@@ -0,0 +1,90 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class InboundMessageFilterTest {
+    private val topic = "owntracks/user/device"
+
+    private fun location(tst: Long, lat: Double = 52.0) =
+            """{"_type":"location","acc":10,"lat":$lat,"lon":1.0,"tst":$tst}""".toByteArray()
+
+    // What the endpoint does with a message that parses and validates
+    private fun InboundMessageFilter.accept(topic: String, contactKey: String, payload: ByteArray, oldestTimestamp: Long): Boolean =
+            check(topic, contactKey, payload, oldestTimestamp)?.also { commit(it) } != null
+
+    @Test
+    fun `the scan reads type and timestamp and skips nested values`() {
+        val header = InboundMessageFilter.scan("""{"inregions":["a",{"tst":1}],"_type":"location","tst":1600000000}""".toByteArray())!!
+        assertEquals("location", header.type)
+        assertEquals(1600000000L, header.timestamp)
+    }
+
+    @Test
+    fun `the scan returns nothing for payloads that aren't a JSON object`() {
+        assertNull(InboundMessageFilter.scan(ByteArray(0)))
+        assertNull(InboundMessageFilter.scan("[1,2]".toByteArray()))
+        assertNull(InboundMessageFilter.scan("{\"_type\":".toByteArray()))
+    }
+
+    @Test
+    fun `given a location, an older location for the same contact is dropped`() {
+        val filter = InboundMessageFilter()
+        assertTrue(filter.accept(topic, topic, location(200), Long.MIN_VALUE))
+        assertFalse(filter.accept(topic, topic, location(100), Long.MIN_VALUE))
+        assertTrue(filter.accept("owntracks/user/other", "owntracks/user/other", location(100), Long.MIN_VALUE))
+        assertTrue(filter.accept(topic, topic, location(300), Long.MIN_VALUE))
+        assertEquals(1, filter.droppedStale)
+    }
+
+    @Test
+    fun `given a location, the same payload is dropped but a different one with the same timestamp is not`() {
+        val filter = InboundMessageFilter()
+        assertTrue(filter.accept(topic, topic, location(200), Long.MIN_VALUE))
+        assertFalse(filter.accept(topic, topic, location(200), Long.MIN_VALUE))
+        assertTrue(filter.accept(topic, topic, location(200, 53.0), Long.MIN_VALUE))
+        assertEquals(1, filter.droppedDuplicate)
+    }
+
+    @Test
+    fun `a location older than the stale cutoff is dropped`() {
+        val filter = InboundMessageFilter()
+        assertFalse(filter.accept(topic, topic, location(100), 150))
+        assertTrue(filter.accept(topic, topic, location(200), 150))
+    }
+
+    @Test
+    fun `given a forgotten contact, an older location is accepted again`() {
+        val filter = InboundMessageFilter()
+        filter.accept(topic, topic, location(200), Long.MIN_VALUE)
+        filter.forget(topic)
+        assertTrue(filter.accept(topic, topic, location(100), Long.MIN_VALUE))
+    }
+
+    @Test
+    fun `messages without a timestamp and encrypted messages are always accepted`() {
+        val filter = InboundMessageFilter()
+        val card = """{"_type":"card","name":"n"}""".toByteArray()
+        val encrypted = """{"_type":"encrypted","data":"abc"}""".toByteArray()
+        assertTrue(filter.accept("$topic/info", topic, card, Long.MIN_VALUE))
+        assertTrue(filter.accept("$topic/info", topic, card, Long.MIN_VALUE))
+        assertTrue(filter.accept(topic, topic, encrypted, Long.MIN_VALUE))
+        assertTrue(filter.accept(topic, topic, encrypted, Long.MIN_VALUE))
+    }
+
+    @Test
+    fun `given an invalid message with a future timestamp, the next valid location is not blocked`() {
+        val filter = InboundMessageFilter()
+        val invalid = """{"_type":"location","lat":"nowhere","tst":9999999999}""".toByteArray()
+        // Let through to be parsed, but never committed because it fails validation
+        assertNotNull(filter.check(topic, topic, invalid, Long.MIN_VALUE))
+        assertTrue(filter.accept(topic, topic, location(200), Long.MIN_VALUE))
+        assertNotNull(filter.check(topic, topic, invalid, Long.MIN_VALUE))
+        assertEquals(0, filter.droppedStale)
+        assertEquals(0, filter.droppedDuplicate)
+    }
+}
@@ -0,0 +1,73 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class InboundMessagePipelineTest {
+    // The stats are updated after the processor returns, so a latch counted down in the processor is too early
+    private fun <T> InboundMessagePipeline<T>.awaitProcessed(count: Long): Long {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+        while (stats.processed < count && System.nanoTime() < deadline) {
+            Thread.sleep(10)
+        }
+        return stats.processed
+    }
+
+    @Test
+    fun `given messages for several keys, messages for each key are processed in the order they were submitted`() {
+        val processed = Collections.synchronizedList(mutableListOf<Pair<String, Int>>())
+        val done = CountDownLatch(300)
+        val pipeline = InboundMessagePipeline<Pair<String, Int>>("test", 2, 16) {
+            processed.add(it)
+            done.countDown()
+        }
+        (0 until 100).forEach { i ->
+            listOf("a", "b", "c").forEach { key -> pipeline.submit(key, key to i) }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        listOf("a", "b", "c").forEach { key ->
+            assertEquals((0 until 100).toList(), processed.filter { it.first == key }.map { it.second })
+        }
+        assertEquals(300, pipeline.awaitProcessed(300))
+        assertEquals(0, pipeline.stats.dropped)
+        pipeline.shutdown()
+    }
+
+    @Test
+    fun `given a full lane, when a message is submitted, it is dropped and counted`() {
+        val release = CountDownLatch(1)
+        val started = CountDownLatch(1)
+        val pipeline = InboundMessagePipeline<Int>("test", 1, 1) {
+            started.countDown()
+            release.await()
+        }
+        assertTrue(pipeline.submit("a", 1))
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        assertTrue(pipeline.submit("a", 2))
+        assertFalse(pipeline.submit("a", 3))
+
+        val stats = pipeline.stats
+        assertEquals(1, stats.queueDepth)
+        assertEquals(1, stats.dropped)
+        release.countDown()
+        pipeline.shutdown()
+    }
+
+    @Test
+    fun `given a processor that throws, later messages are still processed`() {
+        val done = CountDownLatch(1)
+        val pipeline = InboundMessagePipeline<Int>("test", 1, 4) {
+            if (it == 1) throw IllegalStateException("boom")
+            done.countDown()
+        }
+        pipeline.submit("a", 1)
+        pipeline.submit("a", 2)
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        pipeline.shutdown()
+    }
+}
@@ -14,7 +14,7 @@ class MessageProcessorEndpointMqttTest {
 
     @Test
     fun `MQTT Endpoint generates correct topics to subscribe to from single default subTopic`() {
-        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, applicationContext)
+        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, null, applicationContext)
         val subTopic = "owntracks/+/+"
         val topics = endpoint.getTopicsToSubscribeTo(subTopic, true, "/info", "/events", "/waypoints")
         Assert.assertEquals(
@@ -28,7 +28,7 @@ class MessageProcessorEndpointMqttTest {
 
     @Test
     fun `MQTT Endpoint generates correct topics to subscribe to from single custom subTopic`() {
-        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, applicationContext)
+        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, null, applicationContext)
         val subTopic = "othertopic/+/+"
         val topics = endpoint.getTopicsToSubscribeTo(subTopic, true, "/info", "/events", "/waypoints")
         Assert.assertEquals(
@@ -37,7 +37,7 @@ class MessageProcessorEndpointMqttTest {
 
     @Test
     fun `MQTT Endpoint generates correct topics to subscribe to from multiple subTopics`() {
-        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, applicationContext)
+        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, null, applicationContext)
         val subTopic = "owntracks/+/+ othertopic/+"
         val topics = endpoint.getTopicsToSubscribeTo(subTopic, true, "/info", "/events", "/waypoints")
         Assert.assertEquals(
@@ -49,7 +49,7 @@ class MessageProcessorEndpointMqttTest {
 
     @Test
     fun `MQTT Endpoint generates correct topics to subscribe to from multiple subTopics with info not requested`() {
-        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, applicationContext)
+        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, null, applicationContext)
         val subTopic = "owntracks/+/+ othertopic/+"
         val topics = endpoint.getTopicsToSubscribeTo(subTopic, false, "/info", "/events", "/waypoints")
         Assert.assertEquals(
@@ -61,9 +61,17 @@ class MessageProcessorEndpointMqttTest {
 
     @Test
     fun `MQTT Endpoint generates correct topics to subscribe to from wildcard topic`() {
-        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, applicationContext)
+        val endpoint = MessageProcessorEndpointMqtt(null, null, null, null, null, null, null, applicationContext)
         val subTopic = "owntracks/#"
         val topics = endpoint.getTopicsToSubscribeTo(subTopic, true, "/info", "/events", "/waypoints")
         Assert.assertEquals(setOf("owntracks/#"), topics)
     }
+
+    @Test
+    fun `MQTT Endpoint gives all topics for a contact the same inbound key`() {
+        Assert.assertEquals("owntracks/user/device", MessageProcessorEndpointMqtt.contactKeyForTopic("owntracks/user/device"))
+        Assert.assertEquals("owntracks/user/device", MessageProcessorEndpointMqtt.contactKeyForTopic("owntracks/user/device/info"))
+        Assert.assertEquals("owntracks/user/device", MessageProcessorEndpointMqtt.contactKeyForTopic("owntracks/user/device/event"))
+        Assert.assertEquals("owntracks/user/device", MessageProcessorEndpointMqtt.contactKeyForTopic("owntracks/user/device/cmd"))
+    }
 }
@@ -0,0 +1,57 @@
+package org.owntracks.android.services
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import timber.log.Timber
+
+/**
+ * Runs [MqttLoadSimulation] against an in-process broker. The small case runs with the other unit tests. The
+ * load test only runs when asked for, e.g.
+ *
+ *     LOADTEST_CONTACTS=5000 LOADTEST_LOCATIONS_PER_CONTACT=5 LOADTEST_MESSAGES_PER_SECOND=2000 \
+ *         ./gradlew :app:testGmsDebugUnitTest --tests '*MqttEndpointLoadTest*'
+ *
+ * The test JVM inherits the environment, so nothing needs passing through; `loadtest.*` system properties
+ * set on the test JVM itself work too.
+ */
+class MqttEndpointLoadTest {
+    private lateinit var broker: TestMqttBroker
+
+    @Before
+    fun startBroker() {
+        broker = TestMqttBroker()
+    }
+
+    @After
+    fun stopBroker() {
+        broker.close()
+    }
+
+    @Test
+    fun `given retained and live messages from a group of contacts, every message reaches the message processor`() {
+        val report = MqttLoadSimulation(MqttLoadSimulation.Config(contacts = 50, locationsPerContact = 3, messagesPerSecond = 500, timeoutSeconds = 30)).run(broker)
+        assertEquals(report.expected, report.received)
+        assertEquals(0, report.inboundStats.dropped)
+    }
+
+    private fun setting(environmentVariable: String, property: String): Int? =
+            (System.getenv(environmentVariable) ?: System.getProperty(property))?.toInt()
+
+    @Test
+    fun `load test`() {
+        val contacts = setting("LOADTEST_CONTACTS", "loadtest.contacts")
+        assumeTrue("Set LOADTEST_CONTACTS to run the load test", contacts != null)
+        val config = MqttLoadSimulation.Config(
+                contacts = contacts!!,
+                locationsPerContact = setting("LOADTEST_LOCATIONS_PER_CONTACT", "loadtest.locationsPerContact") ?: 5,
+                messagesPerSecond = setting("LOADTEST_MESSAGES_PER_SECOND", "loadtest.messagesPerSecond") ?: 1000
+        )
+        val report = MqttLoadSimulation(config).run(broker)
+        Timber.i("MQTT load test, %s\n%s", config, report)
+        assertTrue("Only ${report.received} of ${report.expected} messages received, $config\n$report", report.received == report.expected)
+    }
+}
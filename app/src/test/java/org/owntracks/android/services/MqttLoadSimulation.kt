@@ -0,0 +1,209 @@
+package org.owntracks.android.services
+
+import android.content.Context
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageCard
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.Parser
+import org.owntracks.android.support.Preferences
+import org.owntracks.android.support.preferences.PreferencesSnapshot
+import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+/**
+ * Simulates a group of remote contacts publishing to a [TestMqttBroker], and receives everything through a
+ * [MessageProcessorEndpointMqtt] the same way the app does: the endpoint's MQTT callback, its inbound
+ * filter and pipeline, and the parser, up to [MessageProcessor.processIncomingMessage].
+ *
+ * Each contact first publishes a retained card and a retained location, before the receiver connects, so
+ * the receiver starts with a retained flood. The contacts then publish [Config.locationsPerContact] live
+ * locations each, at [Config.messagesPerSecond] across all of them.
+ */
+class MqttLoadSimulation(private val config: Config) {
+    data class Config(
+            val contacts: Int,
+            val locationsPerContact: Int,
+            val messagesPerSecond: Int,
+            val publisherConnections: Int = minOf(contacts, 16),
+            val timeoutSeconds: Long = 120
+    )
+
+    class Report(
+            val published: Long,
+            val publishSeconds: Double,
+            val expected: Long,
+            val received: Long,
+            val receiveSeconds: Double,
+            val latencyPercentilesMillis: Map<Int, Double>,
+            val heapGrowthBytes: Long,
+            val inboundStats: InboundMessagePipeline.Stats
+    ) {
+        val publishRate: Double
+            get() = published / publishSeconds
+        val receiveRate: Double
+            get() = received / receiveSeconds
+
+        override fun toString(): String = String.format(Locale.ROOT,
+                "published %d in %.1fs (%.0f msg/s), received %d of %d in %.1fs (%.0f msg/s)%n" +
+                        "end-to-end latency ms: %s%n" +
+                        "heap growth: %d KiB%n" +
+                        "inbound pipeline: %s",
+                published, publishSeconds, publishRate, received, expected, receiveSeconds, receiveRate,
+                latencyPercentilesMillis.entries.joinToString { "p${it.key}=${String.format(Locale.ROOT, "%.1f", it.value)}" },
+                heapGrowthBytes / 1024,
+                inboundStats)
+    }
+
+    private val baseTimestamp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - config.locationsPerContact - 1
+    private val publishedAt = ConcurrentHashMap<String, Long>()
+    private val latencies = LongArrayList()
+    private val received = AtomicLong()
+    private val expected = config.contacts * (2L + config.locationsPerContact)
+    private val allReceived = CountDownLatch(1)
+
+    fun run(broker: TestMqttBroker): Report {
+        val heapBefore = usedHeap()
+
+        val endpoint = MessageProcessorEndpointMqtt(receivingMessageProcessor(), Parser(null), preferences(), mock(), null, null, null, context())
+        (0 until config.contacts).chunked(chunkSize()).map { contacts ->
+            thread { publisher(broker, "retained-${contacts.first()}").use { client -> contacts.forEach { publishRetained(client, it) } } }
+        }.forEach { it.join() }
+
+        val receiveStart = System.nanoTime()
+        val receiver = MqttAsyncClient(broker.uri, "receiver", MemoryPersistence())
+        receiver.setCallback(endpoint.mqttCallback)
+        receiver.connect(MqttConnectOptions().apply { maxInflight = 1000 }).waitForCompletion()
+        receiver.subscribe(arrayOf("owntracks/+/+", "owntracks/+/+/info"), intArrayOf(1, 1)).waitForCompletion()
+
+        val publishStart = System.nanoTime()
+        val ratePerConnection = config.messagesPerSecond.toDouble() / config.publisherConnections
+        val publishers = (0 until config.contacts).chunked(chunkSize()).mapIndexed { index, contacts ->
+            thread(name = "loadPublisher-$index") {
+                publisher(broker, "live-$index").use { client ->
+                    var sent = 0L
+                    (1..config.locationsPerContact).forEach { sequence ->
+                        contacts.forEach { contact ->
+                            val due = publishStart + (sent++ * 1_000_000_000 / ratePerConnection).toLong()
+                            val wait = due - System.nanoTime()
+                            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait)
+                            publishLocation(client, contact, baseTimestamp + sequence, false)
+                        }
+                    }
+                }
+            }
+        }
+        publishers.forEach { it.join() }
+        val publishSeconds = (System.nanoTime() - publishStart) / 1e9
+
+        allReceived.await(config.timeoutSeconds, TimeUnit.SECONDS)
+        val receiveSeconds = (System.nanoTime() - receiveStart) / 1e9
+        val heapGrowth = usedHeap() - heapBefore
+
+        receiver.disconnect().waitForCompletion()
+        receiver.close()
+        val inboundStats = endpoint.inboundStats
+        endpoint.onDestroy()
+
+        return Report(
+                published = config.contacts.toLong() * config.locationsPerContact,
+                publishSeconds = publishSeconds,
+                expected = expected,
+                received = received.get(),
+                receiveSeconds = receiveSeconds,
+                latencyPercentilesMillis = latencies.percentiles(50, 90, 99, 100).mapValues { it.value / 1e6 },
+                heapGrowthBytes = heapGrowth,
+                inboundStats = inboundStats
+        )
+    }
+
+    private fun chunkSize() = (config.contacts + config.publisherConnections - 1) / config.publisherConnections
+
+    private fun topic(contact: Int) = "owntracks/load/contact$contact"
+
+    private fun publisher(broker: TestMqttBroker, clientId: String) = MqttAsyncClient(broker.uri, clientId, MemoryPersistence()).apply {
+        connect(MqttConnectOptions().apply { maxInflight = 1000 }).waitForCompletion()
+    }
+
+    private fun MqttAsyncClient.use(block: (MqttAsyncClient) -> Unit) {
+        try {
+            block(this)
+        } finally {
+            disconnect().waitForCompletion()
+            close()
+        }
+    }
+
+    private fun publishRetained(client: MqttAsyncClient, contact: Int) {
+        client.publish("${topic(contact)}/info", """{"_type":"card","name":"Contact $contact"}""".toByteArray(), 1, true).waitForCompletion()
+        publishLocation(client, contact, baseTimestamp, true)
+    }
+
+    private fun publishLocation(client: MqttAsyncClient, contact: Int, timestamp: Long, retained: Boolean) {
+        val payload = """{"_type":"location","tid":"${contact % 100}","acc":10,"lat":${50 + contact % 1000 / 1000.0},"lon":${timestamp % 360 / 360.0},"tst":$timestamp}"""
+        if (!retained) {
+            // Retained messages sit at the broker until the receiver connects, so only live ones are timed
+            publishedAt["${topic(contact)}:$timestamp"] = System.nanoTime()
+        }
+        client.publish(topic(contact), payload.toByteArray(), 1, retained).waitForCompletion()
+    }
+
+    private fun onReceived(message: MessageBase) {
+        if (message is MessageLocation) {
+            publishedAt.remove("${message.contactKey}:${message.timestamp}")?.let { latencies.add(System.nanoTime() - it) }
+        }
+        if (message is MessageLocation || message is MessageCard) {
+            if (received.incrementAndGet() == expected) {
+                allReceived.countDown()
+            }
+        }
+    }
+
+    private fun receivingMessageProcessor(): MessageProcessor = mock {
+        on { processIncomingMessage(any()) } doAnswer {
+            onReceived(it.getArgument(0))
+            null
+        }
+    }
+
+    private fun preferences(): Preferences {
+        val preferencesSnapshot: PreferencesSnapshot = mock()
+        return mock { on { snapshot } doReturn preferencesSnapshot }
+    }
+
+    private fun context(): Context = mock()
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        System.gc()
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    private class LongArrayList {
+        private var values = LongArray(1024)
+        private var size = 0
+
+        @Synchronized
+        fun add(value: Long) {
+            if (size == values.size) values = values.copyOf(size * 2)
+            values[size++] = value
+        }
+
+        @Synchronized
+        fun percentiles(vararg percentiles: Int): Map<Int, Double> {
+            if (size == 0) return emptyMap()
+            val sorted = values.copyOf(size).apply { sort() }
+            return percentiles.associate { it to sorted[((size - 1) * it / 100.0).toInt()].toDouble() }
+        }
+    }
+}
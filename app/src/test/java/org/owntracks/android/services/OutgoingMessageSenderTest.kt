@@ -0,0 +1,214 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import java.util.concurrent.LinkedBlockingDeque
+
+class OutgoingMessageSenderTest {
+    private val scheduled = mutableListOf<Pair<Runnable, Long>>()
+    private val queue = LinkedBlockingDeque<MessageBase>()
+    private val attempts = mutableListOf<MessageBase>()
+    private val finished = mutableListOf<MessageBase>()
+    private var failuresToGo = 0
+    private var online = true
+    private var backlogDeferred = false
+    private var failuresTakeNetworkDown = false
+    private val sender = OutgoingMessageSender(queue, 1000, 4000, { runnable, delay -> scheduled.add(runnable to delay) }, {
+        attempts.add(it)
+        if (failuresToGo > 0) {
+            failuresToGo -= 1
+            if (failuresTakeNetworkDown) {
+                online = false
+            }
+            throw OutgoingMessageSendingException(Exception("not connected"))
+        }
+    }, object : OutgoingMessageSender.Gate {
+        override fun isOnline() = online
+        override fun isBacklogDeferred() = backlogDeferred
+    }, { finished.add(it) })
+
+    private fun queueMessage(queuedAt: Long = System.nanoTime()): MessageBase = MessageLocation().also {
+        it.queuedAt = queuedAt
+        queue.add(it)
+        sender.wake()
+    }
+
+    /**
+     * Runs everything that's been posted, returning the delays of the posts that were run
+     */
+    private fun runScheduled(): List<Long> {
+        val toRun = scheduled.toList()
+        scheduled.clear()
+        toRun.forEach { it.first.run() }
+        return toRun.map { it.second }
+    }
+
+    @Test
+    fun `given queued messages, they are sent in order and finished`() {
+        sender.start()
+        val messages = (1..3).map { queueMessage() }
+        runScheduled()
+        assertEquals(messages, attempts)
+        assertEquals(messages, finished)
+        assertTrue(queue.isEmpty())
+    }
+
+    @Test
+    fun `given lots of queued messages, one call to wake schedules one drain`() {
+        sender.start()
+        runScheduled()
+        repeat(10) { queueMessage() }
+        assertEquals(1, scheduled.size)
+        runScheduled()
+        assertEquals(10, finished.size)
+    }
+
+    @Test
+    fun `given more messages than fit in one turn, the rest are sent in the next turn`() {
+        sender.start()
+        runScheduled()
+        repeat(OutgoingMessageSender.MAX_MESSAGES_PER_TURN + 5) { queueMessage() }
+        runScheduled()
+        assertEquals(OutgoingMessageSender.MAX_MESSAGES_PER_TURN, finished.size)
+        runScheduled()
+        assertEquals(OutgoingMessageSender.MAX_MESSAGES_PER_TURN + 5, finished.size)
+    }
+
+    @Test
+    fun `given a failing send, it is retried after a growing delay and the next message waits`() {
+        sender.start()
+        failuresToGo = 3
+        val first = queueMessage()
+        val second = queueMessage()
+        runScheduled()
+        assertEquals(listOf(first), attempts)
+        assertEquals(listOf(1000L), scheduled.map { it.second })
+
+        queueMessage()
+        assertEquals(1, scheduled.size)
+
+        assertEquals(listOf(1000L), runScheduled())
+        assertEquals(listOf(2000L), runScheduled())
+        assertEquals(listOf(4000L), runScheduled())
+        assertEquals(listOf(first, first, first, first, second), attempts.take(5))
+        assertSame(first, finished.first())
+        assertEquals(3, finished.size)
+    }
+
+    @Test
+    fun `given a message that keeps failing, it is dropped once it runs out of retries`() {
+        sender.start()
+        failuresToGo = Int.MAX_VALUE
+        val message = queueMessage()
+        runScheduled()
+        while (scheduled.isNotEmpty()) {
+            runScheduled()
+        }
+        assertEquals(message.numberOfRetries, attempts.size)
+        assertEquals(listOf(message), finished)
+    }
+
+    @Test
+    fun `given a message waiting to be retried, stopping puts it back at the head of the queue`() {
+        sender.start()
+        failuresToGo = 1
+        val first = queueMessage()
+        val second = queueMessage()
+        runScheduled()
+        sender.stop()
+        runScheduled()
+        assertEquals(listOf(first, second), queue.toList())
+        assertEquals(listOf(first), attempts)
+        assertTrue(finished.isEmpty())
+
+        queueMessage()
+        assertTrue(scheduled.isEmpty())
+    }
+
+    @Test
+    fun `given a message waiting to be retried, restarting retries it straight away`() {
+        sender.start()
+        failuresToGo = 1
+        val message = queueMessage()
+        runScheduled()
+        sender.start()
+        assertEquals(listOf(1000L, 0L), scheduled.map { it.second })
+        runScheduled()
+        assertEquals(listOf(message, message), attempts)
+        assertEquals(listOf(message), finished)
+    }
+
+    @Test
+    fun `given no network, nothing is taken off the queue until the network comes back`() {
+        sender.start()
+        runScheduled()
+        online = false
+        val message = queueMessage()
+        assertTrue(scheduled.isEmpty())
+        assertEquals(listOf(message), queue.toList())
+
+        online = true
+        sender.onGateChanged()
+        runScheduled()
+        assertEquals(listOf(message), finished)
+    }
+
+    @Test
+    fun `given a send that fails because the network went away, the retry isn't used up and it's sent when the network comes back`() {
+        sender.start()
+        runScheduled()
+        failuresToGo = 1
+        failuresTakeNetworkDown = true
+        val message = queueMessage()
+        runScheduled()
+        assertEquals(listOf(message), attempts)
+        assertTrue(scheduled.isEmpty())
+
+        online = true
+        sender.onGateChanged()
+        runScheduled()
+        assertEquals(listOf(message, message), attempts)
+        assertEquals(listOf(message), finished)
+    }
+
+    @Test
+    fun `given a message waiting to be retried, a network change retries it straight away`() {
+        sender.start()
+        failuresToGo = 1
+        val message = queueMessage()
+        runScheduled()
+        sender.onGateChanged()
+        val (retry, gateChanged) = scheduled.toList()
+        scheduled.clear()
+        gateChanged.first.run()
+        assertEquals(listOf(message, message), attempts)
+        retry.first.run()
+        assertEquals(listOf(message, message), attempts)
+        assertEquals(listOf(message), finished)
+    }
+
+    @Test
+    fun `given the backlog is deferred, only recent messages are sent, oldest first`() {
+        sender.start()
+        runScheduled()
+        backlogDeferred = true
+        val now = System.nanoTime()
+        val old = queueMessage(now - OutgoingMessageSender.BACKLOG_AGE_NANOS * 2)
+        runScheduled()
+        assertTrue(attempts.isEmpty())
+
+        val recent = (1..3).map { queueMessage(now) }
+        runScheduled()
+        assertEquals(recent, attempts)
+        assertEquals(listOf(old), queue.toList())
+
+        backlogDeferred = false
+        sender.onGateChanged()
+        runScheduled()
+        assertEquals(recent + old, finished)
+    }
+}
@@ -0,0 +1,69 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.owntracks.android.model.messages.MessageBase
+import org.owntracks.android.model.messages.MessageLocation
+import org.owntracks.android.support.Events
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.TimeUnit
+
+class QueueStatusPublisherTest {
+    private var now = TimeUnit.SECONDS.toNanos(100)
+    private val scheduled = mutableListOf<Pair<Runnable, Long>>()
+    private val published = mutableListOf<Events.QueueChanged>()
+    private val queue = LinkedBlockingDeque<MessageBase>()
+    private val publisher = QueueStatusPublisher(queue, 500, { runnable, delay -> scheduled.add(runnable to delay) }, { now }, { published.add(it) })
+
+    private fun runScheduled() {
+        val toRun = scheduled.toList()
+        scheduled.clear()
+        toRun.forEach { it.first.run() }
+    }
+
+    private fun queueMessage() {
+        queue.add(MessageLocation().apply { queuedAt = now })
+    }
+
+    @Test
+    fun `given a quiet queue, the first change is published without delay`() {
+        queueMessage()
+        publisher.onQueueChanged()
+        assertEquals(1, scheduled.size)
+        assertEquals(0L, scheduled[0].second)
+        runScheduled()
+        assertEquals(1, published.single().newLength)
+    }
+
+    @Test
+    fun `given a burst of changes, they are folded into one update with the latest state`() {
+        queueMessage()
+        publisher.onQueueChanged()
+        runScheduled()
+
+        now += TimeUnit.MILLISECONDS.toNanos(100)
+        repeat(50) {
+            queueMessage()
+            publisher.onQueueChanged()
+        }
+        assertEquals(1, scheduled.size)
+        assertEquals(400L, scheduled[0].second)
+
+        now += TimeUnit.MILLISECONDS.toNanos(400)
+        runScheduled()
+        assertEquals(2, published.size)
+        assertEquals(51, published.last().newLength)
+        assertEquals(500L, published.last().oldestAgeMillis)
+    }
+
+    @Test
+    fun `given deliveries, the drain rate goes up`() {
+        publisher.onQueueChanged()
+        runScheduled()
+        now += TimeUnit.SECONDS.toNanos(1)
+        repeat(10) { publisher.onDelivered() }
+        publisher.onQueueChanged()
+        runScheduled()
+        assertEquals(3.0, published.last().drainRate, 0.001)
+    }
+}
@@ -0,0 +1,107 @@
+package org.owntracks.android.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+class ReconnectControllerTest {
+    private val scheduled = mutableListOf<Pair<Runnable, Long>>()
+    private var connectResults = mutableListOf<Boolean>()
+    private var attempts = 0
+    private val controller = ReconnectController({ runnable, delay -> scheduled.add(runnable to delay) }, {
+        attempts++
+        if (connectResults.isEmpty()) false else connectResults.removeAt(0)
+    }, Random(42))
+
+    private fun runScheduled(): List<Long> {
+        val toRun = scheduled.toList()
+        scheduled.clear()
+        toRun.forEach { it.first.run() }
+        return toRun.map { it.second }
+    }
+
+    @Test
+    fun `given a start, it connects straight away and stops once connected`() {
+        connectResults = mutableListOf(true)
+        controller.start()
+        assertEquals(listOf(0L), runScheduled())
+        assertEquals(1, attempts)
+        assertTrue(scheduled.isEmpty())
+    }
+
+    @Test
+    fun `given repeated failures, the delay grows exponentially with jitter up to the cap`() {
+        controller.start()
+        runScheduled()
+        val delays = (1..15).map { runScheduled().single() }
+        delays.forEachIndexed { index, delay ->
+            val nominal = minOf(ReconnectController.MAX_DELAY_MILLIS, ReconnectController.INITIAL_DELAY_MILLIS shl (index + 1))
+            assertTrue("delay $delay for attempt $index should be between ${nominal / 2} and $nominal", delay in nominal / 2..nominal)
+        }
+    }
+
+    @Test
+    fun `given two clients losing the connection at the same time, they retry at different times`() {
+        val delays = listOf(1L, 2L).map { seed ->
+            val delaysForClient = mutableListOf<Long>()
+            val client = ReconnectController({ _, delay -> delaysForClient.add(delay) }, { false }, Random(seed))
+            client.onConnected()
+            client.start()
+            client.onConnectionLost()
+            delaysForClient.last()
+        }
+        assertTrue(delays[0] != delays[1])
+    }
+
+    @Test
+    fun `given a lost connection, it reconnects after a short delay`() {
+        connectResults = mutableListOf(true)
+        controller.onConnected()
+        controller.start()
+        assertTrue(scheduled.isEmpty())
+        controller.onConnectionLost()
+        val delay = runScheduled().single()
+        assertTrue(delay in ReconnectController.INITIAL_DELAY_MILLIS / 2..ReconnectController.INITIAL_DELAY_MILLIS)
+        assertEquals(1, attempts)
+    }
+
+    @Test
+    fun `given a connection from an explicit reconnect without a start, a lost connection is retried`() {
+        controller.stop()
+        controller.onConnected()
+        controller.onConnectionLost()
+        val delay = runScheduled().single()
+        assertTrue(delay in ReconnectController.INITIAL_DELAY_MILLIS / 2..ReconnectController.INITIAL_DELAY_MILLIS)
+        assertEquals(1, attempts)
+    }
+
+    @Test
+    fun `given no network, no attempts are made until the network comes back, which retries straight away`() {
+        controller.start()
+        runScheduled()
+        repeat(5) { runScheduled() }
+        assertEquals(6, attempts)
+
+        controller.onNetworkChanged(false)
+        runScheduled()
+        assertEquals(6, attempts)
+        assertTrue(scheduled.isEmpty())
+
+        connectResults = mutableListOf(true)
+        controller.onNetworkChanged(true)
+        assertEquals(listOf(0L), runScheduled())
+        assertEquals(7, attempts)
+        assertTrue(scheduled.isEmpty())
+    }
+
+    @Test
+    fun `given a stop, scheduled attempts do nothing`() {
+        controller.start()
+        controller.stop()
+        runScheduled()
+        assertEquals(0, attempts)
+        controller.onConnectionLost()
+        assertTrue(scheduled.isEmpty())
+    }
+}
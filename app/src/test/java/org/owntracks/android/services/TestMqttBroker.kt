@@ -0,0 +1,253 @@
+package org.owntracks.android.services
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+/**
+ * Just enough of an MQTT 3.1.1 broker to test against in-process: connect, subscribe and unsubscribe with `+`
+ * and `#` wildcards, publish at QoS 0, 1 and 2, retained messages and pings. Messages are delivered at
+ * QoS 0 or 1. There's no authentication, no persistent sessions and no will messages.
+ */
+class TestMqttBroker : Closeable {
+    private val serverSocket = ServerSocket(0, 128, InetAddress.getLoopbackAddress())
+    private val sessions = CopyOnWriteArrayList<Session>()
+    private val retained = ConcurrentHashMap<String, Retained>()
+
+    val published = AtomicLong()
+    val delivered = AtomicLong()
+
+    val uri: String
+        get() = "tcp://127.0.0.1:${serverSocket.localPort}"
+
+    init {
+        thread(name = "testBroker-accept", isDaemon = true) {
+            while (!serverSocket.isClosed) {
+                try {
+                    val socket = serverSocket.accept()
+                    socket.tcpNoDelay = true
+                    val session = Session(socket)
+                    sessions.add(session)
+                    thread(name = "testBroker-session", isDaemon = true) { session.run() }
+                } catch (e: IOException) {
+                    // Closed
+                }
+            }
+        }
+    }
+
+    override fun close() {
+        serverSocket.close()
+        sessions.forEach { it.close() }
+    }
+
+    private class Retained(val payload: ByteArray, val qos: Int)
+
+    private inner class Session(private val socket: Socket) : Closeable {
+        private val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+        private val output: OutputStream = BufferedOutputStream(socket.getOutputStream())
+        private val subscriptions = ConcurrentHashMap<String, Int>()
+        private val nextPacketId = AtomicInteger()
+
+        fun run() {
+            try {
+                while (true) {
+                    val header = input.read()
+                    if (header < 0) break
+                    val body = ByteArray(readRemainingLength())
+                    input.readFully(body)
+                    if (!handle(header ushr 4, header and 0x0f, body)) break
+                }
+            } catch (e: EOFException) {
+                // Client went away without a DISCONNECT
+            } catch (e: SocketException) {
+                // Connection reset, or the broker was closed
+            } finally {
+                close()
+            }
+        }
+
+        private fun handle(type: Int, flags: Int, body: ByteArray): Boolean {
+            val reader = PacketReader(body)
+            when (type) {
+                CONNECT -> write(CONNACK shl 4, byteArrayOf(0, 0))
+                PUBLISH -> {
+                    val qos = (flags shr 1) and 0x03
+                    val retain = flags and 0x01 != 0
+                    val topic = reader.string()
+                    val packetId = if (qos > 0) reader.short() else 0
+                    val payload = reader.rest()
+                    when (qos) {
+                        1 -> write(PUBACK shl 4, packetIdBytes(packetId))
+                        2 -> write(PUBREC shl 4, packetIdBytes(packetId))
+                    }
+                    publish(topic, payload, qos, retain)
+                }
+                PUBREL -> write(PUBCOMP shl 4, packetIdBytes(reader.short()))
+                SUBSCRIBE -> {
+                    val packetId = reader.short()
+                    val granted = ByteArrayOutputStream()
+                    val filters = mutableListOf<String>()
+                    while (reader.hasMore()) {
+                        val filter = reader.string()
+                        val qos = minOf(reader.byte(), 1)
+                        subscriptions[filter] = qos
+                        filters.add(filter)
+                        granted.write(qos)
+                    }
+                    write(SUBACK shl 4, packetIdBytes(packetId) + granted.toByteArray())
+                    retained.forEach { (topic, message) ->
+                        filters.firstOrNull { matches(it, topic) }?.let {
+                            deliver(topic, message.payload, minOf(message.qos, subscriptions[it] ?: 0), true)
+                        }
+                    }
+                }
+                UNSUBSCRIBE -> {
+                    val packetId = reader.short()
+                    while (reader.hasMore()) {
+                        subscriptions.remove(reader.string())
+                    }
+                    write(UNSUBACK shl 4, packetIdBytes(packetId))
+                }
+                PINGREQ -> write(PINGRESP shl 4, ByteArray(0))
+                DISCONNECT -> return false
+            }
+            return true
+        }
+
+        private fun publish(topic: String, payload: ByteArray, qos: Int, retain: Boolean) {
+            published.incrementAndGet()
+            if (retain) {
+                if (payload.isEmpty()) {
+                    retained.remove(topic)
+                } else {
+                    retained[topic] = Retained(payload, qos)
+                }
+            }
+            sessions.forEach { session ->
+                session.subscriptions.entries
+                        .filter { matches(it.key, topic) }
+                        .maxOfOrNull { it.value }
+                        ?.let { session.deliver(topic, payload, minOf(qos, it), false) }
+            }
+        }
+
+        fun deliver(topic: String, payload: ByteArray, qos: Int, retain: Boolean) {
+            val body = ByteArrayOutputStream()
+            writeString(body, topic)
+            if (qos > 0) {
+                body.write(packetIdBytes((nextPacketId.incrementAndGet() and 0xffff).coerceAtLeast(1)))
+            }
+            body.write(payload)
+            try {
+                write((PUBLISH shl 4) or (qos shl 1) or (if (retain) 1 else 0), body.toByteArray())
+                delivered.incrementAndGet()
+            } catch (e: IOException) {
+                close()
+            }
+        }
+
+        private fun write(header: Int, body: ByteArray) {
+            synchronized(output) {
+                output.write(header)
+                var length = body.size
+                do {
+                    var digit = length % 128
+                    length /= 128
+                    if (length > 0) digit = digit or 0x80
+                    output.write(digit)
+                } while (length > 0)
+                output.write(body)
+                output.flush()
+            }
+        }
+
+        private fun readRemainingLength(): Int {
+            var multiplier = 1
+            var length = 0
+            do {
+                val digit = input.readUnsignedByte()
+                length += (digit and 0x7f) * multiplier
+                multiplier *= 128
+            } while (digit and 0x80 != 0)
+            return length
+        }
+
+        override fun close() {
+            sessions.remove(this)
+            try {
+                socket.close()
+            } catch (e: IOException) {
+                // Already closed
+            }
+        }
+    }
+
+    private class PacketReader(private val body: ByteArray) {
+        private var position = 0
+        fun hasMore() = position < body.size
+        fun byte() = body[position++].toInt() and 0xff
+        fun short() = (byte() shl 8) or byte()
+        fun string(): String {
+            val length = short()
+            return String(body, position, length, Charsets.UTF_8).also { position += length }
+        }
+
+        fun rest(): ByteArray = body.copyOfRange(position, body.size).also { position = body.size }
+    }
+
+    companion object {
+        private const val CONNECT = 1
+        private const val CONNACK = 2
+        private const val PUBLISH = 3
+        private const val PUBACK = 4
+        private const val PUBREC = 5
+        private const val PUBREL = 6
+        private const val PUBCOMP = 7
+        private const val SUBSCRIBE = 8
+        private const val SUBACK = 9
+        private const val UNSUBSCRIBE = 10
+        private const val UNSUBACK = 11
+        private const val PINGREQ = 12
+        private const val PINGRESP = 13
+        private const val DISCONNECT = 14
+
+        private fun packetIdBytes(packetId: Int) = byteArrayOf((packetId shr 8).toByte(), packetId.toByte())
+
+        private fun writeString(output: ByteArrayOutputStream, value: String) {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            output.write(packetIdBytes(bytes.size))
+            output.write(bytes)
+        }
+
+        /**
+         * Whether an MQTT topic filter matches a topic
+         */
+        fun matches(filter: String, topic: String): Boolean {
+            val filterLevels = filter.split("/")
+            val topicLevels = topic.split("/")
+            filterLevels.forEachIndexed { index, level ->
+                when {
+                    level == "#" -> return true
+                    index >= topicLevels.size -> return false
+                    level != "+" && level != topicLevels[index] -> return false
+                }
+            }
+            return filterLevels.size == topicLevels.size
+        }
+    }
+}
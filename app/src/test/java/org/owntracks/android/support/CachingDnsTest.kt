@@ -0,0 +1,55 @@
+package org.owntracks.android.support
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.net.InetAddress
+import java.net.UnknownHostException
+
+class CachingDnsTest {
+    private val first = listOf(InetAddress.getByAddress("broker", byteArrayOf(10, 0, 0, 1)))
+    private val second = listOf(InetAddress.getByAddress("broker", byteArrayOf(10, 0, 0, 2)))
+
+    @Test
+    fun `given a recent lookup, when the host is looked up again, the resolver is not asked again`() {
+        var lookups = 0
+        var now = 0L
+        val dns = CachingDns({ lookups++; first }, { now }, ttlMillis = 1000, maxStaleMillis = 5000)
+        dns.lookup("broker")
+        now = 999
+        assertEquals(first, dns.lookup("broker"))
+        assertEquals(1, lookups)
+    }
+
+    @Test
+    fun `given an expired lookup, when the host is looked up again, it is resolved again`() {
+        var addresses = first
+        var now = 0L
+        val dns = CachingDns({ addresses }, { now }, ttlMillis = 1000, maxStaleMillis = 5000)
+        dns.lookup("broker")
+        addresses = second
+        now = 1000
+        assertEquals(second, dns.lookup("broker"))
+    }
+
+    @Test
+    fun `given an expired lookup and a failing resolver, the stale addresses are used`() {
+        var failing = false
+        var now = 0L
+        val dns = CachingDns({ if (failing) throw UnknownHostException(it) else first }, { now }, ttlMillis = 1000, maxStaleMillis = 5000)
+        dns.lookup("broker")
+        failing = true
+        now = 4999
+        assertEquals(first, dns.lookup("broker"))
+    }
+
+    @Test(expected = UnknownHostException::class)
+    fun `given a lookup older than the stale limit and a failing resolver, the lookup fails`() {
+        var failing = false
+        var now = 0L
+        val dns = CachingDns({ if (failing) throw UnknownHostException(it) else first }, { now }, ttlMillis = 1000, maxStaleMillis = 5000)
+        dns.lookup("broker")
+        failing = true
+        now = 5000
+        dns.lookup("broker")
+    }
+}
@@ -0,0 +1,104 @@
+package org.owntracks.android.support
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.Executor
+import kotlin.concurrent.thread
+
+class EventChannelTest {
+    private class QueuedExecutor : Executor {
+        val queue = mutableListOf<Runnable>()
+        override fun execute(command: Runnable) {
+            queue.add(command)
+        }
+
+        fun runAll() {
+            while (queue.isNotEmpty()) {
+                queue.removeAt(0).run()
+            }
+        }
+    }
+
+    @Test
+    fun `given no executor, observers are called on the posting thread`() {
+        val channel = EventChannel.conflated<Int>()
+        val received = mutableListOf<Int>()
+        channel.observe(null) { received.add(it) }
+        channel.post(1)
+        channel.post(2)
+        assertEquals(listOf(1, 2), received)
+    }
+
+    @Test
+    fun `given a conflated channel, new observers get the latest value`() {
+        val channel = EventChannel.conflated<Int>()
+        channel.post(1)
+        channel.post(2)
+        val received = mutableListOf<Int>()
+        channel.observe(null) { received.add(it) }
+        assertEquals(listOf(2), received)
+        assertEquals(2, channel.latest)
+    }
+
+    @Test
+    fun `given a slow observer, a conflated channel only delivers the latest value`() {
+        val channel = EventChannel.conflated<Int>()
+        val executor = QueuedExecutor()
+        val received = mutableListOf<Int>()
+        channel.observe(executor) { received.add(it) }
+        (1..100).forEach { channel.post(it) }
+        assertEquals(1, executor.queue.size)
+        executor.runAll()
+        assertEquals(listOf(100), received)
+    }
+
+    @Test
+    fun `given a slow observer, a per value channel delivers each distinct value once`() {
+        val channel = EventChannel.conflatedPerValue<String>()
+        val executor = QueuedExecutor()
+        val received = mutableListOf<String>()
+        channel.observe(executor) { received.add(it) }
+        listOf("a", "b", "a", "c", "b").forEach { channel.post(it) }
+        assertEquals(1, executor.queue.size)
+        executor.runAll()
+        assertEquals(listOf("a", "b", "c"), received)
+    }
+
+    @Test
+    fun `a per value channel doesn't replay to new observers`() {
+        val channel = EventChannel.conflatedPerValue<String>()
+        channel.post("a")
+        val received = mutableListOf<String>()
+        channel.observe(null) { received.add(it) }
+        assertEquals(emptyList<String>(), received)
+        assertNull(channel.latest)
+    }
+
+    @Test
+    fun `given a cancelled subscription, pending and later values are not delivered`() {
+        val channel = EventChannel.conflated<Int>()
+        val executor = QueuedExecutor()
+        val received = mutableListOf<Int>()
+        val subscription = channel.observe(executor) { received.add(it) }
+        channel.post(1)
+        subscription.cancel()
+        channel.post(2)
+        executor.runAll()
+        assertEquals(emptyList<Int>(), received)
+    }
+
+    @Test
+    fun `given a value posted while an observer is being added, the observer is left with the newest value`() {
+        repeat(1000) {
+            val channel = EventChannel.conflated<Int>()
+            channel.post(1)
+            val received = Collections.synchronizedList(mutableListOf<Int>())
+            val poster = thread { channel.post(2) }
+            channel.observe(null) { received.add(it) }
+            poster.join()
+            assertEquals(2, received.last())
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.owntracks.android.support
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class LatencyHistogramTest {
+    @Test
+    fun `every bucket's highest value maps back to the same bucket and the next value to the next bucket`() {
+        (0 until LatencyHistogram.bucketFor(TimeUnit.HOURS.toMicros(1))).forEach { bucket ->
+            val highest = LatencyHistogram.highestValueIn(bucket)
+            assertEquals(bucket, LatencyHistogram.bucketFor(highest))
+            assertEquals(bucket + 1, LatencyHistogram.bucketFor(highest + 1))
+        }
+    }
+
+    @Test
+    fun `given a spread of durations, percentiles are within the bucket precision`() {
+        val histogram = LatencyHistogram()
+        (1..1000).forEach { histogram.record(TimeUnit.MILLISECONDS.toNanos(it.toLong())) }
+        assertEquals(1000, histogram.count)
+        assertEquals(500.0, histogram.percentileMillis(50.0), 500 * 0.07)
+        assertEquals(990.0, histogram.percentileMillis(99.0), 990 * 0.07)
+        assertEquals(1000.0, histogram.percentileMillis(100.0), 0.001)
+        assertEquals(1000.0, histogram.maxMillis, 0.001)
+        assertEquals(500.5, histogram.meanMillis, 0.001)
+    }
+
+    @Test
+    fun `given durations longer than an hour, they are counted as an hour`() {
+        val histogram = LatencyHistogram()
+        histogram.record(TimeUnit.HOURS.toNanos(5))
+        assertEquals(TimeUnit.HOURS.toMillis(1).toDouble(), histogram.maxMillis, 0.001)
+        assertTrue(histogram.percentileMillis(50.0) <= TimeUnit.HOURS.toMillis(1))
+    }
+
+    @Test
+    fun `given a reset histogram, nothing is reported`() {
+        val histogram = LatencyHistogram()
+        histogram.record(1000)
+        histogram.reset()
+        assertEquals(0, histogram.count)
+        assertEquals(0.0, histogram.percentileMillis(99.0), 0.0)
+    }
+}
@@ -17,6 +17,7 @@ import org.owntracks.android.support.Parser.EncryptionException
 import java.io.ByteArrayInputStream
 import java.io.IOException
 import java.util.*
+import java.util.concurrent.TimeUnit
 
 
 class ParserTest {
@@ -147,6 +148,33 @@ class ParserTest {
         assertEquals(expected, serialized)
     }
 
+    @Test
+    fun `Parser can round-trip a location message with compact BLE objects`() {
+        val parser = Parser(encryptionProvider)
+        val input = messageLocation!!
+        input.bleObjects = arrayListOf(
+                BLEObject("beacon1", -60, "uuid1", Date(TimeUnit.SECONDS.toMillis(123456789L - 4)), "AA:BB:CC:DD:EE:01"),
+                BLEObject("beacon2", -90, "uuid2", Date(TimeUnit.SECONDS.toMillis(123456789L - 1)), "AA:BB:CC:DD:EE:02")
+        )
+        input.packBleObjects()
+        val serialized = input.toJson(parser)!!
+        // Version 1, then beacon2 (1s old) and beacon1 (3s older): address, rssi, age delta
+        assertTrue(serialized, serialized.contains("\"blec\":\"Aaq7zN3uAqYBqrvM3e4BxAM=\""))
+        listOf("bleUuid", "address", "rssi", "uuid", "date").forEach {
+            assertFalse(serialized, serialized.contains("\"$it\""))
+        }
+
+        val message = parser.fromJson(serialized) as MessageLocation
+        assertNull(message.bleCompact)
+        assertEquals(2, message.bleObjects.size)
+        assertEquals("AA:BB:CC:DD:EE:02", message.bleObjects[0].address)
+        assertEquals(-90, message.bleObjects[0].rssi)
+        assertEquals(TimeUnit.SECONDS.toMillis(123456789L - 1), message.bleObjects[0].date.time)
+        assertEquals("AA:BB:CC:DD:EE:01", message.bleObjects[1].address)
+        assertEquals(-60, message.bleObjects[1].rssi)
+        assertEquals(TimeUnit.SECONDS.toMillis(123456789L - 4), message.bleObjects[1].date.time)
+    }
+
     @Test(expected = EncryptionException::class)
     fun `Parser should raise an exception when given an encrypted message with encryption disabled`() {
         Mockito.`when`(encryptionProvider.isPayloadEncryptionEnabled).thenReturn(false)
@@ -170,6 +198,36 @@ class ParserTest {
         val secondMessageLocation = messages[1] as MessageLocation
         assertEquals(1514455579L, secondMessageLocation.timestamp)
     }
+
+    @Test
+    fun `Parser hands over streamed messages one at a time and stops at the limit`() {
+        val messages = (1..5).joinToString(",", "[", "]") { "{\"_type\":\"location\",\"lat\":1.0,\"lon\":2.0,\"tst\":$it}" }
+        val parser = Parser(encryptionProvider)
+        val received = mutableListOf<MessageBase>()
+        val count = parser.fromJson(ByteArrayInputStream(messages.toByteArray()), 3) { received.add(it) }
+        assertEquals(3, count)
+        assertEquals(listOf(1L, 2L, 3L), received.map { (it as MessageLocation).timestamp })
+    }
+
+    @Test
+    fun `Parser can stream the messages inside an encrypted wrapper`() {
+        Mockito.`when`(encryptionProvider.isPayloadEncryptionEnabled).thenReturn(true)
+        val decrypted = (1..3).joinToString(",", "[", "]") { "{\"_type\":\"location\",\"lat\":1.0,\"lon\":2.0,\"tst\":$it}" }
+        Mockito.`when`(encryptionProvider.decrypt("TestCipherText")).thenReturn(decrypted)
+        val parser = Parser(encryptionProvider)
+        val received = mutableListOf<MessageBase>()
+        val input = "{\"_type\":\"encrypted\",\"data\":\"TestCipherText\"}"
+        val count = parser.fromJson(ByteArrayInputStream(input.toByteArray()), 100) { received.add(it) }
+        assertEquals(3, count)
+        assertEquals(listOf(1L, 2L, 3L), received.map { (it as MessageLocation).timestamp })
+    }
+
+    @Test(expected = JsonParseException::class)
+    fun `Parser raises an exception when a streamed message array is truncated`() {
+        val parser = Parser(encryptionProvider)
+        val input = "[{\"_type\":\"location\",\"lat\":1.0,\"lon\":2.0,\"tst\":1},"
+        parser.fromJson(ByteArrayInputStream(input.toByteArray()), 100) { }
+    }
     //endregion
 
     //region Command Messages
@@ -0,0 +1,48 @@
+package org.owntracks.android.support
+
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import javax.net.ssl.SSLSession
+
+class PersistentTlsSessionCacheTest {
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private fun session(host: String, port: Int): SSLSession = mock {
+        on { peerHost } doReturn host
+        on { peerPort } doReturn port
+    }
+
+    @Test
+    fun `given a stored session, when a new cache reads the same host and port, the session data is returned`() {
+        val directory = temporaryFolder.newFolder("sessions")
+        PersistentTlsSessionCache(directory).putSessionData(session("broker.example.com", 8883), byteArrayOf(1, 2, 3))
+
+        val cache = PersistentTlsSessionCache(directory)
+        assertArrayEquals(byteArrayOf(1, 2, 3), cache.getSessionData("broker.example.com", 8883))
+        assertNull(cache.getSessionData("broker.example.com", 443))
+        assertNull(cache.getSessionData("other.example.com", 8883))
+    }
+
+    @Test
+    fun `given a stored session, when the cache is cleared, no session data is returned`() {
+        val cache = PersistentTlsSessionCache(temporaryFolder.newFolder("sessions"))
+        cache.putSessionData(session("broker.example.com", 8883), byteArrayOf(1, 2, 3))
+        cache.clear()
+        assertNull(cache.getSessionData("broker.example.com", 8883))
+    }
+
+    @Test
+    fun `given a host with path characters, the session is stored inside the cache directory`() {
+        val directory = temporaryFolder.newFolder("sessions")
+        val cache = PersistentTlsSessionCache(directory)
+        cache.putSessionData(session("../escape", 8883), byteArrayOf(4))
+        assertArrayEquals(byteArrayOf(4), cache.getSessionData("../escape", 8883))
+        assertArrayEquals(arrayOf(".._escape_8883"), directory.list())
+    }
+}
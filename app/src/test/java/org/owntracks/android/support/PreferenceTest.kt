@@ -7,9 +7,11 @@ import com.nhaarman.mockitokotlin2.mock
 import org.junit.Assert
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
 import org.junit.Before
 import org.junit.Test
 import org.owntracks.android.model.messages.MessageConfiguration
+import org.owntracks.android.services.LocationProcessor
 import org.owntracks.android.support.preferences.PreferencesStore
 
 class PreferenceTest {
@@ -68,8 +70,43 @@ class PreferenceTest {
         assertEquals("", preferences.host)
     }
 
-    private val preferenceKeys = listOf("autostartOnBoot", "cleanSession", "debugLog", "deviceId", "fusedRegionDetection", "reverseGeocodeProvider", "ignoreInaccurateLocations", "ignoreStaleLocations", "locatorDisplacement", "locatorInterval", "locatorPriority", "mode", "monitoring", "moveModeLocatorInterval", "notificationEvents", "notificationHigherPriority", "notificationLocation", "opencageApiKey", "password", "ping", "pubExtendedData", "cmd", "remoteConfiguration", "tid", "username", "_build")
-    private val httpOnlyPreferenceKeys = listOf("dontReuseHttpClient", "url")
+    @Test
+    fun `given a key and string value, when importing a single key, the value is converted to the preference type`() {
+        val preferences = Preferences(mockContext, null, preferencesStore)
+        preferences.importKeyValue("port", "8883")
+        preferences.importKeyValue("cleanSession", "true")
+        preferences.importKeyValue("ignoreStaleLocations", "1.5")
+        assertEquals(8883, preferences.port)
+        assertEquals(true, preferences.cleanSession)
+        assertEquals(1.5, preferences.ignoreStaleLocations, 0.0)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `given a key and a string value that is not valid for the preference type, when importing a single key, an exception is thrown`() {
+        val preferences = Preferences(mockContext, null, preferencesStore)
+        preferences.importKeyValue("port", "not a number")
+    }
+
+    @Test(expected = IllegalAccessException::class)
+    fun `given an unknown key, when importing a single key, an exception is thrown`() {
+        val preferences = Preferences(mockContext, null, preferencesStore)
+        preferences.importKeyValue("Invalid", "invalid")
+    }
+
+    @Test
+    fun `given a preferences snapshot, when a preference is changed, the next snapshot reflects the change`() {
+        val preferences = Preferences(mockContext, null, preferencesStore)
+        preferences.monitoring = LocationProcessor.MONITORING_MANUAL
+        val before = preferences.snapshot
+        assertSame(before, preferences.snapshot)
+        preferences.monitoring = LocationProcessor.MONITORING_MOVE
+        val after = preferences.snapshot
+        assertEquals(LocationProcessor.MONITORING_MANUAL, before.monitoring)
+        assertEquals(LocationProcessor.MONITORING_MOVE, after.monitoring)
+    }
+
+    private val preferenceKeys = listOf("autostartOnBoot", "bleCompactEncoding", "cleanSession", "debugLog", "deferBacklogUntilUnmetered", "deviceId", "fusedRegionDetection", "reverseGeocodeProvider", "ignoreInaccurateLocations", "ignoreStaleLocations", "locatorAdaptive", "locatorAdaptiveMinInterval", "locatorDisplacement", "locatorInterval", "locatorMaxWait", "locatorPriority", "mode", "monitoring", "moveModeLocatorInterval", "notificationEvents", "notificationHigherPriority", "notificationLocation", "opencageApiKey", "password", "ping", "pubExtendedData", "cmd", "remoteConfiguration", "tid", "tlsPersistSessions", "username", "_build")
+    private val httpOnlyPreferenceKeys = listOf("dontReuseHttpClient", "httpCompression", "url")
     private val mqttOnlyPreferenceKeys = listOf("clientId", "host", "info", "keepalive", "mqttProtocolLevel", "pubQos", "pubRetain", "sub", "subQos", "subTopic", "port", "pubTopicBase", "tls", "tlsCaCrt", "tlsClientCrt", "tlsClientCrtPassword")
 
     @Test
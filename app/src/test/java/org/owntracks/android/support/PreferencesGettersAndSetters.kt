@@ -71,9 +71,11 @@ class PreferencesGettersAndSetters(
         fun data(): Iterable<Array<Any>> {
             return arrayListOf(
                     arrayOf("AutostartOnBoot", "autostartOnBoot", true, true, Boolean::class, false),
+                    arrayOf("BleCompactEncoding", "bleCompactEncoding", true, true, Boolean::class, false),
                     arrayOf("CleanSession", "cleanSession", true, true, Boolean::class, false),
                     arrayOf("ClientId", "clientId", "testClientId", "testClientId", String::class, false),
                     arrayOf("DebugLog", "debugLog", true, true, Boolean::class, false),
+                    arrayOf("DeferBacklogUntilUnmetered", "deferBacklogUntilUnmetered", true, true, Boolean::class, false),
                     arrayOf("DeviceId", "deviceId", "deviceId", "deviceId", String::class, false),
                     arrayOf("DontReuseHttpClient", "dontReuseHttpClient", true, true, Boolean::class, true),
                     arrayOf("ExperimentalFeatures", "experimentalFeatures", setOf("this", "that", "other"), setOf("this", "that", "other"), Set::class, false),
@@ -83,6 +85,7 @@ class PreferencesGettersAndSetters(
                     arrayOf("ReverseGeocodeProvider", "reverseGeocodeProvider", "None", "None", String::class, false),
                     arrayOf("ReverseGeocodeProvider", "reverseGeocodeProvider", "Nonsense", "None", String::class, false),
                     arrayOf("Host", "host", "testHost", "testHost", String::class, false),
+                    arrayOf("HttpCompression", "httpCompression", true, true, Boolean::class, true),
                     arrayOf("IgnoreInaccurateLocations", "ignoreInaccurateLocations", 123, 123, Int::class, false),
                     arrayOf("IgnoreStaleLocations", "ignoreStaleLocations", 456.0, 456.0, Double::class, false),
                     arrayOf("Info", "info", true, true, Boolean::class, false),
@@ -91,8 +94,11 @@ class PreferencesGettersAndSetters(
                     arrayOf("Keepalive", "keepalive", 1500000, 1500000, Int::class, false),
                     arrayOf("Keepalive", "keepalive", 0, 1500000, Int::class, false),
                     arrayOf("Keepalive", "keepalive", -1, 1500000, Int::class, false),
+                    arrayOf("LocatorAdaptive", "locatorAdaptive", true, true, Boolean::class, false),
+                    arrayOf("LocatorAdaptiveMinInterval", "locatorAdaptiveMinInterval", 20, 20, Int::class, false),
                     arrayOf("LocatorDisplacement", "locatorDisplacement", 1690, 1690, Int::class, false),
                     arrayOf("LocatorInterval", "locatorInterval", 1000, 1000, Int::class, false),
+                    arrayOf("LocatorMaxWait", "locatorMaxWait", 60, 60, Int::class, false),
                     arrayOf("LocatorPriority", "locatorPriority", 2, 2, Int::class, false),
                     arrayOf("Mode", "mode", MessageProcessorEndpointHttp.MODE_ID, MessageProcessorEndpointHttp.MODE_ID, Int::class, false),
                     arrayOf("Mode", "mode", MessageProcessorEndpointMqtt.MODE_ID, MessageProcessorEndpointMqtt.MODE_ID, Int::class, false),
@@ -124,6 +130,7 @@ class PreferencesGettersAndSetters(
                     arrayOf("TlsCaCrt", "tlsCaCrt", "caCertName", "caCertName", String::class, false),
                     arrayOf("TlsClientCrt", "tlsClientCrt", "clientCertName", "clientCertName", String::class, false),
                     arrayOf("TlsClientCrtPassword", "tlsClientCrtPassword", "clientCrtPassword", "clientCrtPassword", String::class, false),
+                    arrayOf("TlsPersistSessions", "tlsPersistSessions", true, true, Boolean::class, false),
                     arrayOf("TrackerId", "tid", "t1", "t1", String::class, false),
                     arrayOf("TrackerId", "tid", "trackerId", "tr", String::class, false),
                     arrayOf("Url", "url", "https://www.example.com", "https://www.example.com", String::class, true),
@@ -138,9 +145,11 @@ class PreferencesGettersAndSetters(
                 on { getString(eq(R.string.valEmpty)) } doReturn ""
                 on { getString(eq(R.string.preferenceKeyAuth)) } doReturn "auth"
                 on { getString(eq(R.string.preferenceKeyAutostartOnBoot)) } doReturn "autostartOnBoot"
+                on { getString(eq(R.string.preferenceKeyBleCompactEncoding)) } doReturn "bleCompactEncoding"
                 on { getString(eq(R.string.preferenceKeyCleanSession)) } doReturn "cleanSession"
                 on { getString(eq(R.string.preferenceKeyClientId)) } doReturn "clientId"
                 on { getString(eq(R.string.preferenceKeyDebugLog)) } doReturn "debugLog"
+                on { getString(eq(R.string.preferenceKeyDeferBacklogUntilUnmetered)) } doReturn "deferBacklogUntilUnmetered"
                 on { getString(eq(R.string.preferenceKeyDeviceId)) } doReturn "deviceId"
                 on { getString(eq(R.string.preferenceKeyDontReuseHttpClient)) } doReturn "dontReuseHttpClient"
                 on { getString(eq(R.string.preferenceKeyEncryptionKey)) } doReturn "encryptionKey"
@@ -149,12 +158,16 @@ class PreferencesGettersAndSetters(
                 on { getString(eq(R.string.preferenceKeyFusedRegionDetection)) } doReturn "fusedRegionDetection"
                 on { getString(eq(R.string.preferenceKeyGeocodeEnabled)) } doReturn "geocodeEnabled"
                 on { getString(eq(R.string.preferenceKeyHost)) } doReturn "host"
+                on { getString(eq(R.string.preferenceKeyHttpCompression)) } doReturn "httpCompression"
                 on { getString(eq(R.string.preferenceKeyIgnoreInaccurateLocations)) } doReturn "ignoreInaccurateLocations"
                 on { getString(eq(R.string.preferenceKeyIgnoreStaleLocations)) } doReturn "ignoreStaleLocations"
                 on { getString(eq(R.string.preferenceKeyInfo)) } doReturn "info"
                 on { getString(eq(R.string.preferenceKeyKeepalive)) } doReturn "keepalive"
+                on { getString(eq(R.string.preferenceKeyLocatorAdaptive)) } doReturn "locatorAdaptive"
+                on { getString(eq(R.string.preferenceKeyLocatorAdaptiveMinInterval)) } doReturn "locatorAdaptiveMinInterval"
                 on { getString(eq(R.string.preferenceKeyLocatorDisplacement)) } doReturn "locatorDisplacement"
                 on { getString(eq(R.string.preferenceKeyLocatorInterval)) } doReturn "locatorInterval"
+                on { getString(eq(R.string.preferenceKeyLocatorMaxWait)) } doReturn "locatorMaxWait"
                 on { getString(eq(R.string.preferenceKeyLocatorPriority)) } doReturn "locatorPriority"
                 on { getString(eq(R.string.preferenceKeyModeId)) } doReturn "mode"
                 on { getString(eq(R.string.preferenceKeyMonitoring)) } doReturn "monitoring"
@@ -183,6 +196,7 @@ class PreferencesGettersAndSetters(
                 on { getString(eq(R.string.preferenceKeyTLSCaCrt)) } doReturn "tlsCaCrt"
                 on { getString(eq(R.string.preferenceKeyTLSClientCrt)) } doReturn "tlsClientCrt"
                 on { getString(eq(R.string.preferenceKeyTLSClientCrtPassword)) } doReturn "tlsClientCrtPassword"
+                on { getString(eq(R.string.preferenceKeyTLSPersistSessions)) } doReturn "tlsPersistSessions"
                 on { getString(eq(R.string.preferenceKeyTrackerId)) } doReturn "tid"
                 on { getString(eq(R.string.preferenceKeyURL)) } doReturn "url"
                 on { getString(eq(R.string.preferenceKeyUsepassword)) } doReturn "usePassword"
@@ -1,42 +1,63 @@
 package org.owntracks.android.ui.preferences.load
 
-import io.objectbox.android.ObjectBoxLiveData
-import io.objectbox.query.Query
+import androidx.lifecycle.LiveData
 import org.greenrobot.eventbus.EventBus
 import org.owntracks.android.data.WaypointModel
 import org.owntracks.android.data.repos.WaypointsRepo
+import java.util.Collections
 
+/**
+ * Keeps waypoints in a map and, like the ObjectBox repo's cache, hands its own instances to [WaypointsRepo].
+ * Transition flushes only happen when a test calls [flush].
+ */
 class InMemoryWaypointsRepo(eventBus: EventBus?) : WaypointsRepo(eventBus) {
-    override fun get(tst: Long): WaypointModel {
-        TODO("Not yet implemented")
-    }
+    private val waypoints = linkedMapOf<Long, WaypointModel>()
+    private var nextId = 1L
+    var flushesScheduled = 0
+        private set
+    // The waypoint ids in each batch of transition state written
+    val transitionWrites = mutableListOf<Set<Long>>()
 
-    override fun getAll(): MutableList<WaypointModel> {
-        TODO("Not yet implemented")
-    }
+    fun flush() = flushTransitions()
+
+    override fun get_impl(tst: Long): WaypointModel? = waypoints.values.firstOrNull { it.tst == tst }
+
+    override fun getAll_impl(): List<WaypointModel> = Collections.unmodifiableList(waypoints.values.toList())
+
+    override fun getAllWithGeofences_impl(): List<WaypointModel> = Collections.unmodifiableList(waypoints.values.filter { it.hasGeofence() })
 
-    override fun getAllWithGeofences(): MutableList<WaypointModel> {
+    override fun getAllLive(): LiveData<List<WaypointModel>> {
         TODO("Not yet implemented")
     }
 
-    override fun getAllLive(): ObjectBoxLiveData<WaypointModel> {
-        TODO("Not yet implemented")
+    override fun insert_impl(w: WaypointModel) {
+        if (w.id == 0L) {
+            w.id = nextId++
+        }
+        waypoints[w.id] = w
     }
 
-    override fun getAllQuery(): Query<WaypointModel> {
-        TODO("Not yet implemented")
+    override fun update_impl(w: WaypointModel) {
+        waypoints[w.id] = w
     }
 
-    override fun insert_impl(w: WaypointModel?) {
-        TODO("Not yet implemented")
+    override fun delete_impl(w: WaypointModel) {
+        waypoints.remove(w.id)
     }
 
-    override fun update_impl(w: WaypointModel?) {
-        TODO("Not yet implemented")
+    override fun upsert_impl(waypoints: MutableList<WaypointModel>) {
+        waypoints.forEach { w ->
+            w.id = get_impl(w.tst)?.id ?: nextId++
+            this.waypoints[w.id] = w
+        }
     }
 
-    override fun delete_impl(w: WaypointModel?) {
-        TODO("Not yet implemented")
+    override fun updateTransitions_impl(transitions: MutableMap<Long, TransitionState>) {
+        transitionWrites.add(transitions.keys.toSet())
+        transitions.forEach { (id, state) -> waypoints[id]?.let { state.applyTo(it) } }
     }
 
-}
\ No newline at end of file
+    override fun scheduleTransitionFlush() {
+        flushesScheduled++
+    }
+}
@@ -36,7 +36,7 @@ class LoadViewModelTest {
     fun `When invalid JSON on an inline owntracks config URL, then the error is correctly set`() {
         val parser = Parser(null)
         val preferences = Preferences(mockContext, null, preferencesStore)
-        val vm = LoadViewModel(preferences, parser, InMemoryWaypointsRepo(eventBus))
+        val vm = LoadViewModel(preferences, parser, InMemoryWaypointsRepo(eventBus), mock {})
 
         vm.extractPreferences(URI("owntracks:///config?inline=e30k"))
         assertEquals("""Import failed: Message is not a valid configuration message""", vm.displayedConfiguration)